@@ -0,0 +1,51 @@
+package org.geppetto.samplesolver.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.geppetto.samplesolver.HHResults;
+import org.geppetto.samplesolver.SampleSolverService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * SampleSolverService.solveColumnar() on a new service, as the first call
+ * after a bundle start: context creation, kernel build, buffer allocation and
+ * the run. The fork measures single calls, each on a new service.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+public class ColdSolveBenchmark {
+
+	/**
+	 * true to load the kernel from the binary cache, filled by the warmup
+	 */
+	@Param({ "false", "true" })
+	public boolean kernelCache;
+
+	@Benchmark
+	public HHResults solve(SolverState state) {
+		SampleSolverService solver = new SampleSolverService();
+		solver.setConfiguration(state.createConfiguration(kernelCache));
+		try {
+			HHResults results = solver.solveColumnar(state.models, state.timeConfiguration);
+			if (results == null) {
+				throw new IllegalStateException(state.solver.getBackend() + " backend not available");
+			}
+			return results;
+		} finally {
+			solver.shutdown();
+		}
+	}
+}
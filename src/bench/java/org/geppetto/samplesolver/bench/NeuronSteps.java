@@ -0,0 +1,23 @@
+package org.geppetto.samplesolver.bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts the neuron-steps integrated, reported by JMH as a secondary
+ * neuronSteps result in neuron-steps per unit of time
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class NeuronSteps {
+
+	public long neuronSteps;
+
+	@Setup(Level.Iteration)
+	public void clear() {
+		neuronSteps = 0;
+	}
+}
@@ -0,0 +1,81 @@
+package org.geppetto.samplesolver.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geppetto.core.model.HHModel;
+import org.geppetto.core.model.IModel;
+import org.geppetto.core.simulation.ITimeConfiguration;
+import org.geppetto.core.simulation.TimeConfiguration;
+import org.geppetto.samplesolver.SolverConfiguration;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The benchmark matrix: population size, steps, sample period, backend and
+ * kernel variant. Narrow it with -p, e.g. -p neurons=30,1000 -p
+ * solver=OPENCL_TUNED. Runs that would store more than
+ * {@link #MAX_SAMPLES} samples fail in their setup, so denser sampling can
+ * only be asked for smaller populations, e.g. -p neurons=1000 -p
+ * samplePeriod=1.
+ */
+@State(Scope.Benchmark)
+public class SolverState {
+
+	/**
+	 * Largest number of samples of a run, all the neurons together: 160 MB
+	 * of results with the four variables in floats
+	 */
+	static final long MAX_SAMPLES = 10000000;
+
+	@Param({ "30", "1000", "10000", "100000" })
+	public int neurons;
+
+	@Param({ "1000", "10000" })
+	public int steps;
+
+	@Param({ "100", "1000" })
+	public int samplePeriod;
+
+	@Param({ "JAVA", "JAVA_TABLE", "OPENCL_REFERENCE", "OPENCL_TUNED", "OPENCL_VECTORIZED", "OPENCL_TABLE" })
+	public SolverVariant solver;
+
+	List<IModel> models;
+	ITimeConfiguration timeConfiguration;
+
+	@Setup
+	public void createModels() {
+		if ((long) neurons * (steps / samplePeriod) > MAX_SAMPLES) {
+			throw new IllegalArgumentException(neurons + " neurons sampled every " + samplePeriod + " of " + steps + " steps exceed " + MAX_SAMPLES + " samples");
+		}
+		// the reference curves of the tests, with currents from -20 to 25
+		models = new ArrayList<IModel>(neurons);
+		for (int m = 0; m < neurons; m++) {
+			models.add(new HHModel(Integer.toString(m), -10, 0, 0, 1, -20 + m % 46));
+		}
+		timeConfiguration = new TimeConfiguration(0.01f, steps, samplePeriod);
+	}
+
+	/**
+	 * @param kernelCache: false to always compile the kernel from source
+	 * @return a configuration for the parameters of the run
+	 */
+	SolverConfiguration createConfiguration(boolean kernelCache) {
+		SolverConfiguration configuration = new SolverConfiguration();
+		configuration.setBackend(solver.getBackend());
+		configuration.setKernelVariant(solver.getKernelVariant());
+		if (!kernelCache) {
+			configuration.setKernelCacheDirectory(null);
+		}
+		return configuration;
+	}
+
+	/**
+	 * @return the number of neuron-steps of one solve
+	 */
+	long getNeuronSteps() {
+		return (long) neurons * steps;
+	}
+}
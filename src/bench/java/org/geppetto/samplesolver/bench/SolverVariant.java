@@ -0,0 +1,34 @@
+package org.geppetto.samplesolver.bench;
+
+import org.geppetto.samplesolver.KernelVariant;
+import org.geppetto.samplesolver.SolverBackend;
+
+/**
+ * The backends and kernel variants of the benchmark matrix. The Java backend
+ * only tells the rate table from the analytic rates, so the other variants
+ * are benchmarked on OpenCL only.
+ */
+public enum SolverVariant {
+	JAVA(SolverBackend.JAVA, KernelVariant.REFERENCE),
+	JAVA_TABLE(SolverBackend.JAVA, KernelVariant.TABLE),
+	OPENCL_REFERENCE(SolverBackend.OPENCL, KernelVariant.REFERENCE),
+	OPENCL_TUNED(SolverBackend.OPENCL, KernelVariant.TUNED),
+	OPENCL_VECTORIZED(SolverBackend.OPENCL, KernelVariant.VECTORIZED),
+	OPENCL_TABLE(SolverBackend.OPENCL, KernelVariant.TABLE);
+
+	private final SolverBackend _backend;
+	private final KernelVariant _kernelVariant;
+
+	private SolverVariant(SolverBackend backend, KernelVariant kernelVariant) {
+		_backend = backend;
+		_kernelVariant = kernelVariant;
+	}
+
+	public SolverBackend getBackend() {
+		return _backend;
+	}
+
+	public KernelVariant getKernelVariant() {
+		return _kernelVariant;
+	}
+}
@@ -0,0 +1,54 @@
+package org.geppetto.samplesolver.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.geppetto.samplesolver.HHResults;
+import org.geppetto.samplesolver.SampleSolverService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * SampleSolverService.solveColumnar() on a warm service: the context is created,
+ * the kernel compiled and the buffers allocated before the measurements.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class WarmSolveBenchmark {
+
+	private SampleSolverService _solver;
+
+	@Setup
+	public void createSolver(SolverState state) {
+		_solver = new SampleSolverService();
+		_solver.setConfiguration(state.createConfiguration(true));
+		if (_solver.solveColumnar(state.models, state.timeConfiguration) == null) {
+			_solver.shutdown();
+			throw new IllegalStateException(state.solver.getBackend() + " backend not available");
+		}
+	}
+
+	@TearDown
+	public void shutdown() {
+		_solver.shutdown();
+	}
+
+	@Benchmark
+	public HHResults solve(SolverState state, NeuronSteps counters) {
+		HHResults results = _solver.solveColumnar(state.models, state.timeConfiguration);
+		counters.neuronSteps += state.getNeuronSteps();
+		return results;
+	}
+}
@@ -0,0 +1,23 @@
+package org.geppetto.samplesolver;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates named daemon threads, so solver pools never keep the JVM or the
+ * OSGi framework from shutting down.
+ */
+class DaemonThreadFactory implements ThreadFactory {
+
+	private final String _prefix;
+	private int _count = 0;
+
+	DaemonThreadFactory(String prefix) {
+		_prefix = prefix;
+	}
+
+	public synchronized Thread newThread(Runnable r) {
+		Thread thread = new Thread(r, _prefix + "-" + (_count++));
+		thread.setDaemon(true);
+		return thread;
+	}
+}
@@ -0,0 +1,245 @@
+package org.geppetto.samplesolver;
+
+import static org.bridj.Pointer.allocateBytes;
+import static org.bridj.Pointer.allocateInts;
+import static org.bridj.Pointer.pointerToBytes;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.bridj.Pointer;
+import org.bridj.util.Pair;
+
+import com.nativelibs4java.opencl.CLBuffer;
+import com.nativelibs4java.opencl.CLContext;
+import com.nativelibs4java.opencl.CLEvent;
+import com.nativelibs4java.opencl.CLMem.MapFlags;
+import com.nativelibs4java.opencl.CLMem.Usage;
+import com.nativelibs4java.opencl.CLQueue;
+
+/**
+ * Device and host buffers receiving the sampled results of a run. Buffers are
+ * reused as long as the population size, number of samples and storage
+ * formats don't change. Each buffer holds the values of one variable in its
+ * {@link StorageFormat}. With steady state detection the sample each model
+ * settled at is read back along with the results.
+ *
+ * In zero-copy mode the device buffers are created on host memory, which on a
+ * CPU device is the memory the kernel writes to. The buffers are mapped
+ * instead of read and the results wrap that memory, so new buffers are
+ * created for every run.
+ */
+class DeviceOutput {
+
+	// alignment of zero-copy host memory, runtimes only avoid copies for
+	// page aligned memory
+	private static final int HOST_ALIGNMENT = 4096;
+
+	private final CLContext _context;
+
+	// size the current buffers were allocated for
+	private int _elemCount = -1;
+	private int _samples = -1;
+	private StorageFormat[] _formats;
+	private boolean _zeroCopy;
+	private boolean _settled;
+
+	// host memory of the zero-copy buffers, handed over to the results
+	private ByteBuffer[] _hostMemory;
+
+	// host side buffers
+	Pointer<Byte> V_out_Ptr;
+	Pointer<Byte> x_n_out_Ptr;
+	Pointer<Byte> x_m_out_Ptr;
+	Pointer<Byte> x_h_out_Ptr;
+	Pointer<Integer> settled_Ptr;
+
+	// device buffers
+	CLBuffer<Byte> V_results_Buffer;
+	CLBuffer<Byte> Xn_results_Buffer;
+	CLBuffer<Byte> Xm_results_Buffer;
+	CLBuffer<Byte> Xh_results_Buffer;
+	// settled sample of each model, always allocated since the kernel takes
+	// it as an argument
+	CLBuffer<Integer> settled_Buffer;
+
+	DeviceOutput(CLContext context) {
+		_context = context;
+	}
+
+	/**
+	 * Makes sure the buffers fit the given population and number of samples
+	 *
+	 * @param elemCount: number of models being evaluated
+	 * @param samples: number of samples stored per model and variable
+	 * @param formats: the format of each variable, in Variable order
+	 * @param zeroCopy: true to create the device buffers on host memory
+	 * @param settled: true to read the settled samples back with the results
+	 */
+	void ensureCapacity(int elemCount, int samples, StorageFormat[] formats, boolean zeroCopy, boolean settled) {
+		_settled = settled;
+		if (V_results_Buffer != null && elemCount == _elemCount && samples == _samples && zeroCopy == _zeroCopy && Arrays.equals(formats, _formats)) {
+			return;
+		}
+		release();
+
+		ByteOrder byteOrder = _context.getByteOrder();
+		// at least one value, runs recording spikes only store no sample
+		long size = Math.max(1, (long) elemCount * samples);
+		if (zeroCopy) {
+			_hostMemory = new ByteBuffer[formats.length];
+			for (int v = 0; v < formats.length; v++) {
+				_hostMemory[v] = allocateHostMemory(size * formats[v].getBytes(), byteOrder);
+			}
+			V_out_Ptr = pointerToBytes(_hostMemory[0]);
+			x_n_out_Ptr = pointerToBytes(_hostMemory[1]);
+			x_m_out_Ptr = pointerToBytes(_hostMemory[2]);
+			x_h_out_Ptr = pointerToBytes(_hostMemory[3]);
+
+			V_results_Buffer = _context.createByteBuffer(Usage.Output, V_out_Ptr, false);
+			Xn_results_Buffer = _context.createByteBuffer(Usage.Output, x_n_out_Ptr, false);
+			Xm_results_Buffer = _context.createByteBuffer(Usage.Output, x_m_out_Ptr, false);
+			Xh_results_Buffer = _context.createByteBuffer(Usage.Output, x_h_out_Ptr, false);
+		} else {
+			V_out_Ptr = allocateBytes(size * formats[0].getBytes()).order(byteOrder);
+			x_n_out_Ptr = allocateBytes(size * formats[1].getBytes()).order(byteOrder);
+			x_m_out_Ptr = allocateBytes(size * formats[2].getBytes()).order(byteOrder);
+			x_h_out_Ptr = allocateBytes(size * formats[3].getBytes()).order(byteOrder);
+
+			V_results_Buffer = _context.createByteBuffer(Usage.Output, size * formats[0].getBytes());
+			Xn_results_Buffer = _context.createByteBuffer(Usage.Output, size * formats[1].getBytes());
+			Xm_results_Buffer = _context.createByteBuffer(Usage.Output, size * formats[2].getBytes());
+			Xh_results_Buffer = _context.createByteBuffer(Usage.Output, size * formats[3].getBytes());
+		}
+		settled_Ptr = allocateInts(Math.max(1, elemCount)).order(byteOrder);
+		settled_Buffer = _context.createIntBuffer(Usage.Output, Math.max(1, elemCount));
+
+		_elemCount = elemCount;
+		_samples = samples;
+		_formats = formats.clone();
+		_zeroCopy = zeroCopy;
+	}
+
+	/**
+	 * @return the formats the buffers were allocated for
+	 */
+	StorageFormat[] getFormats() {
+		return _formats;
+	}
+
+	/**
+	 * Enqueues the transfer of the results to the host buffers: reads, or
+	 * maps and unmaps of the zero-copy buffers, which only make sure the
+	 * host memory holds the values written by the kernel
+	 *
+	 * @param queue: the queue the transfer is enqueued on
+	 * @param blocking: true to wait for the transfer
+	 * @param eventsToWaitFor: events the transfer waits for
+	 * @return the event of the last transfer
+	 */
+	CLEvent enqueueRead(CLQueue queue, boolean blocking, CLEvent... eventsToWaitFor) {
+		if (_settled) {
+			settled_Buffer.read(queue, settled_Ptr, false, eventsToWaitFor);
+		}
+		if (!_zeroCopy) {
+			V_results_Buffer.read(queue, V_out_Ptr, blocking, eventsToWaitFor);
+			Xn_results_Buffer.read(queue, x_n_out_Ptr, blocking, eventsToWaitFor);
+			Xm_results_Buffer.read(queue, x_m_out_Ptr, blocking, eventsToWaitFor);
+			return Xh_results_Buffer.read(queue, x_h_out_Ptr, blocking, eventsToWaitFor);
+		}
+		mapAndUnmap(V_results_Buffer, queue, eventsToWaitFor);
+		mapAndUnmap(Xn_results_Buffer, queue, eventsToWaitFor);
+		mapAndUnmap(Xm_results_Buffer, queue, eventsToWaitFor);
+		CLEvent unmapEvt = mapAndUnmap(Xh_results_Buffer, queue, eventsToWaitFor);
+		if (blocking) {
+			unmapEvt.waitFor();
+		}
+		return unmapEvt;
+	}
+
+	/**
+	 * @return the bytes copied by enqueueRead(), only the settled samples in
+	 *         zero-copy mode
+	 */
+	long getReadBytes() {
+		if (V_results_Buffer == null) {
+			return 0;
+		}
+		long settledBytes = _settled ? settled_Buffer.getByteCount() : 0;
+		if (_zeroCopy) {
+			return settledBytes;
+		}
+		return settledBytes + V_results_Buffer.getByteCount() + Xn_results_Buffer.getByteCount() + Xm_results_Buffer.getByteCount() + Xh_results_Buffer.getByteCount();
+	}
+
+	private static CLEvent mapAndUnmap(CLBuffer<Byte> buffer, CLQueue queue, CLEvent... eventsToWaitFor) {
+		Pair<Pointer<Byte>, CLEvent> mapped = buffer.mapLater(queue, MapFlags.Read, eventsToWaitFor);
+		return buffer.unmap(queue, mapped.getFirst(), mapped.getSecond());
+	}
+
+	/**
+	 * Returns the results transferred by the last enqueueRead(). In zero-copy
+	 * mode the results take over the host memory and the buffers are
+	 * released, the next run gets new ones.
+	 */
+	HHResults toResults(String[] ids, int noSamples, Spikes spikes) {
+		int values = ids.length * noSamples;
+		int[] settled = _settled ? settled_Ptr.getInts(ids.length) : null;
+		Object[] columns = new Object[_formats.length];
+		if (_zeroCopy) {
+			for (int v = 0; v < columns.length; v++) {
+				columns[v] = _formats[v].wrap(_hostMemory[v], values);
+			}
+			HHResults results = new HHResults(ids, noSamples, columns, _formats, spikes, settled);
+			release();
+			return results;
+		}
+		// bulk copies, the kernel already skipped the steps that are not on the sample period
+		columns[0] = _formats[0].read(V_out_Ptr, values);
+		columns[1] = _formats[1].read(x_n_out_Ptr, values);
+		columns[2] = _formats[2].read(x_m_out_Ptr, values);
+		columns[3] = _formats[3].read(x_h_out_Ptr, values);
+		return new HHResults(ids, noSamples, columns, _formats, spikes, settled);
+	}
+
+	/**
+	 * @return page aligned direct memory of at least the given size
+	 */
+	private static ByteBuffer allocateHostMemory(long bytes, ByteOrder byteOrder) {
+		// whole cache lines, also required by some runtimes to avoid copies
+		long length = (bytes + 63) / 64 * 64;
+		if (length > Integer.MAX_VALUE - HOST_ALIGNMENT) {
+			throw new IllegalArgumentException("Zero-copy output of " + bytes + " bytes exceeds the size of a direct buffer");
+		}
+		ByteBuffer memory = ByteBuffer.allocateDirect((int) length + HOST_ALIGNMENT);
+		int offset = (int) ((HOST_ALIGNMENT - pointerToBytes(memory).getPeer() % HOST_ALIGNMENT) % HOST_ALIGNMENT);
+		memory.position(offset);
+		memory.limit(offset + (int) length);
+		return memory.slice().order(byteOrder);
+	}
+
+	void release() {
+		if (V_results_Buffer != null) {
+			V_results_Buffer.release();
+			Xn_results_Buffer.release();
+			Xm_results_Buffer.release();
+			Xh_results_Buffer.release();
+			settled_Buffer.release();
+			settled_Ptr.release();
+
+			// zero-copy host memory belongs to the buffers or the results
+			if (!_zeroCopy) {
+				V_out_Ptr.release();
+				x_n_out_Ptr.release();
+				x_m_out_Ptr.release();
+				x_h_out_Ptr.release();
+			}
+			V_results_Buffer = null;
+		}
+		_hostMemory = null;
+		_elemCount = -1;
+		_samples = -1;
+		_formats = null;
+	}
+}
@@ -0,0 +1,537 @@
+package org.geppetto.samplesolver;
+
+import static org.bridj.Pointer.allocateFloats;
+import static org.bridj.Pointer.allocateInts;
+import static org.bridj.Pointer.pointerToBytes;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bridj.Pointer;
+import org.geppetto.core.model.HHModel;
+import org.geppetto.core.model.IModel;
+
+import com.nativelibs4java.opencl.CLBuffer;
+import com.nativelibs4java.opencl.CLContext;
+import com.nativelibs4java.opencl.CLMem.Usage;
+import com.nativelibs4java.opencl.CLQueue;
+
+/**
+ * Per-neuron state of a population kept in device buffers. The kernel
+ * integrates V, x_n, x_m and x_h in place, so after a run the buffers hold the
+ * final state and the next run can start from it without any upload. Each
+ * state has its own output buffers.
+ */
+class DeviceState implements NeuronState {
+
+	/**
+	 * Floats per model in the channels buffer: maxG_K, maxG_Na, maxG_Leak,
+	 * E_K, E_Na, E_Leak and two pads, read as a float8 by the kernel
+	 */
+	static final int CHANNEL_ROW = 8;
+
+	private final int _elemCount;
+	private final DeviceOutput _output;
+	private final CLContext _context;
+	private boolean _currentsChanged;
+
+	private final Stimulus[] _stimuli;
+	// the offsets are uploaded before the first run of a state that is not
+	// loaded from models
+	private boolean _stimuliChanged = true;
+	// number of segments on the device, -1 before the first upload
+	private int _uploadedSegments = -1;
+
+	private final HHParameters[] _parameters;
+	private boolean _parametersChanged;
+	private boolean _channelsPerNeuron;
+	private double _time;
+
+	private SpikeDetection _spikeDetection;
+
+	// bytes transferred since the last takeBytesUploaded() and takeBytesRead()
+	private long _bytesUploaded;
+	private long _bytesRead;
+	// number of spikes the event buffers can hold in the next run, 0 when
+	// detection is off
+	private int _spikeCapacity;
+	private boolean _lastSpikesLoaded;
+
+	// host side buffers
+	Pointer<Float> I_in_Ptr;
+	Pointer<Float> V_in_Ptr;
+	Pointer<Float> x_n_in_Ptr;
+	Pointer<Float> x_m_in_Ptr;
+	Pointer<Float> x_h_in_Ptr;
+
+	// device buffers
+	CLBuffer<Float> I_in_Buffer;
+	CLBuffer<Float> V_in_Buffer;
+	CLBuffer<Float> x_n_in_Buffer;
+	CLBuffer<Float> x_m_in_Buffer;
+	CLBuffer<Float> x_h_in_Buffer;
+
+	// segments of all the stimuli, with the index of the first segment of
+	// each model plus the total, see Stimulus
+	CLBuffer<Float> stimuli_Buffer;
+	CLBuffer<Integer> stimulusOffsets_Buffer;
+
+	// per-neuron channel parameters, one row of CHANNEL_ROW floats per model
+	// when any model has its own, a single unused row otherwise
+	CLBuffer<Float> channels_Buffer;
+
+	// time of the last spike of each neuron, the (neuron, time) event buffers
+	// appended to by the kernel and the number of events appended so far
+	CLBuffer<Float> lastSpikes_Buffer;
+	CLBuffer<Integer> spikeNeurons_Buffer;
+	CLBuffer<Float> spikeTimes_Buffer;
+	CLBuffer<Integer> spikeCount_Buffer;
+	Pointer<Integer> spikeCount_Ptr;
+
+	DeviceState(CLContext context, int elemCount) {
+		_elemCount = elemCount;
+		_context = context;
+		_stimuli = new Stimulus[elemCount];
+		_parameters = new HHParameters[elemCount];
+		ByteOrder byteOrder = context.getByteOrder();
+
+		I_in_Ptr = allocateFloats(elemCount).order(byteOrder);
+		V_in_Ptr = allocateFloats(elemCount).order(byteOrder);
+		x_n_in_Ptr = allocateFloats(elemCount).order(byteOrder);
+		x_m_in_Ptr = allocateFloats(elemCount).order(byteOrder);
+		x_h_in_Ptr = allocateFloats(elemCount).order(byteOrder);
+
+		I_in_Buffer = context.createFloatBuffer(Usage.Input, elemCount);
+		V_in_Buffer = context.createFloatBuffer(Usage.InputOutput, elemCount);
+		x_n_in_Buffer = context.createFloatBuffer(Usage.InputOutput, elemCount);
+		x_m_in_Buffer = context.createFloatBuffer(Usage.InputOutput, elemCount);
+		x_h_in_Buffer = context.createFloatBuffer(Usage.InputOutput, elemCount);
+
+		stimuli_Buffer = context.createFloatBuffer(Usage.Input, Stimulus.SEGMENT_SIZE);
+		stimulusOffsets_Buffer = context.createIntBuffer(Usage.Input, elemCount + 1);
+		channels_Buffer = context.createFloatBuffer(Usage.Input, CHANNEL_ROW);
+
+		lastSpikes_Buffer = context.createFloatBuffer(Usage.InputOutput, elemCount);
+		spikeNeurons_Buffer = context.createIntBuffer(Usage.Output, 1);
+		spikeTimes_Buffer = context.createFloatBuffer(Usage.Output, 1);
+		spikeCount_Buffer = context.createIntBuffer(Usage.InputOutput, 1);
+		spikeCount_Ptr = allocateInts(1).order(byteOrder);
+
+		_output = new DeviceOutput(context);
+	}
+
+	public int getElemCount() {
+		return _elemCount;
+	}
+
+	DeviceOutput getOutput() {
+		return _output;
+	}
+
+	/**
+	 * Input buffer initialization given a list of models with initial
+	 * conditions for the current run, the whole state is uploaded
+	 * 
+	 * @param queue: queue used for the uploads
+	 * @param models: a list of models containing initial conditions
+	 */
+	void load(CLQueue queue, List<IModel> models) {
+		// load input buffers from models
+		for (int y = 0; y < models.size(); y++) {
+			HHModel model = (HHModel) models.get(y);
+			V_in_Ptr.set(y, model.getV());
+			x_n_in_Ptr.set(y, model.getXn());
+			x_m_in_Ptr.set(y, model.getXm());
+			x_h_in_Ptr.set(y, model.getXh());
+			I_in_Ptr.set(y, model.getI());
+		}
+
+		// upload initial conditions to the device buffers
+		write(I_in_Buffer, queue, I_in_Ptr, false);
+		write(V_in_Buffer, queue, V_in_Ptr, false);
+		write(x_n_in_Buffer, queue, x_n_in_Ptr, false);
+		write(x_m_in_Buffer, queue, x_m_in_Ptr, false);
+		write(x_h_in_Buffer, queue, x_h_in_Ptr, false);
+		_currentsChanged = false;
+
+		// no stimulus, the simulation starts at 0
+		Arrays.fill(_stimuli, null);
+		if (_uploadedSegments != 0) {
+			uploadStimuli(queue);
+		}
+		_time = 0;
+
+		// shared channel parameters
+		Arrays.fill(_parameters, null);
+		_parametersChanged = false;
+		_channelsPerNeuron = false;
+
+		// no spike detection, no spike so far
+		_spikeDetection = null;
+		_lastSpikesLoaded = false;
+	}
+
+	/**
+	 * Changes the external current of one model, the change is uploaded by
+	 * the next call to uploadChanges()
+	 */
+	public void setI(int model, float I) {
+		I_in_Ptr.set(model, I);
+		_currentsChanged = true;
+	}
+
+	public float getI(int model) {
+		return I_in_Ptr.get(model);
+	}
+
+	/**
+	 * Changes the stimulus of one model, the change is uploaded by the next
+	 * call to uploadChanges()
+	 */
+	public void setStimulus(int model, Stimulus stimulus) {
+		_stimuli[model] = stimulus;
+		_stimuliChanged = true;
+	}
+
+	public Stimulus getStimulus(int model) {
+		return _stimuli[model];
+	}
+
+	/**
+	 * Gives one model its own channel parameters, the change is uploaded by
+	 * the next call to uploadParameters()
+	 */
+	public void setParameters(int model, HHParameters parameters) {
+		_parameters[model] = parameters;
+		_parametersChanged = true;
+	}
+
+	public HHParameters getParameters(int model) {
+		return _parameters[model];
+	}
+
+	/**
+	 * @return true if the kernel must read the channel parameters from the
+	 *         channels buffer
+	 */
+	boolean hasChannelsPerNeuron() {
+		return _channelsPerNeuron;
+	}
+
+	/**
+	 * Enables spike detection, the event buffers are sized by the next call
+	 * to prepareSpikes()
+	 */
+	public void setSpikeDetection(SpikeDetection detection) {
+		_spikeDetection = detection;
+	}
+
+	public SpikeDetection getSpikeDetection() {
+		return _spikeDetection;
+	}
+
+	/**
+	 * @return the max number of spikes the kernel may record in the next run,
+	 *         0 when detection is off
+	 */
+	int getSpikeCapacity() {
+		return _spikeCapacity;
+	}
+
+	/**
+	 * Sizes the event buffers for a run and resets the event counter, the
+	 * last spike times are reset on the first run after a load
+	 * 
+	 * @param queue: queue used for the uploads
+	 * @param duration: duration of the run in ms
+	 */
+	void prepareSpikes(CLQueue queue, float duration) {
+		if (_spikeDetection == null) {
+			_spikeCapacity = 0;
+			return;
+		}
+		_spikeCapacity = _spikeDetection.getCapacity(_elemCount, duration);
+		if (spikeNeurons_Buffer.getElementCount() < _spikeCapacity) {
+			spikeNeurons_Buffer.release();
+			spikeTimes_Buffer.release();
+			spikeNeurons_Buffer = _context.createIntBuffer(Usage.Output, _spikeCapacity);
+			spikeTimes_Buffer = _context.createFloatBuffer(Usage.Output, _spikeCapacity);
+		}
+		if (!_lastSpikesLoaded) {
+			float[] never = new float[_elemCount];
+			Arrays.fill(never, Float.NEGATIVE_INFINITY);
+			Pointer<Float> never_Ptr = allocateFloats(_elemCount).order(_context.getByteOrder());
+			never_Ptr.setFloats(never);
+			write(lastSpikes_Buffer, queue, never_Ptr, true);
+			never_Ptr.release();
+			_lastSpikesLoaded = true;
+		}
+		spikeCount_Ptr.set(0, 0);
+		write(spikeCount_Buffer, queue, spikeCount_Ptr, false);
+	}
+
+	/**
+	 * Reads back the spikes recorded by the last run, only the recorded
+	 * events are transferred
+	 * 
+	 * @param queue: queue the run was enqueued on
+	 * @return the spikes, null when detection is off
+	 */
+	Spikes readSpikes(CLQueue queue) {
+		if (_spikeCapacity == 0) {
+			return null;
+		}
+		spikeCount_Buffer.read(queue, spikeCount_Ptr, true);
+		_bytesRead += 4;
+		int detected = spikeCount_Ptr.get(0);
+		int recorded = Math.min(detected, _spikeCapacity);
+		int[] neurons = new int[recorded];
+		float[] times = new float[recorded];
+		if (recorded > 0) {
+			ByteOrder byteOrder = _context.getByteOrder();
+			Pointer<Integer> neurons_Ptr = allocateInts(recorded).order(byteOrder);
+			Pointer<Float> times_Ptr = allocateFloats(recorded).order(byteOrder);
+			spikeNeurons_Buffer.read(queue, 0, recorded, neurons_Ptr, true);
+			spikeTimes_Buffer.read(queue, 0, recorded, times_Ptr, true);
+			_bytesRead += recorded * 8L;
+			neurons = neurons_Ptr.getInts();
+			times = times_Ptr.getFloats();
+			neurons_Ptr.release();
+			times_Ptr.release();
+		}
+		return new Spikes(neurons, times, recorded, detected - recorded);
+	}
+
+	/**
+	 * Writes a host buffer to a device buffer, counting the bytes uploaded
+	 */
+	private <T> void write(CLBuffer<T> buffer, CLQueue queue, Pointer<T> values, boolean blocking) {
+		buffer.write(queue, values, blocking);
+		_bytesUploaded += values.getValidBytes();
+	}
+
+	/**
+	 * @return the bytes uploaded since the last call
+	 */
+	long takeBytesUploaded() {
+		long bytes = _bytesUploaded;
+		_bytesUploaded = 0;
+		return bytes;
+	}
+
+	/**
+	 * @return the bytes of spikes and state columns read back since the last
+	 *         call
+	 */
+	long takeBytesRead() {
+		long bytes = _bytesRead;
+		_bytesRead = 0;
+		return bytes;
+	}
+
+	public double getTime() {
+		return _time;
+	}
+
+	public void setTime(double time) {
+		_time = time;
+	}
+
+	/**
+	 * Advances the simulated time after a run
+	 */
+	void advanceTime(double duration) {
+		_time += duration;
+	}
+
+	/**
+	 * Copies one column of the state straight from its device buffer, the
+	 * external current from its host copy
+	 * 
+	 * @param queue: queue used for the transfer
+	 * @param column: StateSnapshot.V to StateSnapshot.LAST_SPIKE
+	 * @param dest: receives one little-endian float per model from position 0
+	 */
+	void readColumn(CLQueue queue, int column, ByteBuffer dest) {
+		if (column == StateSnapshot.I) {
+			dest.asFloatBuffer().put(I_in_Ptr.getFloats());
+			return;
+		}
+		if (column == StateSnapshot.LAST_SPIKE && !_lastSpikesLoaded) {
+			float[] never = new float[_elemCount];
+			Arrays.fill(never, Float.NEGATIVE_INFINITY);
+			dest.asFloatBuffer().put(never);
+			return;
+		}
+		getColumnBuffer(column).read(queue, pointerToBytes(dest).as(Float.class), true);
+		_bytesRead += _elemCount * 4L;
+		if (_context.getByteOrder() != ByteOrder.LITTLE_ENDIAN) {
+			StateSnapshot.swapFloats(dest);
+		}
+	}
+
+	/**
+	 * Loads one column of the state straight into its device buffer
+	 * 
+	 * @param queue: queue used for the transfer
+	 * @param column: StateSnapshot.V to StateSnapshot.LAST_SPIKE
+	 * @param src: one little-endian float per model from position 0, swapped
+	 *            in place for devices that are not little-endian
+	 */
+	void writeColumn(CLQueue queue, int column, ByteBuffer src) {
+		if (column == StateSnapshot.I) {
+			float[] currents = new float[_elemCount];
+			src.asFloatBuffer().get(currents);
+			I_in_Ptr.setFloats(currents);
+			write(I_in_Buffer, queue, I_in_Ptr, true);
+			_currentsChanged = false;
+			return;
+		}
+		if (_context.getByteOrder() != ByteOrder.LITTLE_ENDIAN) {
+			StateSnapshot.swapFloats(src);
+		}
+		write(getColumnBuffer(column), queue, pointerToBytes(src).as(Float.class), true);
+		if (column == StateSnapshot.LAST_SPIKE) {
+			_lastSpikesLoaded = true;
+		}
+	}
+
+	private CLBuffer<Float> getColumnBuffer(int column) {
+		switch (column) {
+		case StateSnapshot.V:
+			return V_in_Buffer;
+		case StateSnapshot.XN:
+			return x_n_in_Buffer;
+		case StateSnapshot.XM:
+			return x_m_in_Buffer;
+		case StateSnapshot.XH:
+			return x_h_in_Buffer;
+		case StateSnapshot.I:
+			return I_in_Buffer;
+		default:
+			return lastSpikes_Buffer;
+		}
+	}
+
+	/**
+	 * Uploads the inputs changed since the last upload, the integrated state
+	 * stays on the device
+	 * 
+	 * @param queue: queue used for the uploads
+	 */
+	void uploadChanges(CLQueue queue) {
+		if (_currentsChanged) {
+			write(I_in_Buffer, queue, I_in_Ptr, false);
+			_currentsChanged = false;
+		}
+		if (_stimuliChanged) {
+			uploadStimuli(queue);
+		}
+	}
+
+	/**
+	 * Uploads the per-neuron channel parameters changed since the last upload,
+	 * models without parameters of their own get the shared ones
+	 * 
+	 * @param queue: queue used for the upload
+	 * @param shared: the parameters shared by the run
+	 */
+	void uploadParameters(CLQueue queue, HHParameters shared) {
+		if (!_parametersChanged) {
+			return;
+		}
+		_channelsPerNeuron = false;
+		for (HHParameters parameters : _parameters) {
+			if (parameters != null) {
+				_channelsPerNeuron = true;
+				break;
+			}
+		}
+
+		if (_channelsPerNeuron) {
+			float[] rows = new float[_elemCount * CHANNEL_ROW];
+			for (int y = 0; y < _elemCount; y++) {
+				HHParameters p = _parameters[y] == null ? shared : _parameters[y];
+				int row = y * CHANNEL_ROW;
+				rows[row] = p.maxG_K;
+				rows[row + 1] = p.maxG_Na;
+				rows[row + 2] = p.maxG_Leak;
+				rows[row + 3] = p.E_K;
+				rows[row + 4] = p.E_Na;
+				rows[row + 5] = p.E_Leak;
+			}
+			if (channels_Buffer.getElementCount() < rows.length) {
+				channels_Buffer.release();
+				channels_Buffer = _context.createFloatBuffer(Usage.Input, rows.length);
+			}
+			Pointer<Float> rows_Ptr = allocateFloats(rows.length).order(_context.getByteOrder());
+			rows_Ptr.setFloats(rows);
+			write(channels_Buffer, queue, rows_Ptr, true);
+			rows_Ptr.release();
+		}
+		_parametersChanged = false;
+	}
+
+	/**
+	 * Packs the segments of all the stimuli, the segments buffer grows as
+	 * needed
+	 */
+	private void uploadStimuli(CLQueue queue) {
+		int[] offsets = new int[_elemCount + 1];
+		for (int y = 0; y < _elemCount; y++) {
+			offsets[y + 1] = offsets[y] + (_stimuli[y] == null ? 0 : _stimuli[y].getSegmentCount());
+		}
+		int segments = offsets[_elemCount];
+
+		ByteOrder byteOrder = _context.getByteOrder();
+		Pointer<Integer> offsets_Ptr = allocateInts(offsets.length).order(byteOrder);
+		offsets_Ptr.setInts(offsets);
+		write(stimulusOffsets_Buffer, queue, offsets_Ptr, true);
+		offsets_Ptr.release();
+
+		if (segments > 0) {
+			float[] values = new float[segments * Stimulus.SEGMENT_SIZE];
+			for (int y = 0; y < _elemCount; y++) {
+				if (_stimuli[y] != null) {
+					_stimuli[y].write(values, offsets[y] * Stimulus.SEGMENT_SIZE);
+				}
+			}
+			if (stimuli_Buffer.getElementCount() < values.length) {
+				stimuli_Buffer.release();
+				stimuli_Buffer = _context.createFloatBuffer(Usage.Input, values.length);
+			}
+			Pointer<Float> values_Ptr = allocateFloats(values.length).order(byteOrder);
+			values_Ptr.setFloats(values);
+			write(stimuli_Buffer, queue, values_Ptr, true);
+			values_Ptr.release();
+		}
+		_uploadedSegments = segments;
+		_stimuliChanged = false;
+	}
+
+	public void release() {
+		_output.release();
+
+		I_in_Buffer.release();
+		V_in_Buffer.release();
+		x_n_in_Buffer.release();
+		x_m_in_Buffer.release();
+		x_h_in_Buffer.release();
+		stimuli_Buffer.release();
+		stimulusOffsets_Buffer.release();
+		channels_Buffer.release();
+		lastSpikes_Buffer.release();
+		spikeNeurons_Buffer.release();
+		spikeTimes_Buffer.release();
+		spikeCount_Buffer.release();
+
+		spikeCount_Ptr.release();
+		I_in_Ptr.release();
+		V_in_Ptr.release();
+		x_n_in_Ptr.release();
+		x_m_in_Ptr.release();
+		x_h_in_Ptr.release();
+	}
+}
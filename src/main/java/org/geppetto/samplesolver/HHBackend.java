@@ -0,0 +1,88 @@
+package org.geppetto.samplesolver;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.geppetto.core.model.IModel;
+import org.geppetto.core.simulation.ITimeConfiguration;
+
+/**
+ * An engine integrating the Hodgkin Huxley equations for a population of
+ * neurons. Implementations must produce numerically matching traces.
+ */
+interface HHBackend {
+
+	String getName();
+
+	/**
+	 * Integrates the given models from their initial conditions
+	 * 
+	 * @param models: a list of models containing initial conditions
+	 * @param ids: ids of the models, in the same order
+	 * @param timeConfiguration: time configuration for this run
+	 * @param parameters: channel parameters
+	 * @return the sampled results
+	 */
+	HHResults solve(List<IModel> models, String[] ids, ITimeConfiguration timeConfiguration, HHParameters parameters);
+
+	/**
+	 * Creates a state loaded with the initial conditions of the given models,
+	 * owned by the caller
+	 */
+	NeuronState createState(List<IModel> models);
+
+	/**
+	 * Creates a state of the given number of models, owned by the caller,
+	 * whose columns are then loaded with writeColumn()
+	 */
+	NeuronState createState(int elemCount);
+
+	/**
+	 * Copies one column of a state, see {@link StateSnapshot}
+	 * 
+	 * @param state: a state created by this backend
+	 * @param column: StateSnapshot.V to StateSnapshot.LAST_SPIKE
+	 * @param dest: receives one little-endian float per model from position 0
+	 */
+	void readColumn(NeuronState state, int column, ByteBuffer dest);
+
+	/**
+	 * Loads one column of a state, see {@link StateSnapshot}
+	 * 
+	 * @param state: a state created by this backend
+	 * @param column: StateSnapshot.V to StateSnapshot.LAST_SPIKE
+	 * @param src: one little-endian float per model from position 0, may be
+	 *            modified
+	 */
+	void writeColumn(NeuronState state, int column, ByteBuffer src);
+
+	/**
+	 * Integrates one time window starting from the given state, which holds
+	 * the final state when this returns
+	 * 
+	 * @param state: a state created by this backend
+	 * @param ids: ids of the models being evaluated
+	 * @param timeConfiguration: time configuration for this window
+	 * @param parameters: channel parameters
+	 * @return the sampled results
+	 */
+	HHResults integrate(NeuronState state, String[] ids, ITimeConfiguration timeConfiguration, HHParameters parameters);
+
+	/**
+	 * Integrates the given models from their initial conditions one time
+	 * window after the other, passing each window to the listener as soon as
+	 * it is available. Memory use depends on the window size only.
+	 * 
+	 * @param models: a list of models containing initial conditions
+	 * @param ids: ids of the models, in the same order
+	 * @param timeWindows: the windows of the run
+	 * @param parameters: channel parameters
+	 * @param listener: receives the results of each window
+	 */
+	void stream(List<IModel> models, String[] ids, TimeWindows timeWindows, HHParameters parameters, SolveListener listener);
+
+	/**
+	 * Releases the resources held by this backend
+	 */
+	void release();
+}
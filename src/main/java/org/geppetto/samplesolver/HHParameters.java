@@ -0,0 +1,63 @@
+package org.geppetto.samplesolver;
+
+/**
+ * Channel parameters of the Hodgkin Huxley model. The solver uses one set
+ * shared by all the neurons of a run unless a neuron is given its own, see
+ * {@link ParameterSweep}.
+ */
+public class HHParameters {
+
+	// max conductances
+	final float maxG_K;
+	final float maxG_Na;
+	final float maxG_Leak;
+	// reverse potentials
+	final float E_K;
+	final float E_Na;
+	final float E_Leak;
+
+	/**
+	 * Creates the default parameters
+	 */
+	public HHParameters() {
+		this(36, 120, 0.3f, -12, 115, 10.613f);
+	}
+
+	public HHParameters(float maxG_K, float maxG_Na, float maxG_Leak, float E_K, float E_Na, float E_Leak) {
+		this.maxG_K = maxG_K;
+		this.maxG_Na = maxG_Na;
+		this.maxG_Leak = maxG_Leak;
+		this.E_K = E_K;
+		this.E_Na = E_Na;
+		this.E_Leak = E_Leak;
+	}
+
+	public float getMaxG_K() {
+		return maxG_K;
+	}
+
+	public float getMaxG_Na() {
+		return maxG_Na;
+	}
+
+	public float getMaxG_Leak() {
+		return maxG_Leak;
+	}
+
+	public float getE_K() {
+		return E_K;
+	}
+
+	public float getE_Na() {
+		return E_Na;
+	}
+
+	public float getE_Leak() {
+		return E_Leak;
+	}
+
+	@Override
+	public String toString() {
+		return "maxG_K=" + maxG_K + ", maxG_Na=" + maxG_Na + ", maxG_Leak=" + maxG_Leak + ", E_K=" + E_K + ", E_Na=" + E_Na + ", E_Leak=" + E_Leak;
+	}
+}
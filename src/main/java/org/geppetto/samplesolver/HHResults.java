@@ -0,0 +1,487 @@
+package org.geppetto.samplesolver;
+
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geppetto.core.model.HHModel;
+import org.geppetto.core.model.IModel;
+
+/**
+ * Columnar results of a solver run. Each variable is stored in a primitive
+ * float array in time-major order, i.e. all the models for the first sample,
+ * then all the models for the second sample and so on, which is the layout
+ * the kernel writes. Model-major access is available through per-model traces
+ * or a transposed copy of a whole column.
+ * 
+ * A column can also be kept in a 16-bit {@link StorageFormat}, its values are
+ * then decoded when they are accessed, or wrap the memory the kernel wrote
+ * the samples to, see {@link SolverConfiguration#setZeroCopy(boolean)}.
+ * 
+ * With steady state detection, see {@link SteadyState}, the trace of a model
+ * that settled is only stored up to its settled sample and is constant from
+ * there on. Single values are read from the settled sample, whole columns are
+ * filled in when they are first accessed.
+ */
+public class HHResults {
+
+	/**
+	 * Variables stored for each model and sample
+	 */
+	public enum Variable {
+		V, XN, XM, XH
+	}
+
+	private final String[] _ids;
+	private final int _noSamples;
+	// float[] or short[] columns in the format of the variable, or
+	// FloatBuffer and ShortBuffer views of zero-copy memory
+	private final Object[] _timeMajor;
+	private final StorageFormat[] _formats;
+	private final float[][] _decoded = new float[Variable.values().length][];
+	private final float[][] _modelMajor = new float[Variable.values().length][];
+	private final Spikes _spikes;
+	// sample each model is constant from, null without steady state
+	// detection, and whether the columns were filled in from it
+	private final int[] _settled;
+	private boolean _filled;
+
+	/**
+	 * @param ids: ids of the models, in the order they were passed to the solver
+	 * @param noSamples: number of samples stored for each model
+	 * @param v: V values, time-major
+	 * @param xn: xn values, time-major
+	 * @param xm: xm values, time-major
+	 * @param xh: xh values, time-major
+	 */
+	public HHResults(String[] ids, int noSamples, float[] v, float[] xn, float[] xm, float[] xh) {
+		this(ids, noSamples, v, xn, xm, xh, null);
+	}
+
+	/**
+	 * @param ids: ids of the models, in the order they were passed to the solver
+	 * @param noSamples: number of samples stored for each model
+	 * @param v: V values, time-major
+	 * @param xn: xn values, time-major
+	 * @param xm: xm values, time-major
+	 * @param xh: xh values, time-major
+	 * @param spikes: the spikes detected during the run, null if detection
+	 *            was off
+	 */
+	public HHResults(String[] ids, int noSamples, float[] v, float[] xn, float[] xm, float[] xh, Spikes spikes) {
+		this(ids, noSamples, new Object[] { v, xn, xm, xh }, new StorageFormat[] { StorageFormat.FLOAT, StorageFormat.FLOAT, StorageFormat.FLOAT, StorageFormat.FLOAT }, spikes);
+	}
+
+	/**
+	 * @param columns: the time-major column of each variable, in Variable
+	 *            order, float[] or short[] depending on its format
+	 * @param formats: the format of each column
+	 */
+	HHResults(String[] ids, int noSamples, Object[] columns, StorageFormat[] formats, Spikes spikes) {
+		this(ids, noSamples, columns, formats, spikes, null);
+	}
+
+	/**
+	 * @param settled: the sample each model is constant from, the values
+	 *            after it are not stored, null if steady state detection was
+	 *            off
+	 */
+	HHResults(String[] ids, int noSamples, Object[] columns, StorageFormat[] formats, Spikes spikes, int[] settled) {
+		_ids = ids;
+		_noSamples = noSamples;
+		_timeMajor = columns;
+		_formats = formats;
+		_spikes = spikes;
+		_settled = settled;
+		_filled = settled == null;
+	}
+
+	public int getModelCount() {
+		return _ids.length;
+	}
+
+	public int getSampleCount() {
+		return _noSamples;
+	}
+
+	public String getModelId(int model) {
+		return _ids[model];
+	}
+
+	/**
+	 * @return the format the values of a variable are stored in
+	 */
+	public StorageFormat getStorageFormat(Variable variable) {
+		return _formats[variable.ordinal()];
+	}
+
+	/**
+	 * @return the spikes detected during the run, null if spike detection
+	 *         was off, see {@link SpikeDetection}
+	 */
+	public Spikes getSpikes() {
+		return _spikes;
+	}
+
+	/**
+	 * @return the sample from which the trace of a model is constant, see
+	 *         {@link SteadyState}, getSampleCount() if it did not settle or
+	 *         detection was off
+	 */
+	public int getSettledSample(int model) {
+		return _settled == null ? _noSamples : _settled[model];
+	}
+
+	/**
+	 * @return the value of a variable for the given model and sample
+	 */
+	public float get(Variable variable, int model, int sample) {
+		return decode(variable, indexOf(model, sample));
+	}
+
+	/**
+	 * @return the time-major index of the value of a model at a sample, the
+	 *         settled sample for the samples after it
+	 */
+	private int indexOf(int model, int sample) {
+		if (_settled != null && sample > _settled[model]) {
+			sample = _settled[model];
+		}
+		return sample * _ids.length + model;
+	}
+
+	/**
+	 * Copies the settled sample of each model that settled to the samples
+	 * after it, in every column, so whole columns can be used as they are
+	 */
+	private synchronized void fillSettled() {
+		if (_filled) {
+			return;
+		}
+		int noModels = _ids.length;
+		for (int m = 0; m < noModels; m++) {
+			int settled = _settled[m];
+			for (int v = 0; v < _timeMajor.length; v++) {
+				for (int s = settled + 1; s < _noSamples; s++) {
+					copy(_timeMajor[v], settled * noModels + m, s * noModels + m);
+				}
+			}
+		}
+		_filled = true;
+	}
+
+	/**
+	 * Copies a stored value of a column to another index
+	 */
+	private static void copy(Object column, int from, int to) {
+		if (column instanceof float[]) {
+			((float[]) column)[to] = ((float[]) column)[from];
+		} else if (column instanceof short[]) {
+			((short[]) column)[to] = ((short[]) column)[from];
+		} else if (column instanceof FloatBuffer) {
+			((FloatBuffer) column).put(to, ((FloatBuffer) column).get(from));
+		} else {
+			((ShortBuffer) column).put(to, ((ShortBuffer) column).get(from));
+		}
+	}
+
+	/**
+	 * Returns the whole column of a variable in time-major order. The array
+	 * is not copied and must not be modified. A 16-bit or zero-copy column is
+	 * decoded to an array on first access and the array is cached.
+	 *
+	 * @param variable: the variable to return
+	 * @return values indexed by sample * getModelCount() + model
+	 */
+	public synchronized float[] getTimeMajor(Variable variable) {
+		float[] decoded = _decoded[variable.ordinal()];
+		if (decoded == null) {
+			fillSettled();
+			decoded = _formats[variable.ordinal()].decode(_timeMajor[variable.ordinal()], variable);
+			_decoded[variable.ordinal()] = decoded;
+		}
+		return decoded;
+	}
+
+	/**
+	 * @return the time-major column of a variable in its storage format,
+	 *         float[] or short[], not to be modified
+	 */
+	Object getStoredColumn(Variable variable) {
+		fillSettled();
+		return StorageFormat.toArray(_timeMajor[variable.ordinal()]);
+	}
+
+	/**
+	 * @return the value at the given time-major index of a column
+	 */
+	private float decode(Variable variable, int index) {
+		return _formats[variable.ordinal()].decode(_timeMajor[variable.ordinal()], index, variable);
+	}
+
+	/**
+	 * Returns the whole column of a variable in model-major order. The
+	 * transposed copy is built on first access and cached, it must not be
+	 * modified.
+	 *
+	 * @param variable: the variable to return
+	 * @return values indexed by model * getSampleCount() + sample
+	 */
+	public synchronized float[] getModelMajor(Variable variable) {
+		float[] modelMajor = _modelMajor[variable.ordinal()];
+		if (modelMajor == null) {
+			float[] timeMajor = getTimeMajor(variable);
+			int noModels = _ids.length;
+			modelMajor = new float[timeMajor.length];
+			for (int s = 0; s < _noSamples; s++) {
+				for (int m = 0; m < noModels; m++) {
+					modelMajor[m * _noSamples + s] = timeMajor[s * noModels + m];
+				}
+			}
+			_modelMajor[variable.ordinal()] = modelMajor;
+		}
+		return modelMajor;
+	}
+
+	/**
+	 * @return a copy of the values of a variable over time for one model
+	 */
+	public float[] getTrace(Variable variable, int model) {
+		float[] trace = new float[_noSamples];
+		for (int s = 0; s < _noSamples; s++) {
+			trace[s] = decode(variable, indexOf(model, s));
+		}
+		return trace;
+	}
+
+	/**
+	 * @return a copy of the values of a variable for all the models at one sample
+	 */
+	public float[] getSample(Variable variable, int sample) {
+		float[] sampleValues = new float[_ids.length];
+		for (int m = 0; m < _ids.length; m++) {
+			sampleValues[m] = decode(variable, indexOf(m, sample));
+		}
+		return sampleValues;
+	}
+
+	/**
+	 * Concatenates results of consecutive slices of a population integrated
+	 * separately over the same time window, in model order.
+	 * 
+	 * @param parts: the results of each slice, in model order
+	 * @return the results of the whole population
+	 */
+	public static HHResults concat(List<HHResults> parts) {
+		int noSamples = parts.get(0)._noSamples;
+		int noModels = 0;
+		for (HHResults part : parts) {
+			if (part._noSamples != noSamples) {
+				throw new IllegalArgumentException("Results with different number of samples: " + part._noSamples + " and " + noSamples);
+			}
+			noModels += part._ids.length;
+		}
+
+		String[] ids = new String[noModels];
+		StorageFormat[] formats = commonFormats(parts);
+		Object[] columns = allocate(formats, noModels * noSamples);
+		int offset = 0;
+		for (HHResults part : parts) {
+			int partModels = part._ids.length;
+			System.arraycopy(part._ids, 0, ids, offset, partModels);
+			for (int v = 0; v < columns.length; v++) {
+				Object column = part.getColumn(v, formats[v]);
+				for (int s = 0; s < noSamples; s++) {
+					System.arraycopy(column, s * partModels, columns[v], s * noModels + offset, partModels);
+				}
+			}
+			offset += partModels;
+		}
+		return new HHResults(ids, noSamples, columns, formats, concatSpikes(parts, true), concatSettled(parts));
+	}
+
+	/**
+	 * Concatenates results of consecutive time windows of the same models, in
+	 * time order.
+	 * 
+	 * @param windows: the results of each window, in time order
+	 * @return the results over all the windows
+	 */
+	public static HHResults concatSamples(List<HHResults> windows) {
+		String[] ids = windows.get(0)._ids;
+		int noSamples = 0;
+		for (HHResults window : windows) {
+			if (window._ids.length != ids.length) {
+				throw new IllegalArgumentException("Results with different number of models: " + window._ids.length + " and " + ids.length);
+			}
+			noSamples += window._noSamples;
+		}
+
+		// time-major columns of consecutive windows simply follow each other
+		StorageFormat[] formats = commonFormats(windows);
+		Object[] columns = allocate(formats, ids.length * noSamples);
+		int offset = 0;
+		for (HHResults window : windows) {
+			int length = window._noSamples * ids.length;
+			for (int v = 0; v < columns.length; v++) {
+				System.arraycopy(window.getColumn(v, formats[v]), 0, columns[v], offset, length);
+			}
+			offset += length;
+		}
+
+		// the last window tells which models end constant
+		HHResults last = windows.get(windows.size() - 1);
+		int[] settled = null;
+		if (last._settled != null) {
+			settled = new int[ids.length];
+			for (int m = 0; m < ids.length; m++) {
+				settled[m] = noSamples - last._noSamples + last._settled[m];
+			}
+		}
+		return new HHResults(ids, noSamples, columns, formats, concatSpikes(windows, false), settled);
+	}
+
+	/**
+	 * @return the format of each variable in all the parts, FLOAT for the
+	 *         variables stored in different formats
+	 */
+	private static StorageFormat[] commonFormats(List<HHResults> parts) {
+		StorageFormat[] formats = parts.get(0)._formats.clone();
+		for (HHResults part : parts) {
+			for (int v = 0; v < formats.length; v++) {
+				if (part._formats[v] != formats[v]) {
+					formats[v] = StorageFormat.FLOAT;
+				}
+			}
+		}
+		return formats;
+	}
+
+	private static Object[] allocate(StorageFormat[] formats, int length) {
+		Object[] columns = new Object[formats.length];
+		for (int v = 0; v < formats.length; v++) {
+			columns[v] = formats[v].allocate(length);
+		}
+		return columns;
+	}
+
+	/**
+	 * @return the column of a variable in the given format, decoded if it is
+	 *         stored in another one
+	 */
+	private Object getColumn(int variable, StorageFormat format) {
+		fillSettled();
+		return _formats[variable] == format ? StorageFormat.toArray(_timeMajor[variable]) : getTimeMajor(Variable.values()[variable]);
+	}
+
+	/**
+	 * @param byModel: true if the parts are slices of a population, false if
+	 *            they are time windows of the same population
+	 * @return the spikes of all the parts, null if they have none
+	 */
+	private static Spikes concatSpikes(List<HHResults> parts, boolean byModel) {
+		if (parts.get(0)._spikes == null) {
+			return null;
+		}
+		List<Spikes> spikes = new ArrayList<Spikes>(parts.size());
+		int[] sizes = new int[parts.size()];
+		for (int p = 0; p < sizes.length; p++) {
+			spikes.add(parts.get(p)._spikes);
+			sizes[p] = byModel ? parts.get(p)._ids.length : 0;
+		}
+		return Spikes.concat(spikes, sizes);
+	}
+
+	/**
+	 * @return the settled samples of all the parts, null if none has any
+	 */
+	private static int[] concatSettled(List<HHResults> parts) {
+		int noModels = 0;
+		boolean detected = false;
+		for (HHResults part : parts) {
+			noModels += part._ids.length;
+			detected |= part._settled != null;
+		}
+		if (!detected) {
+			return null;
+		}
+		int[] settled = new int[noModels];
+		int offset = 0;
+		for (HHResults part : parts) {
+			for (int m = 0; m < part._ids.length; m++) {
+				settled[offset + m] = part.getSettledSample(m);
+			}
+			offset += part._ids.length;
+		}
+		return settled;
+	}
+
+	/**
+	 * Extracts the results of a contiguous range of models, the inverse of
+	 * {@link #concat(List)}
+	 * 
+	 * @param from: index of the first model, included
+	 * @param to: index of the last model, excluded
+	 * @return the results of the models in [from, to)
+	 */
+	public HHResults slice(int from, int to) {
+		int noModels = _ids.length;
+		int sliceModels = to - from;
+		String[] ids = new String[sliceModels];
+		System.arraycopy(_ids, from, ids, 0, sliceModels);
+		Object[] columns = allocate(_formats, sliceModels * _noSamples);
+		fillSettled();
+		for (int v = 0; v < columns.length; v++) {
+			Object column = StorageFormat.toArray(_timeMajor[v]);
+			for (int s = 0; s < _noSamples; s++) {
+				System.arraycopy(column, s * noModels + from, columns[v], s * sliceModels, sliceModels);
+			}
+		}
+		int[] settled = null;
+		if (_settled != null) {
+			settled = new int[sliceModels];
+			System.arraycopy(_settled, from, settled, 0, sliceModels);
+		}
+		return new HHResults(ids, _noSamples, columns, _formats, _spikes == null ? null : _spikes.slice(from, to), settled);
+	}
+
+	/**
+	 * Adapter to the ISolver result format. The list of snapshots of a model
+	 * is only built when that model is first accessed.
+	 *
+	 * @return a list with, for each model, the list of its sampled snapshots
+	 */
+	public List<List<IModel>> asModels() {
+		return new AbstractList<List<IModel>>() {
+			private final List<?>[] _snapshots = new List<?>[_ids.length];
+
+			@SuppressWarnings("unchecked")
+			@Override
+			public List<IModel> get(int model) {
+				if (_snapshots[model] == null) {
+					List<IModel> snapshots = new ArrayList<IModel>(_noSamples);
+					for (int s = 0; s < _noSamples; s++) {
+						snapshots.add(toModel(model, s));
+					}
+					_snapshots[model] = snapshots;
+				}
+				return (List<IModel>) _snapshots[model];
+			}
+
+			@Override
+			public int size() {
+				return _ids.length;
+			}
+		};
+	}
+
+	/**
+	 * @return a new HHModel with the values of the given model and sample
+	 */
+	public HHModel toModel(int model, int sample) {
+		int i = indexOf(model, sample);
+		return new HHModel(_ids[model], decode(Variable.V, i), decode(Variable.XN, i), decode(Variable.XM, i), decode(Variable.XH, i), 0.0f);
+	}
+}
@@ -0,0 +1,155 @@
+package org.geppetto.samplesolver;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+import org.geppetto.core.simulation.ITimeConfiguration;
+
+/**
+ * A simulation continued over consecutive time windows. V, x_n, x_m and x_h
+ * stay in the backend between windows (in device buffers for OpenCL), each
+ * window starts from the final state of the previous one and only changed
+ * inputs, such as a new external current, are uploaded. Instances are created
+ * by {@link SampleSolverService#startSimulation(java.util.List)} or restored
+ * from a checkpoint, and are not meant to be shared between threads.
+ */
+public class HHSimulation {
+
+	private final HHBackend _backend;
+	private final String[] _ids;
+	private final HHParameters _parameters;
+	private NeuronState _state;
+
+	HHSimulation(HHBackend backend, NeuronState state, String[] ids, HHParameters parameters) {
+		_backend = backend;
+		_state = state;
+		_ids = ids;
+		_parameters = parameters;
+	}
+
+	public int getModelCount() {
+		return _ids.length;
+	}
+
+	/**
+	 * Changes the external current of a model from the next window on
+	 * 
+	 * @param model: index of the model, in the order models were given
+	 * @param I: the new external current
+	 */
+	public void setI(int model, float I) {
+		checkOpen();
+		_state.setI(model, I);
+	}
+
+	public float getI(int model) {
+		checkOpen();
+		return _state.getI(model);
+	}
+
+	/**
+	 * Changes the stimulus of a model from the next window on. Stimulus times
+	 * count from the start of the simulation, see {@link #getTime()}.
+	 * 
+	 * @param model: index of the model, in the order models were given
+	 * @param stimulus: the stimulus, null for none
+	 */
+	public void setStimulus(int model, Stimulus stimulus) {
+		checkOpen();
+		_state.setStimulus(model, stimulus);
+	}
+
+	public Stimulus getStimulus(int model) {
+		checkOpen();
+		return _state.getStimulus(model);
+	}
+
+	/**
+	 * Gives a model its own channel parameters from the next window on
+	 * 
+	 * @param model: index of the model, in the order models were given
+	 * @param parameters: the parameters, null to use the shared ones
+	 */
+	public void setParameters(int model, HHParameters parameters) {
+		checkOpen();
+		_state.setParameters(model, parameters);
+	}
+
+	public HHParameters getParameters(int model) {
+		checkOpen();
+		return _state.getParameters(model);
+	}
+
+	/**
+	 * Turns spike detection on or off from the next window on, the spikes of
+	 * each window are returned with its results, see
+	 * {@link HHResults#getSpikes()}. The refractory period carries over
+	 * consecutive windows.
+	 * 
+	 * @param detection: threshold and refractory period, null for none
+	 */
+	public void setSpikeDetection(SpikeDetection detection) {
+		checkOpen();
+		_state.setSpikeDetection(detection);
+	}
+
+	public SpikeDetection getSpikeDetection() {
+		checkOpen();
+		return _state.getSpikeDetection();
+	}
+
+	/**
+	 * @return the simulated time in ms at the end of the last window
+	 */
+	public double getTime() {
+		checkOpen();
+		return _state.getTime();
+	}
+
+	/**
+	 * Integrates the next time window
+	 * 
+	 * @param timeConfiguration: time configuration for this window
+	 * @return the sampled results of this window
+	 * @throws IllegalStateException if the simulation is closed
+	 * @throws RuntimeException if the backend fails, the simulation should
+	 *             then be closed
+	 */
+	public HHResults advance(ITimeConfiguration timeConfiguration) {
+		checkOpen();
+		return _backend.integrate(_state, _ids, timeConfiguration, _parameters);
+	}
+
+	/**
+	 * Writes the full state of the simulation to a binary snapshot: V, x_n,
+	 * x_m, x_h, external current, stimulus and channel parameters of every
+	 * model, the spike detection and the simulated time. The columns are
+	 * copied straight from the backend buffers, see {@link StateSnapshot}.
+	 * The simulation goes on unchanged, the snapshot can be restored with
+	 * {@link SampleSolverService#restoreSimulation} in this or another
+	 * process.
+	 * 
+	 * @param channel: channel the snapshot is written to, left open
+	 * @throws IOException if the channel can't be written
+	 */
+	public void checkpoint(WritableByteChannel channel) throws IOException {
+		checkOpen();
+		StateSnapshot.write(channel, _backend, _state, _ids, _parameters);
+	}
+
+	/**
+	 * Releases the resources held for this simulation
+	 */
+	public void close() {
+		if (_state != null) {
+			_state.release();
+			_state = null;
+		}
+	}
+
+	private void checkOpen() {
+		if (_state == null) {
+			throw new IllegalStateException("Simulation already closed");
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package org.geppetto.samplesolver;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.geppetto.core.model.HHModel;
+import org.geppetto.core.model.IModel;
+
+/**
+ * Per-neuron state of a population kept in heap arrays, one array per
+ * variable, used by the Java backend.
+ */
+class HostState implements NeuronState {
+
+	final float[] I;
+	final float[] V;
+	final float[] x_n;
+	final float[] x_m;
+	final float[] x_h;
+	final Stimulus[] stimuli;
+	// per-neuron channel parameters, null entries use the shared ones
+	final HHParameters[] parameters;
+	// time of the last spike of each neuron, for the refractory period
+	final float[] lastSpikes;
+	SpikeDetection spikeDetection;
+	double time;
+
+	/**
+	 * Creates a state loaded with the initial conditions of the given models
+	 */
+	HostState(List<IModel> models) {
+		this(models.size());
+		for (int y = 0; y < models.size(); y++) {
+			HHModel model = (HHModel) models.get(y);
+			V[y] = model.getV();
+			x_n[y] = model.getXn();
+			x_m[y] = model.getXm();
+			x_h[y] = model.getXh();
+			I[y] = model.getI();
+		}
+	}
+
+	/**
+	 * Creates a state of the given number of models, all values 0
+	 */
+	HostState(int elemCount) {
+		I = new float[elemCount];
+		V = new float[elemCount];
+		x_n = new float[elemCount];
+		x_m = new float[elemCount];
+		x_h = new float[elemCount];
+		stimuli = new Stimulus[elemCount];
+		parameters = new HHParameters[elemCount];
+		lastSpikes = new float[elemCount];
+		Arrays.fill(lastSpikes, Float.NEGATIVE_INFINITY);
+	}
+
+	public int getElemCount() {
+		return V.length;
+	}
+
+	public void setI(int model, float I) {
+		this.I[model] = I;
+	}
+
+	public float getI(int model) {
+		return I[model];
+	}
+
+	public void setStimulus(int model, Stimulus stimulus) {
+		stimuli[model] = stimulus;
+	}
+
+	public Stimulus getStimulus(int model) {
+		return stimuli[model];
+	}
+
+	public void setParameters(int model, HHParameters parameters) {
+		this.parameters[model] = parameters;
+	}
+
+	public HHParameters getParameters(int model) {
+		return parameters[model];
+	}
+
+	public void setSpikeDetection(SpikeDetection detection) {
+		spikeDetection = detection;
+	}
+
+	public SpikeDetection getSpikeDetection() {
+		return spikeDetection;
+	}
+
+	public double getTime() {
+		return time;
+	}
+
+	public void setTime(double time) {
+		this.time = time;
+	}
+
+	/**
+	 * @return the array holding a column of a snapshot, see StateSnapshot
+	 */
+	float[] getColumn(int column) {
+		switch (column) {
+		case StateSnapshot.V:
+			return V;
+		case StateSnapshot.XN:
+			return x_n;
+		case StateSnapshot.XM:
+			return x_m;
+		case StateSnapshot.XH:
+			return x_h;
+		case StateSnapshot.I:
+			return I;
+		default:
+			return lastSpikes;
+		}
+	}
+
+	public void release() {
+		// nothing to release, arrays are garbage collected
+	}
+}
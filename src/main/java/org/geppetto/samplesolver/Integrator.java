@@ -0,0 +1,43 @@
+package org.geppetto.samplesolver;
+
+/**
+ * Integration schemes of the HH equations. Except for EULER, each scheme has
+ * its own kernel entry point, EULER runs the kernel of the selected
+ * {@link KernelVariant}.
+ */
+public enum Integrator {
+	/**
+	 * Forward Euler for the gating variables and V, needs dt of about 0.01 ms
+	 */
+	EULER(null),
+	/**
+	 * Exponential (Rush-Larsen) step for the gating variables, then for V with
+	 * the new gates. First order but stable at any dt, at 0.1 ms it is about
+	 * as accurate as EULER at 0.01 ms.
+	 */
+	RUSH_LARSEN("IntegrateHHStepRushLarsen"),
+	/**
+	 * Second order Rush-Larsen: the exponential steps use the rates and
+	 * conductances of a half step to the midpoint. Stable at any dt, twice the
+	 * cost of RUSH_LARSEN.
+	 */
+	RUSH_LARSEN_RK2("IntegrateHHStepRushLarsenRK2"),
+	/**
+	 * Classic fourth order Runge-Kutta on V and the gating variables together,
+	 * the most accurate up to 0.05 ms but unstable at 0.1 ms
+	 */
+	RK4("IntegrateHHStepRK4");
+
+	private final String _kernelName;
+
+	private Integrator(String kernelName) {
+		_kernelName = kernelName;
+	}
+
+	/**
+	 * @return the kernel entry point of this scheme, null for EULER
+	 */
+	public String getKernelName() {
+		return _kernelName;
+	}
+}
@@ -0,0 +1,463 @@
+package org.geppetto.samplesolver;
+
+import static java.lang.System.nanoTime;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geppetto.core.model.IModel;
+import org.geppetto.core.simulation.ITimeConfiguration;
+import org.geppetto.samplesolver.HHResults.Variable;
+
+/**
+ * Backend integrating the Hodgkin Huxley equations in plain Java, used when
+ * no OpenCL device is available. It is a port of the integration kernels
+ * working on one array per variable, the population is split in contiguous
+ * slices integrated in parallel on all the available cores.
+ */
+class JavaBackend implements HHBackend {
+
+	private static final Log _logger = LogFactory.getLog(JavaBackend.class);
+
+	// smallest number of neurons worth a task of its own
+	private static final int MIN_SLICE = 64;
+
+	private final int _threads;
+	private final Integrator _integrator;
+	private final RateTable _rateTable;
+	private final StorageFormat[] _storageFormats;
+	private final SteadyState _steadyState;
+	private final ExecutorService _executor;
+	private final SolverMetrics _metrics;
+
+	JavaBackend(SolverConfiguration configuration, SolverMetrics metrics) {
+		this(Runtime.getRuntime().availableProcessors(), configuration, metrics);
+	}
+
+	JavaBackend(int threads, SolverConfiguration configuration, SolverMetrics metrics) {
+		_threads = threads;
+		_metrics = metrics;
+		_integrator = configuration.getIntegrator();
+		_rateTable = configuration.createRateTable();
+		_storageFormats = configuration.getStorageFormats();
+		_steadyState = configuration.getSteadyState();
+		if (_rateTable != null) {
+			_logger.debug("Rate table: " + _rateTable);
+		}
+		_executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("HH-Java-Backend"));
+	}
+
+	public String getName() {
+		return "Java (" + _threads + " threads)";
+	}
+
+	public HHResults solve(List<IModel> models, String[] ids, ITimeConfiguration timeConfiguration, HHParameters parameters) {
+		return integrate(createState(models), ids, timeConfiguration, parameters);
+	}
+
+	public void stream(List<IModel> models, String[] ids, TimeWindows timeWindows, HHParameters parameters, SolveListener listener) {
+		timeWindows.stream(this, models, ids, parameters, listener);
+	}
+
+	public NeuronState createState(List<IModel> models) {
+		return new HostState(models);
+	}
+
+	public NeuronState createState(int elemCount) {
+		return new HostState(elemCount);
+	}
+
+	public void readColumn(NeuronState state, int column, ByteBuffer dest) {
+		dest.asFloatBuffer().put(((HostState) state).getColumn(column));
+	}
+
+	public void writeColumn(NeuronState state, int column, ByteBuffer src) {
+		src.asFloatBuffer().get(((HostState) state).getColumn(column));
+	}
+
+	public HHResults integrate(NeuronState state, String[] ids, ITimeConfiguration timeConfiguration, HHParameters parameters) {
+		final HostState hostState = (HostState) state;
+		final int elemCount = hostState.getElemCount();
+		final float dt = timeConfiguration.getTimeStepLength();
+		final int steps = timeConfiguration.getTimeSteps();
+		final int samplePeriod = timeConfiguration.getSamplePeriod();
+		final HHParameters p = parameters;
+		final Integrator integrator = _integrator;
+		final float t0 = (float) hostState.time;
+		final RateTable rateTable = _rateTable;
+		final SteadyState steadyState = _steadyState;
+
+		long compuTime = nanoTime();
+
+		int samples = steps / samplePeriod;
+		final float[] V_results = new float[elemCount * samples];
+		final float[] Xn_results = new float[elemCount * samples];
+		final float[] Xm_results = new float[elemCount * samples];
+		final float[] Xh_results = new float[elemCount * samples];
+		final int[] settled = steadyState == null ? null : new int[elemCount];
+
+		// split the population in one slice per thread
+		int slices = Math.max(1, Math.min(_threads, elemCount / MIN_SLICE));
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(slices);
+		List<SpikeRecorder> recorders = new ArrayList<SpikeRecorder>(slices);
+		for (int s = 0; s < slices; s++) {
+			final int from = (int) ((long) elemCount * s / slices);
+			final int to = (int) ((long) elemCount * (s + 1) / slices);
+			final SpikeRecorder spikes = hostState.spikeDetection == null ? null : new SpikeRecorder(hostState.spikeDetection);
+			recorders.add(spikes);
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					Step step = createStep(integrator, rateTable);
+					integrateSlice(step, from, to, elemCount, t0, dt, steps, samplePeriod, p, hostState, spikes, steadyState, settled, V_results, Xn_results, Xm_results, Xh_results);
+					return null;
+				}
+			});
+		}
+
+		try {
+			if (slices == 1) {
+				tasks.get(0).call();
+			} else {
+				for (Future<Object> future : _executor.invokeAll(tasks)) {
+					future.get();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Integration interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Integration failed", e.getCause());
+		} catch (Exception e) {
+			throw new IllegalStateException("Integration failed", e);
+		}
+
+		hostState.time += (double) dt * steps;
+
+		_metrics.recordKernel(nanoTime() - compuTime, (long) elemCount * steps);
+
+		Spikes spikes = hostState.spikeDetection == null ? null : SpikeRecorder.merge(recorders);
+		// stored in the configured formats, as the kernel does
+		float[][] results = { V_results, Xn_results, Xm_results, Xh_results };
+		Object[] columns = new Object[results.length];
+		for (Variable variable : Variable.values()) {
+			columns[variable.ordinal()] = _storageFormats[variable.ordinal()].encode(results[variable.ordinal()], variable);
+		}
+		return new HHResults(ids, samples, columns, _storageFormats, spikes, settled);
+	}
+
+	public void release() {
+		_executor.shutdownNow();
+	}
+
+	/**
+	 * Integrates the neurons in [from, to) with the given step, the state of
+	 * each neuron is kept for the whole loop. Spike detection, steady state
+	 * detection and sampling are the same for all the schemes.
+	 */
+	static void integrateSlice(Step step, int from, int to, int numElements, float t0, float dt, int steps, int samplePeriod, HHParameters shared, HostState state, SpikeRecorder spikes,
+			SteadyState steadyState, int[] settled, float[] V_results, float[] Xn_results, float[] Xm_results, float[] Xh_results) {
+		// V, x_n, x_m and x_h of the current neuron
+		float[] y = new float[4];
+
+		for (int i = from; i < to; i++) {
+			HHParameters p = state.parameters[i] == null ? shared : state.parameters[i];
+			y[0] = state.V[i];
+			y[1] = state.x_n[i];
+			y[2] = state.x_m[i];
+			y[3] = state.x_h[i];
+			float I_base = state.I[i];
+			Stimulus stimulus = state.stimuli[i];
+			float lastSpike = state.lastSpikes[i];
+			// steady state detection, off for neurons with a stimulus
+			int hold = steadyState == null || stimulus != null ? 0 : steadyState.getHoldSteps(dt);
+			int steadySteps = 0;
+			int settledSample = steps / samplePeriod;
+
+			for (int t = 0; t < steps; t++) {
+				float I_ext = stimulus == null ? I_base : I_base + stimulus.current(t0 + t * dt);
+				float V_prev = y[0], x_n_prev = y[1], x_m_prev = y[2], x_h_prev = y[3];
+				step.advance(y, I_ext, dt, p);
+				float V = y[0], x_n = y[1], x_m = y[2], x_h = y[3];
+
+				if (spikes != null) {
+					lastSpike = spikes.detect(i, V_prev, V, t0 + t * dt, dt, lastSpike);
+				}
+				if (hold > 0) {
+					if (steadyState.isSteady(V - V_prev, x_n - x_n_prev, x_m - x_m_prev, x_h - x_h_prev, dt)) {
+						if (++steadySteps >= hold) {
+							settledSample = settle(i, t, numElements, steps, samplePeriod, V, x_n, x_m, x_h, V_results, Xn_results, Xm_results, Xh_results);
+							break;
+						}
+					} else {
+						steadySteps = 0;
+					}
+				}
+
+				// store results only for sampled steps
+				if ((t + 1) % samplePeriod == 0) {
+					int index = i + ((t + 1) / samplePeriod - 1) * numElements;
+					V_results[index] = V;
+					Xn_results[index] = x_n;
+					Xm_results[index] = x_m;
+					Xh_results[index] = x_h;
+				}
+			}
+
+			if (settled != null) {
+				settled[i] = settledSample;
+			}
+			state.lastSpikes[i] = lastSpike;
+			state.V[i] = y[0];
+			state.x_n[i] = y[1];
+			state.x_m[i] = y[2];
+			state.x_h[i] = y[3];
+		}
+	}
+
+	/**
+	 * @return a step of the rate table if there is one, of the integrator
+	 *         otherwise, with scratch arrays of its own
+	 */
+	static Step createStep(Integrator integrator, RateTable rateTable) {
+		if (rateTable != null) {
+			return new TableStep(rateTable);
+		}
+		return integrator == Integrator.EULER ? new EulerStep() : new SchemeStep(integrator);
+	}
+
+	/**
+	 * Advances one neuron by one time step, the part of the slice loop that
+	 * differs between the integration schemes. Steps hold the scratch arrays
+	 * of one slice and are not shared between threads.
+	 */
+	abstract static class Step {
+
+		/**
+		 * @param y: V, x_n, x_m and x_h, advanced in place
+		 * @param I: the external current during the step
+		 */
+		abstract void advance(float[] y, float I, float dt, HHParameters p);
+	}
+
+	/**
+	 * Forward Euler with the rates computed at every step, same math as the
+	 * IntegrateHHStep kernel
+	 */
+	static class EulerStep extends Step {
+
+		void advance(float[] y, float I_ext, float dt, HHParameters p) {
+			float V = y[0];
+			float x_n = y[1];
+			float x_m = y[2];
+			float x_h = y[3];
+
+			// alpha functions
+			float alpha_n = (10 - V) / (100 * ((float) Math.exp((10 - V) / 10) - 1));
+			float alpha_m = (25 - V) / (10 * ((float) Math.exp((25 - V) / 10) - 1));
+			float alpha_h = 0.07f * (float) Math.exp(-V / 20);
+			// beta functions
+			float beta_n = 0.125f * (float) Math.exp(-V / 80);
+			float beta_m = 4 * (float) Math.exp(-V / 18);
+			float beta_h = 1 / ((float) Math.exp((30 - V) / 10) + 1);
+
+			// calculate tau and x0 with alpha and beta
+			float tau_n = 1.0f / (alpha_n + beta_n);
+			float tau_m = 1.0f / (alpha_m + beta_m);
+			float tau_h = 1.0f / (alpha_h + beta_h);
+
+			// leaky integration for Xs with eurler's method
+			x_n = (1 - dt / tau_n) * x_n + dt / tau_n * (alpha_n * tau_n);
+			x_m = (1 - dt / tau_m) * x_m + dt / tau_m * (alpha_m * tau_m);
+			x_h = (1 - dt / tau_h) * x_h + dt / tau_h * (alpha_h * tau_h);
+
+			// calculate conductances for n, m, h
+			float g_K = p.maxG_K * x_n * x_n * x_n * x_n;
+			float g_Na = p.maxG_Na * x_m * x_m * x_m * x_h;
+
+			// calculate current with Ohm's law and update voltage membrane
+			float I = g_K * (V - p.E_K) + g_Na * (V - p.E_Na) + p.maxG_Leak * (V - p.E_Leak);
+			y[0] = V + dt * (I_ext - I);
+			y[1] = x_n;
+			y[2] = x_m;
+			y[3] = x_h;
+		}
+	}
+
+	/**
+	 * Forward Euler with the gate rates read from a rate table, same math as
+	 * the IntegrateHHStepTable kernel
+	 */
+	static class TableStep extends Step {
+
+		private final RateTable _rateTable;
+		private final float[] _r = new float[6];
+		private final float[] _row = new float[6];
+
+		TableStep(RateTable rateTable) {
+			_rateTable = rateTable;
+		}
+
+		void advance(float[] y, float I, float dt, HHParameters p) {
+			float[] row = _row;
+			// x0 then 1/tau of n, m and h
+			_rateTable.lookup(y[0], _r, row);
+			y[1] += dt * row[3] * (row[0] - y[1]);
+			y[2] += dt * row[4] * (row[1] - y[2]);
+			y[3] += dt * row[5] * (row[2] - y[3]);
+			y[0] += dt * (I - ionicCurrent(y[0], y[1], y[2], y[3], p));
+		}
+	}
+
+	/**
+	 * The exponential (Rush-Larsen) or RK4 schemes, same math as
+	 * integrateNeuronScheme in the kernel sources
+	 */
+	static class SchemeStep extends Step {
+
+		private final Integrator _integrator;
+		private final float[] _r = new float[6];
+		private final float[] _k1 = new float[4];
+		private final float[] _k2 = new float[4];
+		private final float[] _k3 = new float[4];
+		private final float[] _k4 = new float[4];
+
+		SchemeStep(Integrator integrator) {
+			_integrator = integrator;
+		}
+
+		void advance(float[] y, float I, float dt, HHParameters p) {
+			float V = y[0];
+			float x_n = y[1];
+			float x_m = y[2];
+			float x_h = y[3];
+			float[] r = _r;
+			if (_integrator == Integrator.RK4) {
+				float[] k1 = _k1, k2 = _k2, k3 = _k3, k4 = _k4;
+				derivatives(V, x_n, x_m, x_h, I, p, r, k1);
+				derivatives(V + 0.5f * dt * k1[0], x_n + 0.5f * dt * k1[1], x_m + 0.5f * dt * k1[2], x_h + 0.5f * dt * k1[3], I, p, r, k2);
+				derivatives(V + 0.5f * dt * k2[0], x_n + 0.5f * dt * k2[1], x_m + 0.5f * dt * k2[2], x_h + 0.5f * dt * k2[3], I, p, r, k3);
+				derivatives(V + dt * k3[0], x_n + dt * k3[1], x_m + dt * k3[2], x_h + dt * k3[3], I, p, r, k4);
+				V += dt / 6 * (k1[0] + 2 * k2[0] + 2 * k3[0] + k4[0]);
+				x_n += dt / 6 * (k1[1] + 2 * k2[1] + 2 * k3[1] + k4[1]);
+				x_m += dt / 6 * (k1[2] + 2 * k2[2] + 2 * k3[2] + k4[2]);
+				x_h += dt / 6 * (k1[3] + 2 * k2[3] + 2 * k3[3] + k4[3]);
+			} else {
+				rates(V, r);
+				float g_n = x_n, g_m = x_m, g_h = x_h;
+				if (_integrator == Integrator.RUSH_LARSEN_RK2) {
+					// half step to the midpoint, whose rates and
+					// conductances are then used for the full step
+					g_n = rushLarsen(x_n, r[0], r[3], 0.5f * dt);
+					g_m = rushLarsen(x_m, r[1], r[4], 0.5f * dt);
+					g_h = rushLarsen(x_h, r[2], r[5], 0.5f * dt);
+					rates(exponentialV(V, g_n, g_m, g_h, I, 0.5f * dt, p), r);
+				}
+				// exact exponential steps of the gates with V frozen, then
+				// of V with the gates frozen
+				x_n = rushLarsen(x_n, r[0], r[3], dt);
+				x_m = rushLarsen(x_m, r[1], r[4], dt);
+				x_h = rushLarsen(x_h, r[2], r[5], dt);
+				if (_integrator == Integrator.RUSH_LARSEN) {
+					g_n = x_n;
+					g_m = x_m;
+					g_h = x_h;
+				}
+				V = exponentialV(V, g_n, g_m, g_h, I, dt, p);
+			}
+			y[0] = V;
+			y[1] = x_n;
+			y[2] = x_m;
+			y[3] = x_h;
+		}
+	}
+
+	/**
+	 * Stores the state of a neuron that settled at step t as the next sample,
+	 * from which its trace is constant, as CHECK_STEADY in the kernel sources
+	 * 
+	 * @return the index of that sample, the number of samples if none is left
+	 */
+	static int settle(int i, int t, int numElements, int steps, int samplePeriod, float V, float x_n, float x_m, float x_h,
+			float[] V_results, float[] Xn_results, float[] Xm_results, float[] Xh_results) {
+		int sample = t / samplePeriod;
+		if (sample < steps / samplePeriod) {
+			int index = i + sample * numElements;
+			V_results[index] = V;
+			Xn_results[index] = x_n;
+			Xm_results[index] = x_m;
+			Xh_results[index] = x_h;
+		}
+		return Math.min(sample, steps / samplePeriod);
+	}
+
+	/**
+	 * Alpha and beta rate functions of V
+	 * 
+	 * @param r: receives alpha n, m, h then beta n, m, h
+	 */
+	static void rates(float V, float[] r) {
+		float e10 = (float) Math.exp(-V / 10);
+		r[0] = (10 - V) / (100 * (2.7182818f * e10 - 1));
+		r[1] = (25 - V) / (10 * (12.182494f * e10 - 1));
+		r[2] = 0.07f * (float) Math.sqrt(e10);
+		r[3] = 0.125f * (float) Math.exp(-V / 80);
+		r[4] = 4 * (float) Math.exp(-V / 18);
+		r[5] = 1 / (20.085537f * e10 + 1);
+	}
+
+	/**
+	 * @return the sum of the K, Na and leak currents
+	 */
+	static float ionicCurrent(float V, float x_n, float x_m, float x_h, HHParameters p) {
+		float x_n2 = x_n * x_n;
+		return p.maxG_K * x_n2 * x_n2 * (V - p.E_K) + p.maxG_Na * x_m * x_m * x_m * x_h * (V - p.E_Na) + p.maxG_Leak * (V - p.E_Leak);
+	}
+
+	/**
+	 * @return V after an exact step of dt with the gates held constant, the
+	 *         membrane equation is then linear in V; with no conductance open
+	 *         it only integrates I
+	 */
+	static float exponentialV(float V, float x_n, float x_m, float x_h, float I, float dt, HHParameters p) {
+		float x_n2 = x_n * x_n;
+		float g_K = p.maxG_K * x_n2 * x_n2;
+		float g_Na = p.maxG_Na * x_m * x_m * x_m * x_h;
+		float g = g_K + g_Na + p.maxG_Leak;
+		if (g == 0) {
+			return V + dt * I;
+		}
+		float V_inf = (I + g_K * p.E_K + g_Na * p.E_Na + p.maxG_Leak * p.E_Leak) / g;
+		return V_inf + (V - V_inf) * (float) Math.exp(-dt * g);
+	}
+
+	/**
+	 * @return the gating variable after an exact step of dt with constant rates
+	 */
+	static float rushLarsen(float x, float alpha, float beta, float dt) {
+		float rate = alpha + beta;
+		float x_inf = alpha / rate;
+		return x_inf + (x - x_inf) * (float) Math.exp(-dt * rate);
+	}
+
+	/**
+	 * Time derivatives of V, x_n, x_m and x_h
+	 * 
+	 * @param r: scratch array for the rates
+	 * @param d: receives the derivatives
+	 */
+	static void derivatives(float V, float x_n, float x_m, float x_h, float I, HHParameters p, float[] r, float[] d) {
+		rates(V, r);
+		d[0] = I - ionicCurrent(V, x_n, x_m, x_h, p);
+		d[1] = r[0] - (r[0] + r[3]) * x_n;
+		d[2] = r[1] - (r[1] + r[4]) * x_m;
+		d[3] = r[2] - (r[2] + r[5]) * x_h;
+	}
+}
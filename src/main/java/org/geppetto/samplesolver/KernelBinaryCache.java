@@ -0,0 +1,209 @@
+package org.geppetto.samplesolver;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.nativelibs4java.opencl.CLContext;
+import com.nativelibs4java.opencl.CLDevice;
+import com.nativelibs4java.opencl.CLPlatform;
+import com.nativelibs4java.opencl.CLProgram;
+
+/**
+ * Compiled kernel binaries persisted in a directory, so that programs are not
+ * built from source again after a restart. Binaries are keyed by a hash of
+ * the kernel sources, the build options, the device and its driver, a
+ * directory can be shared by nodes with different hardware. Each file
+ * stores its full key, a file whose key doesn't match or whose binary the
+ * driver rejects is replaced by a build from source. Hits and misses are
+ * counted in the {@link SolverMetrics}.
+ */
+class KernelBinaryCache {
+
+	private static final Log _logger = LogFactory.getLog(KernelBinaryCache.class);
+
+	private static final int MAGIC = 0x48484b42;
+	private static final int VERSION = 1;
+
+	private final File _directory;
+	private final SolverMetrics _metrics;
+
+	/**
+	 * @param directory: the directory binaries are stored in, created on
+	 *            first store
+	 * @param metrics: counts the hits and misses
+	 */
+	KernelBinaryCache(File directory, SolverMetrics metrics) {
+		_directory = directory;
+		_metrics = metrics;
+	}
+
+	/**
+	 * Returns the program of the given sources and macros built for the
+	 * device of the context, from the cached binary if there is a valid one.
+	 * Programs built from source are stored.
+	 * 
+	 * @param macros: macros defined when building, in a stable order
+	 * @return the built program
+	 */
+	CLProgram build(CLContext context, String source, Map<String, String> macros) {
+		CLDevice device = context.getDevices()[0];
+		String key = getKey(device, source, macros);
+		File file = new File(_directory, hash(key) + ".bin");
+
+		byte[] binary = load(file, key);
+		if (binary != null) {
+			CLProgram program = null;
+			try {
+				program = context.createProgram(Collections.singletonMap(device, binary), source);
+				defineMacros(program, macros);
+				program.build();
+				_metrics.addKernelCacheHit();
+				_logger.debug("Kernel binary loaded from " + file);
+				return program;
+			} catch (RuntimeException e) {
+				_metrics.addKernelCacheRejection();
+				_logger.warn("Cached kernel binary " + file + " rejected, building from source: " + e);
+				if (program != null) {
+					program.release();
+				}
+				file.delete();
+			}
+		}
+
+		CLProgram program = context.createProgram(source);
+		defineMacros(program, macros);
+		program.build();
+		_metrics.addKernelCacheMiss();
+		try {
+			store(file, key, program.getBinaries().get(device));
+		} catch (RuntimeException e) {
+			_logger.warn("Could not get the kernel binary: " + e);
+		}
+		return program;
+	}
+
+	static void defineMacros(CLProgram program, Map<String, String> macros) {
+		for (Map.Entry<String, String> macro : macros.entrySet()) {
+			program.defineMacro(macro.getKey(), macro.getValue());
+		}
+	}
+
+	/**
+	 * @return the binary stored in the file for the key, or null if there is
+	 *         none or it was stored for another key
+	 */
+	private byte[] load(File file, String key) {
+		if (!file.isFile()) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(file));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || !key.equals(in.readUTF())) {
+				_metrics.addKernelCacheRejection();
+				_logger.info("Stale kernel binary " + file);
+				return null;
+			}
+			byte[] binary = new byte[in.readInt()];
+			in.readFully(binary);
+			return binary;
+		} catch (IOException e) {
+			_logger.warn("Could not read kernel binary from " + file + ": " + e);
+			return null;
+		} finally {
+			close(in);
+		}
+	}
+
+	/**
+	 * Writes the binary to a temporary file renamed over the cached one, so
+	 * that nodes sharing the directory never read a partial file
+	 */
+	private void store(File file, String key, byte[] binary) {
+		if (binary == null || binary.length == 0) {
+			return;
+		}
+		DataOutputStream os = null;
+		File temp = null;
+		try {
+			_directory.mkdirs();
+			temp = File.createTempFile("kernel", ".tmp", _directory);
+			os = new DataOutputStream(new FileOutputStream(temp));
+			os.writeInt(MAGIC);
+			os.writeInt(VERSION);
+			os.writeUTF(key);
+			os.writeInt(binary.length);
+			os.write(binary);
+			os.close();
+			os = null;
+			file.delete();
+			if (!temp.renameTo(file)) {
+				throw new IOException("could not rename " + temp);
+			}
+			temp = null;
+		} catch (IOException e) {
+			_logger.warn("Could not write kernel binary to " + file + ": " + e);
+		} finally {
+			close(os);
+			if (temp != null) {
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * @return the key of a binary, identifying sources, build options, device
+	 *         and driver
+	 */
+	static String getKey(CLDevice device, String source, Map<String, String> macros) {
+		StringBuilder key = new StringBuilder();
+		CLPlatform platform = device.getPlatform();
+		key.append(platform.getName()).append('|').append(platform.getVersion()).append('|');
+		key.append(device.getVendor()).append('|').append(device.getName()).append('|').append(device.getVersion()).append('|').append(device.getDriverVersion()).append('|');
+		key.append(hash(source));
+		for (Map.Entry<String, String> macro : macros.entrySet()) {
+			key.append("|-D").append(macro.getKey()).append('=').append(macro.getValue());
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @return the SHA-256 of the UTF-8 text, in hexadecimal
+	 */
+	static String hash(String text) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes("UTF-8"));
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void close(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+}
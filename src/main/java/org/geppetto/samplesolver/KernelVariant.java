@@ -0,0 +1,49 @@
+package org.geppetto.samplesolver;
+
+/**
+ * Variants of the HH integration kernel the OpenCL backend can run, all
+ * taking the same arguments except for the rate table of TABLE.
+ */
+public enum KernelVariant {
+	/**
+	 * The reference kernel, reads and writes the state in global memory at
+	 * every step
+	 */
+	REFERENCE("IntegrateHHStep", false),
+	/**
+	 * Keeps the state in private memory and shares the exponentials of V,
+	 * matches REFERENCE within 1e-2 mV
+	 */
+	TUNED("IntegrateHHStepTuned", false),
+	/**
+	 * TUNED with several neurons packed in a vector per work item, the vector
+	 * width comes from the launch profile
+	 */
+	VECTORIZED("IntegrateHHStepVector", true),
+	/**
+	 * TUNED with x0 and 1/tau of the gates interpolated from a
+	 * {@link RateTable} instead of the six exponentials, the table takes
+	 * extra arguments bound when the kernel is compiled
+	 */
+	TABLE("IntegrateHHStepTable", false);
+
+	private final String _kernelName;
+	private final boolean _vectorized;
+
+	private KernelVariant(String kernelName, boolean vectorized) {
+		_kernelName = kernelName;
+		_vectorized = vectorized;
+	}
+
+	public String getKernelName() {
+		return _kernelName;
+	}
+
+	/**
+	 * @return true if the kernel is compiled for the vector width of the
+	 *         launch profile
+	 */
+	public boolean isVectorized() {
+		return _vectorized;
+	}
+}
@@ -0,0 +1,57 @@
+package org.geppetto.samplesolver;
+
+/**
+ * Launch shape of the integration kernel: how many neurons each work item
+ * integrates (the vector width the kernel is compiled for) and the local work
+ * size, 0 leaving it to the driver.
+ */
+class LaunchProfile {
+
+	final int vectorWidth;
+	final int localSize;
+
+	LaunchProfile(int vectorWidth, int localSize) {
+		this.vectorWidth = vectorWidth;
+		this.localSize = localSize;
+	}
+
+	/**
+	 * @param vectorized: true if the kernel is compiled for a vector width
+	 * @return the profile used when no tuned profile is available
+	 */
+	static LaunchProfile defaultFor(boolean vectorized) {
+		return new LaunchProfile(vectorized ? 4 : 1, 0);
+	}
+
+	/**
+	 * @return the global work size covering the given population, a multiple
+	 *         of the local size when one is set
+	 */
+	int[] getGlobalSizes(int elemCount) {
+		int workItems = (elemCount + vectorWidth - 1) / vectorWidth;
+		if (localSize > 0) {
+			workItems = (workItems + localSize - 1) / localSize * localSize;
+		}
+		return new int[] { workItems };
+	}
+
+	/**
+	 * @return the local work size, or null to leave it to the driver
+	 */
+	int[] getLocalSizes() {
+		return localSize > 0 ? new int[] { localSize } : null;
+	}
+
+	/**
+	 * Parses a profile written by toString()
+	 */
+	static LaunchProfile parse(String value) {
+		String[] parts = value.split(",");
+		return new LaunchProfile(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+	}
+
+	@Override
+	public String toString() {
+		return vectorWidth + "," + localSize;
+	}
+}
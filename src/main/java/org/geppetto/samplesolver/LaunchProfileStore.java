@@ -0,0 +1,105 @@
+package org.geppetto.samplesolver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.nativelibs4java.opencl.CLDevice;
+
+/**
+ * Launch profiles persisted in a properties file. Profiles are keyed by
+ * device, driver, kernel and population size rounded up to a power of two, so
+ * a file can be shared by nodes with different hardware.
+ */
+class LaunchProfileStore {
+
+	private static final Log _logger = LogFactory.getLog(LaunchProfileStore.class);
+
+	private final File _file;
+	private final Properties _profiles = new Properties();
+
+	LaunchProfileStore(File file) {
+		_file = file;
+		if (file.isFile()) {
+			InputStream in = null;
+			try {
+				in = new FileInputStream(file);
+				_profiles.load(in);
+			} catch (IOException e) {
+				_logger.warn("Could not read launch profiles from " + file + ": " + e);
+			} finally {
+				close(in);
+			}
+		}
+	}
+
+	/**
+	 * @return the stored profile, or null if there is none
+	 */
+	synchronized LaunchProfile get(CLDevice device, String kernelName, int elemCount) {
+		String value = _profiles.getProperty(getKey(device, kernelName, elemCount));
+		if (value == null) {
+			return null;
+		}
+		try {
+			return LaunchProfile.parse(value);
+		} catch (RuntimeException e) {
+			_logger.warn("Ignoring malformed launch profile " + value);
+			return null;
+		}
+	}
+
+	/**
+	 * Stores a profile and writes the file
+	 */
+	synchronized void put(CLDevice device, String kernelName, int elemCount, LaunchProfile profile) {
+		_profiles.setProperty(getKey(device, kernelName, elemCount), profile.toString());
+
+		OutputStream os = null;
+		try {
+			File parent = _file.getParentFile();
+			if (parent != null) {
+				parent.mkdirs();
+			}
+			os = new FileOutputStream(_file);
+			_profiles.store(os, "Geppetto sample solver launch profiles: vectorWidth,localSize");
+		} catch (IOException e) {
+			_logger.warn("Could not write launch profiles to " + _file + ": " + e);
+		} finally {
+			close(os);
+		}
+	}
+
+	/**
+	 * @return the key of a profile, identifying device, driver, kernel and
+	 *         population size
+	 */
+	static String getKey(CLDevice device, String kernelName, int elemCount) {
+		return device.getVendor() + "|" + device.getName() + "|" + device.getVersion() + "|" + device.getDriverVersion() + "|" + kernelName + "|" + getSizeBucket(elemCount);
+	}
+
+	/**
+	 * @return the smallest power of two not lower than elemCount
+	 */
+	static int getSizeBucket(int elemCount) {
+		return elemCount <= 1 ? 1 : Integer.highestOneBit(elemCount - 1) << 1;
+	}
+
+	private static void close(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package org.geppetto.samplesolver;
+
+import static java.lang.System.nanoTime;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geppetto.core.model.HHModel;
+import org.geppetto.core.model.IModel;
+
+import com.nativelibs4java.opencl.CLKernel;
+import com.nativelibs4java.opencl.CLQueue;
+
+/**
+ * Benchmarks the launch shapes of a kernel on the device of a session and
+ * returns the fastest one. Each candidate integrates the population of the
+ * reference scenario for a short window.
+ */
+class LaunchTuner {
+
+	private static final Log _logger = LogFactory.getLog(LaunchTuner.class);
+
+	private static final int[] VECTOR_WIDTHS = { 1, 2, 4, 8 };
+	private static final int[] LOCAL_SIZES = { 0, 8, 16, 32, 64, 128, 256 };
+
+	private static final int BENCHMARK_STEPS = 1000;
+	private static final int BENCHMARK_RUNS = 3;
+
+	// largest population benchmarked, enough work items to fill a device
+	static final int MAX_TUNING_SIZE = 1 << 18;
+
+	/**
+	 * @param session: the session whose device is tuned, the caller must hold its lock
+	 * @param kernelName: the kernel being tuned
+	 * @param vectorized: true if vector widths other than 1 are tried
+	 * @param populationSize: population size, larger ones are benchmarked with
+	 *            {@link #MAX_TUNING_SIZE} models
+	 * @param parameters: channel parameters
+	 * @param formats: storage format of each variable
+	 * @return the fastest launch profile
+	 */
+	static LaunchProfile tune(OpenCLSession session, String kernelName, boolean vectorized, int populationSize, HHParameters parameters, StorageFormat[] formats) {
+		int elemCount = Math.min(populationSize, MAX_TUNING_SIZE);
+		_logger.info("Tuning " + kernelName + " for " + populationSize + " models on " + session.getDevice().getName() + " with " + elemCount + " models");
+
+		List<IModel> models = new ArrayList<IModel>(elemCount);
+		for (int j = 0; j < elemCount; j++) {
+			models.add(new HHModel(Integer.toString(j), -10, 0, 0, 1, 0));
+		}
+
+		CLQueue queue = session.getQueue();
+		DeviceState state = new DeviceState(session.getContext(), elemCount);
+		try {
+			state.load(queue, models);
+			state.getOutput().ensureCapacity(elemCount, 1, formats, false, false);
+
+			int[] vectorWidths = vectorized ? VECTOR_WIDTHS : new int[] { 1 };
+			LaunchProfile best = null;
+			long bestTime = Long.MAX_VALUE;
+			for (int vectorWidth : vectorWidths) {
+				CLKernel kernel = session.getKernel(vectorWidth);
+				Long maxLocalSize = kernel.getWorkGroupSize().get(session.getDevice());
+				OpenCLBackend.setArgs(kernel, parameters, 0.01f, BENCHMARK_STEPS, BENCHMARK_STEPS, null, state);
+
+				for (int localSize : LOCAL_SIZES) {
+					if (maxLocalSize != null && localSize > maxLocalSize) {
+						continue;
+					}
+					LaunchProfile profile = new LaunchProfile(vectorWidth, localSize);
+					long time = benchmark(kernel, queue, profile, elemCount);
+					_logger.debug("Launch profile " + profile + " took " + (time / 1000) + "us");
+					if (time < bestTime) {
+						bestTime = time;
+						best = profile;
+					}
+				}
+			}
+			_logger.info("Best launch profile " + best);
+			return best;
+		} finally {
+			state.release();
+		}
+	}
+
+	/**
+	 * @return the best time of a few runs with the given profile, after a warm-up run
+	 */
+	private static long benchmark(CLKernel kernel, CLQueue queue, LaunchProfile profile, int elemCount) {
+		OpenCLBackend.enqueue(kernel, queue, profile, elemCount);
+		queue.finish();
+
+		long best = Long.MAX_VALUE;
+		for (int r = 0; r < BENCHMARK_RUNS; r++) {
+			long time = nanoTime();
+			OpenCLBackend.enqueue(kernel, queue, profile, elemCount);
+			queue.finish();
+			best = Math.min(best, nanoTime() - time);
+		}
+		return best;
+	}
+}
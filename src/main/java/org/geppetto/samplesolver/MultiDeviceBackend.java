@@ -0,0 +1,257 @@
+package org.geppetto.samplesolver;
+
+import static java.lang.System.nanoTime;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geppetto.core.model.IModel;
+import org.geppetto.core.simulation.ITimeConfiguration;
+
+import com.nativelibs4java.opencl.CLDevice;
+import com.nativelibs4java.opencl.CLException;
+import com.nativelibs4java.opencl.CLPlatform;
+import com.nativelibs4java.opencl.JavaCL;
+
+/**
+ * Backend splitting a population in contiguous slices integrated
+ * concurrently on all the OpenCL CPU devices of all the platforms, each with
+ * its own context, queue and buffers. Slices are sized by the throughput
+ * measured on each device in previous runs, by the number of compute units
+ * until every device has been measured. Devices can be split in sub-devices
+ * with device fission, so that a single CPU can be used as several devices.
+ */
+class MultiDeviceBackend implements HHBackend {
+
+	private static final Log _logger = LogFactory.getLog(MultiDeviceBackend.class);
+
+	private final List<OpenCLBackend> _backends = new ArrayList<OpenCLBackend>();
+	private final ExecutorService _executor;
+
+	// smoothed neuron-steps per second of each device, 0 until measured
+	private final double[] _throughputs;
+
+	/**
+	 * @param kernelPath: classpath location of the kernel sources
+	 * @param configuration: the solver configuration
+	 * @param metrics: collects the timings of the calls on all the devices
+	 * @throws IOException if the kernel sources can't be read
+	 */
+	MultiDeviceBackend(String kernelPath, SolverConfiguration configuration, SolverMetrics metrics) throws IOException {
+		List<CLDevice> devices = listDevices(configuration.getComputeUnitsPerSubDevice());
+		if (devices.isEmpty()) {
+			throw new IllegalStateException("No OpenCL CPU device available");
+		}
+		for (CLDevice device : devices) {
+			_backends.add(new OpenCLBackend(device, kernelPath, configuration, metrics));
+		}
+		_throughputs = new double[devices.size()];
+		_executor = Executors.newFixedThreadPool(devices.size(), new DaemonThreadFactory("HH-Device"));
+	}
+
+	public String getName() {
+		return "OpenCL (" + _backends.size() + " devices)";
+	}
+
+	public HHResults solve(final List<IModel> models, String[] ids, final ITimeConfiguration timeConfiguration, final HHParameters parameters) {
+		final int[] offsets = partition(models.size());
+		List<Callable<HHResults>> tasks = new ArrayList<Callable<HHResults>>();
+		for (int d = 0; d < _backends.size(); d++) {
+			if (offsets[d] == offsets[d + 1]) {
+				continue;
+			}
+			final int device = d;
+			final String[] sliceIds = Arrays.copyOfRange(ids, offsets[d], offsets[d + 1]);
+			tasks.add(new Callable<HHResults>() {
+				public HHResults call() {
+					long time = nanoTime();
+					HHResults results = _backends.get(device).solve(models.subList(offsets[device], offsets[device + 1]), sliceIds, timeConfiguration, parameters);
+					recordThroughput(device, sliceIds.length, timeConfiguration.getTimeSteps(), nanoTime() - time);
+					return results;
+				}
+			});
+		}
+		return HHResults.concat(invokeAll(tasks));
+	}
+
+	public void stream(List<IModel> models, String[] ids, TimeWindows timeWindows, HHParameters parameters, SolveListener listener) {
+		timeWindows.stream(this, models, ids, parameters, listener);
+	}
+
+	public NeuronState createState(List<IModel> models) {
+		return createState(models.size(), models);
+	}
+
+	public NeuronState createState(int elemCount) {
+		return createState(elemCount, null);
+	}
+
+	/**
+	 * Creates one slice per device with models, loaded with the initial
+	 * conditions of the models if given
+	 */
+	private NeuronState createState(int elemCount, List<IModel> models) {
+		int[] offsets = partition(elemCount);
+		List<NeuronState> slices = new ArrayList<NeuronState>();
+		List<Integer> devices = new ArrayList<Integer>();
+		List<Integer> sliceOffsets = new ArrayList<Integer>();
+		for (int d = 0; d < _backends.size(); d++) {
+			if (offsets[d] == offsets[d + 1]) {
+				continue;
+			}
+			OpenCLBackend backend = _backends.get(d);
+			slices.add(models == null ? backend.createState(offsets[d + 1] - offsets[d]) : backend.createState(models.subList(offsets[d], offsets[d + 1])));
+			devices.add(d);
+			sliceOffsets.add(offsets[d]);
+		}
+		sliceOffsets.add(elemCount);
+		return new MultiDeviceState(slices.toArray(new NeuronState[slices.size()]), toArray(devices), toArray(sliceOffsets));
+	}
+
+	public void readColumn(NeuronState state, int column, ByteBuffer dest) {
+		MultiDeviceState multiState = (MultiDeviceState) state;
+		for (int s = 0; s < multiState.slices.length; s++) {
+			_backends.get(multiState.devices[s]).readColumn(multiState.slices[s], column, sliceColumn(dest, multiState.offsets[s], multiState.offsets[s + 1]));
+		}
+	}
+
+	public void writeColumn(NeuronState state, int column, ByteBuffer src) {
+		MultiDeviceState multiState = (MultiDeviceState) state;
+		for (int s = 0; s < multiState.slices.length; s++) {
+			_backends.get(multiState.devices[s]).writeColumn(multiState.slices[s], column, sliceColumn(src, multiState.offsets[s], multiState.offsets[s + 1]));
+		}
+	}
+
+	/**
+	 * @return the floats of the models in [from, to) of a column
+	 */
+	private static ByteBuffer sliceColumn(ByteBuffer column, int from, int to) {
+		ByteBuffer slice = column.duplicate();
+		slice.limit(to * 4);
+		slice.position(from * 4);
+		return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public HHResults integrate(NeuronState state, String[] ids, final ITimeConfiguration timeConfiguration, final HHParameters parameters) {
+		final MultiDeviceState multiState = (MultiDeviceState) state;
+		List<Callable<HHResults>> tasks = new ArrayList<Callable<HHResults>>();
+		for (int s = 0; s < multiState.slices.length; s++) {
+			final int slice = s;
+			final String[] sliceIds = Arrays.copyOfRange(ids, multiState.offsets[s], multiState.offsets[s + 1]);
+			tasks.add(new Callable<HHResults>() {
+				public HHResults call() {
+					int device = multiState.devices[slice];
+					long time = nanoTime();
+					HHResults results = _backends.get(device).integrate(multiState.slices[slice], sliceIds, timeConfiguration, parameters);
+					recordThroughput(device, sliceIds.length, timeConfiguration.getTimeSteps(), nanoTime() - time);
+					return results;
+				}
+			});
+		}
+		HHResults results = HHResults.concat(invokeAll(tasks));
+		multiState.advanceTime((double) timeConfiguration.getTimeStepLength() * timeConfiguration.getTimeSteps());
+		return results;
+	}
+
+	public void release() {
+		_executor.shutdownNow();
+		for (OpenCLBackend backend : _backends) {
+			backend.release();
+		}
+	}
+
+	/**
+	 * Splits a population in one contiguous slice per device, sized by the
+	 * relative throughput of the devices
+	 * 
+	 * @return the index of the first model of each slice, plus the population size
+	 */
+	synchronized int[] partition(int elemCount) {
+		double[] weights = new double[_backends.size()];
+		boolean measured = true;
+		for (double throughput : _throughputs) {
+			measured &= throughput > 0;
+		}
+		double total = 0;
+		for (int d = 0; d < weights.length; d++) {
+			weights[d] = measured ? _throughputs[d] : _backends.get(d).getDevice().getMaxComputeUnits();
+			total += weights[d];
+		}
+
+		int[] offsets = new int[weights.length + 1];
+		double cumulated = 0;
+		for (int d = 0; d < weights.length; d++) {
+			cumulated += weights[d];
+			offsets[d + 1] = (int) Math.round(elemCount * cumulated / total);
+		}
+		offsets[weights.length] = elemCount;
+		return offsets;
+	}
+
+	/**
+	 * Updates the measured throughput of a device with a completed run
+	 */
+	private synchronized void recordThroughput(int device, int elemCount, int steps, long nanos) {
+		double throughput = (double) elemCount * steps / Math.max(nanos, 1) * 1e9;
+		_throughputs[device] = _throughputs[device] == 0 ? throughput : (_throughputs[device] + throughput) / 2;
+	}
+
+	private List<HHResults> invokeAll(List<Callable<HHResults>> tasks) {
+		List<HHResults> results = new ArrayList<HHResults>(tasks.size());
+		try {
+			for (Future<HHResults> future : _executor.invokeAll(tasks)) {
+				results.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Integration interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Integration failed", e.getCause());
+		}
+		return results;
+	}
+
+	/**
+	 * Lists the CPU devices of all the OpenCL platforms
+	 * 
+	 * @param computeUnitsPerSubDevice: if greater than 0, devices are split
+	 *            in sub-devices with this many compute units when possible
+	 * @return the devices
+	 */
+	static List<CLDevice> listDevices(int computeUnitsPerSubDevice) {
+		List<CLDevice> devices = new ArrayList<CLDevice>();
+		for (CLPlatform platform : JavaCL.listPlatforms()) {
+			for (CLDevice device : platform.listDevices(CLDevice.Type.CPU, true)) {
+				if (computeUnitsPerSubDevice > 0 && device.getMaxComputeUnits() > computeUnitsPerSubDevice) {
+					try {
+						devices.addAll(Arrays.asList(device.createSubDevicesEqually(computeUnitsPerSubDevice)));
+						continue;
+					} catch (CLException e) {
+						_logger.info("Device fission not supported by " + device.getName() + ": " + e);
+					}
+				}
+				devices.add(device);
+			}
+		}
+		return devices;
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+}
@@ -0,0 +1,101 @@
+package org.geppetto.samplesolver;
+
+/**
+ * State of a population split in contiguous slices, each held by the backend
+ * of one device.
+ */
+class MultiDeviceState implements NeuronState {
+
+	final NeuronState[] slices;
+	// index of the device backend holding each slice
+	final int[] devices;
+	// index of the first model of each slice, plus the population size
+	final int[] offsets;
+
+	// kept here as well since a population without models has no slice
+	private double _time;
+	private SpikeDetection _spikeDetection;
+
+	MultiDeviceState(NeuronState[] slices, int[] devices, int[] offsets) {
+		this.slices = slices;
+		this.devices = devices;
+		this.offsets = offsets;
+	}
+
+	public int getElemCount() {
+		return offsets[offsets.length - 1];
+	}
+
+	public void setI(int model, float I) {
+		int slice = getSlice(model);
+		slices[slice].setI(model - offsets[slice], I);
+	}
+
+	public float getI(int model) {
+		int slice = getSlice(model);
+		return slices[slice].getI(model - offsets[slice]);
+	}
+
+	public void setStimulus(int model, Stimulus stimulus) {
+		int slice = getSlice(model);
+		slices[slice].setStimulus(model - offsets[slice], stimulus);
+	}
+
+	public Stimulus getStimulus(int model) {
+		int slice = getSlice(model);
+		return slices[slice].getStimulus(model - offsets[slice]);
+	}
+
+	public void setParameters(int model, HHParameters parameters) {
+		int slice = getSlice(model);
+		slices[slice].setParameters(model - offsets[slice], parameters);
+	}
+
+	public HHParameters getParameters(int model) {
+		int slice = getSlice(model);
+		return slices[slice].getParameters(model - offsets[slice]);
+	}
+
+	public void setSpikeDetection(SpikeDetection detection) {
+		_spikeDetection = detection;
+		for (NeuronState slice : slices) {
+			slice.setSpikeDetection(detection);
+		}
+	}
+
+	public SpikeDetection getSpikeDetection() {
+		return _spikeDetection;
+	}
+
+	public double getTime() {
+		return _time;
+	}
+
+	public void setTime(double time) {
+		_time = time;
+		for (NeuronState slice : slices) {
+			slice.setTime(time);
+		}
+	}
+
+	/**
+	 * Advances the simulated time after a run, the slices advance their own
+	 */
+	void advanceTime(double duration) {
+		_time += duration;
+	}
+
+	public void release() {
+		for (NeuronState slice : slices) {
+			slice.release();
+		}
+	}
+
+	private int getSlice(int model) {
+		int slice = 0;
+		while (model >= offsets[slice + 1]) {
+			slice++;
+		}
+		return slice;
+	}
+}
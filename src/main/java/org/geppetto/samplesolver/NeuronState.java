@@ -0,0 +1,65 @@
+package org.geppetto.samplesolver;
+
+/**
+ * Per-neuron state of a population held by a backend between runs, V, x_n,
+ * x_m and x_h are updated in place by each run, which also advances the
+ * simulated time.
+ */
+interface NeuronState {
+
+	int getElemCount();
+
+	/**
+	 * Changes the external current of one model from the next run on
+	 */
+	void setI(int model, float I);
+
+	float getI(int model);
+
+	/**
+	 * Changes the stimulus of one model from the next run on
+	 * 
+	 * @param stimulus: the stimulus, null for none
+	 */
+	void setStimulus(int model, Stimulus stimulus);
+
+	Stimulus getStimulus(int model);
+
+	/**
+	 * Gives one model its own channel parameters from the next run on
+	 * 
+	 * @param parameters: the parameters, null to use the shared ones
+	 */
+	void setParameters(int model, HHParameters parameters);
+
+	/**
+	 * @return the parameters of one model, null if it uses the shared ones
+	 */
+	HHParameters getParameters(int model);
+
+	/**
+	 * Enables spike detection from the next run on, the spikes of each run
+	 * are returned with its results
+	 * 
+	 * @param detection: the detection settings, null to disable it
+	 */
+	void setSpikeDetection(SpikeDetection detection);
+
+	SpikeDetection getSpikeDetection();
+
+	/**
+	 * @return the simulated time in ms since the state was loaded, the time
+	 *         stimuli are evaluated at
+	 */
+	double getTime();
+
+	/**
+	 * Sets the simulated time, when a state is restored from a snapshot
+	 */
+	void setTime(double time);
+
+	/**
+	 * Releases the resources held for this state
+	 */
+	void release();
+}
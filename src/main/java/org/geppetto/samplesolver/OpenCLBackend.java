@@ -0,0 +1,592 @@
+package org.geppetto.samplesolver;
+
+import static java.lang.System.nanoTime;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geppetto.core.model.IModel;
+import org.geppetto.core.simulation.ITimeConfiguration;
+
+import com.nativelibs4java.opencl.CLDevice;
+import com.nativelibs4java.opencl.CLEvent;
+import com.nativelibs4java.opencl.CLKernel;
+import com.nativelibs4java.opencl.CLQueue;
+
+/**
+ * Backend running the HH integration kernel on an OpenCL device. Concurrent
+ * calls each take a lane of the session, with its own queue, kernels and
+ * buffers, up to the configured number of lanes per device, and wait for a
+ * free lane beyond that. The launch shape for a population
+ * size comes from the launch profiles file, and is benchmarked and stored
+ * there first when autotuning is enabled.
+ */
+class OpenCLBackend implements HHBackend {
+
+	private static final Log _logger = LogFactory.getLog(OpenCLBackend.class);
+
+	// number of arguments set by setArgs(), declared by HH_COMMON_ARGS in the kernel
+	static final int COMMON_ARGS = 36;
+
+	private final OpenCLSession _session;
+	private final SolverConfiguration _configuration;
+	private final StorageFormat[] _storageFormats;
+	private final boolean _zeroCopy;
+	private final SteadyState _steadyState;
+	private final LaunchProfileStore _profileStore;
+	private final SolverMetrics _metrics;
+
+	// lanes not used by any call, and all the lanes created so far
+	private final LinkedList<OpenCLSession> _idleLanes = new LinkedList<OpenCLSession>();
+	private final List<OpenCLSession> _lanes = new ArrayList<OpenCLSession>();
+	private final int _maxLanes;
+	// windows enqueued by integrateAsync() whose callback has not returned,
+	// guarded by this
+	private int _pendingWindows;
+	// set by release(), no lane is handed out after that
+	private boolean _released;
+
+	// profiles in use, by population size bucket
+	private final Map<Integer, FutureTask<LaunchProfile>> _profiles = new HashMap<Integer, FutureTask<LaunchProfile>>();
+
+	/**
+	 * @param kernelPath: classpath location of the kernel sources
+	 * @param configuration: the solver configuration
+	 * @param metrics: collects the timings of the calls
+	 * @throws IOException if the kernel sources can't be read
+	 */
+	OpenCLBackend(String kernelPath, SolverConfiguration configuration, SolverMetrics metrics) throws IOException {
+		this(new OpenCLSession(kernelPath, configuration.getKernelName(), metrics), configuration, metrics);
+	}
+
+	/**
+	 * @param device: the device kernels are run on
+	 * @param kernelPath: classpath location of the kernel sources
+	 * @param configuration: the solver configuration
+	 * @param metrics: collects the timings of the calls
+	 * @throws IOException if the kernel sources can't be read
+	 */
+	OpenCLBackend(CLDevice device, String kernelPath, SolverConfiguration configuration, SolverMetrics metrics) throws IOException {
+		this(new OpenCLSession(device, kernelPath, configuration.getKernelName(), metrics), configuration, metrics);
+	}
+
+	private OpenCLBackend(OpenCLSession session, SolverConfiguration configuration, SolverMetrics metrics) {
+		_session = session;
+		_configuration = configuration;
+		_metrics = metrics;
+		_storageFormats = configuration.getStorageFormats();
+		_steadyState = configuration.getSteadyState();
+		_zeroCopy = configuration.isZeroCopy() && session.getDevice().getType().contains(CLDevice.Type.CPU);
+		if (configuration.isZeroCopy()) {
+			_logger.info(_zeroCopy ? "Zero-copy output buffers" : "Zero-copy output not available on " + session.getDevice().getName() + ", results are read back");
+		}
+		if (configuration.getKernelCacheDirectory() != null) {
+			_session.setBinaryCache(new KernelBinaryCache(configuration.getKernelCacheDirectory(), metrics));
+		}
+		RateTable rateTable = configuration.createRateTable();
+		if (rateTable != null) {
+			_logger.debug("Rate table: " + rateTable);
+			try {
+				_session.setRateTable(rateTable);
+			} catch (IllegalArgumentException e) {
+				_session.release();
+				throw e;
+			}
+		}
+		_profileStore = new LaunchProfileStore(configuration.getProfilesFile());
+		_maxLanes = Math.max(1, configuration.getLanesPerDevice());
+		_lanes.add(session);
+		_idleLanes.add(session);
+	}
+
+	public String getName() {
+		return "OpenCL";
+	}
+
+	CLDevice getDevice() {
+		return _session.getDevice();
+	}
+
+	public HHResults solve(List<IModel> models, String[] ids, ITimeConfiguration timeConfiguration, HHParameters parameters) {
+		OpenCLSession lane = acquireLane();
+		try {
+			long uploadTime = nanoTime();
+
+			// fill and upload input buffers with initial conditions, the
+			// kernel would wait for them anyway
+			DeviceState state = lane.getState(models.size());
+			state.load(lane.getQueue(), models);
+			lane.getQueue().finish();
+
+			_metrics.record(SolverMetrics.Phase.UPLOAD, nanoTime() - uploadTime);
+
+			return run(lane, state, ids, timeConfiguration, parameters);
+		} finally {
+			releaseLane(lane);
+		}
+	}
+
+	public NeuronState createState(List<IModel> models) {
+		OpenCLSession lane = acquireLane();
+		try {
+			// states live in the shared context, any lane can integrate them
+			DeviceState state = new DeviceState(lane.getContext(), models.size());
+			state.load(lane.getQueue(), models);
+			lane.getQueue().finish();
+			return state;
+		} finally {
+			releaseLane(lane);
+		}
+	}
+
+	public NeuronState createState(int elemCount) {
+		return new DeviceState(_session.getContext(), elemCount);
+	}
+
+	public void readColumn(NeuronState state, int column, ByteBuffer dest) {
+		DeviceState deviceState = (DeviceState) state;
+		OpenCLSession lane = acquireLane();
+		try {
+			deviceState.readColumn(lane.getQueue(), column, dest);
+			_metrics.addBytesRead(deviceState.takeBytesRead());
+		} finally {
+			releaseLane(lane);
+		}
+	}
+
+	public void writeColumn(NeuronState state, int column, ByteBuffer src) {
+		DeviceState deviceState = (DeviceState) state;
+		OpenCLSession lane = acquireLane();
+		try {
+			deviceState.writeColumn(lane.getQueue(), column, src);
+			_metrics.addBytesUploaded(deviceState.takeBytesUploaded());
+		} finally {
+			releaseLane(lane);
+		}
+	}
+
+	public HHResults integrate(NeuronState state, String[] ids, ITimeConfiguration timeConfiguration, HHParameters parameters) {
+		DeviceState deviceState = (DeviceState) state;
+		OpenCLSession lane = acquireLane();
+		try {
+			long uploadTime = nanoTime();
+			deviceState.uploadChanges(lane.getQueue());
+			deviceState.uploadParameters(lane.getQueue(), parameters);
+			lane.getQueue().finish();
+			_metrics.record(SolverMetrics.Phase.UPLOAD, nanoTime() - uploadTime);
+
+			return run(lane, deviceState, ids, timeConfiguration, parameters);
+		} finally {
+			releaseLane(lane);
+		}
+	}
+
+	/**
+	 * Releases the lanes and the session, waiting for the calls in progress
+	 * to return their lane and for the asynchronous windows to complete
+	 */
+	public synchronized void release() {
+		_released = true;
+		boolean interrupted = false;
+		while (_idleLanes.size() < _lanes.size() || _pendingWindows > 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		// lanes first, the session owns the context they share
+		for (int l = _lanes.size() - 1; l >= 0; l--) {
+			_lanes.get(l).release();
+		}
+		_lanes.clear();
+		_idleLanes.clear();
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Takes an idle lane, creating one if there are fewer than the max number
+	 * of lanes, waiting for one to be released otherwise
+	 */
+	private synchronized OpenCLSession acquireLane() {
+		boolean interrupted = false;
+		try {
+			while (_released || _idleLanes.isEmpty()) {
+				if (_released) {
+					throw new IllegalStateException("Backend released");
+				}
+				if (_lanes.size() < _maxLanes) {
+					OpenCLSession lane = _session.createLane();
+					_lanes.add(lane);
+					_logger.debug("Created lane " + _lanes.size() + " of " + _maxLanes + " on " + _session.getDevice().getName());
+					_metrics.recordLanesInUse(_lanes.size() - _idleLanes.size());
+					return lane;
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// a lane is always released soon, don't give up the call
+					interrupted = true;
+				}
+			}
+			OpenCLSession lane = _idleLanes.removeFirst();
+			_metrics.recordLanesInUse(_lanes.size() - _idleLanes.size());
+			return lane;
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private synchronized void releaseLane(OpenCLSession lane) {
+		_idleLanes.addFirst(lane);
+		notifyAll();
+	}
+
+	private synchronized void windowStarted() {
+		_pendingWindows++;
+	}
+
+	private synchronized void windowEnded() {
+		_pendingWindows--;
+		notifyAll();
+	}
+
+	/**
+	 * Streams the windows with two sets of output buffers used in turn: while
+	 * the kernel of window k writes to one set on the main queue of the lane,
+	 * the samples of window k - 1 are read from the other set on the read
+	 * queue and passed to the listener. Window k only starts writing a set
+	 * once the reads of window k - 2 from that set are done.
+	 */
+	public void stream(List<IModel> models, String[] ids, TimeWindows timeWindows, HHParameters parameters, SolveListener listener) {
+		int ELEM_COUNT = models.size();
+		int windows = timeWindows.getCount();
+		OpenCLSession lane = acquireLane();
+		CLQueue queue = lane.getQueue();
+		CLQueue readQueue = lane.getReadQueue();
+		DeviceState state = null;
+		DeviceOutput[] outputs = new DeviceOutput[2];
+		CLEvent[] readEvts = new CLEvent[2];
+		CLEvent[] integrateEvts = new CLEvent[2];
+		int[] samples = new int[2];
+		try {
+			state = new DeviceState(lane.getContext(), ELEM_COUNT);
+			outputs[0] = state.getOutput();
+			outputs[1] = new DeviceOutput(lane.getContext());
+			state.load(queue, models);
+			_metrics.addBytesUploaded(state.takeBytesUploaded());
+			for (int w = 0; w < windows; w++) {
+				int buffer = w % 2;
+				ITimeConfiguration window = timeWindows.get(w);
+				DeviceOutput output = outputs[buffer];
+				samples[buffer] = window.getTimeSteps() / window.getSamplePeriod();
+				output.ensureCapacity(ELEM_COUNT, samples[buffer], _storageFormats, _zeroCopy, _steadyState != null);
+
+				LaunchProfile profile = getLaunchProfile(lane, ELEM_COUNT, parameters);
+				CLKernel integrateHHStepKernel = lane.getKernel(profile.vectorWidth);
+				setArgs(integrateHHStepKernel, parameters, window.getTimeStepLength(), window.getTimeSteps(), window.getSamplePeriod(), _steadyState, state, output);
+				integrateEvts[buffer] = readEvts[buffer] == null ? enqueue(integrateHHStepKernel, queue, profile, ELEM_COUNT) : enqueue(integrateHHStepKernel, queue, profile, ELEM_COUNT, readEvts[buffer]);
+				queue.flush();
+				state.advanceTime((double) window.getTimeStepLength() * window.getTimeSteps());
+
+				readEvts[buffer] = output.enqueueRead(readQueue, false, integrateEvts[buffer]);
+				readQueue.flush();
+				_metrics.addBytesRead(output.getReadBytes());
+
+				// the previous window is read while this one is computed
+				if (w > 0) {
+					deliver(w - 1, windows, outputs[1 - buffer], readEvts[1 - buffer], samples[1 - buffer], ids, listener);
+					recordKernel(integrateEvts[1 - buffer], (long) ELEM_COUNT * timeWindows.get(w - 1).getTimeSteps());
+				}
+			}
+			int last = (windows - 1) % 2;
+			deliver(windows - 1, windows, outputs[last], readEvts[last], samples[last], ids, listener);
+			recordKernel(integrateEvts[last], (long) ELEM_COUNT * timeWindows.get(windows - 1).getTimeSteps());
+		} finally {
+			// nothing may still use the buffers when they are released
+			queue.finish();
+			readQueue.finish();
+			if (outputs[1] != null) {
+				outputs[1].release();
+			}
+			if (state != null) {
+				state.release();
+			}
+			releaseLane(lane);
+		}
+	}
+
+	/**
+	 * Records the kernel phase of a completed kernel from the profiling
+	 * timestamps of its event, so that the windows overlapping their reads
+	 * are timed without waiting on the host
+	 */
+	private void recordKernel(CLEvent kernelEvt, long neuronSteps) {
+		_metrics.recordKernel(kernelEvt.getProfilingCommandEnd() - kernelEvt.getProfilingCommandStart(), neuronSteps);
+	}
+
+	/**
+	 * Waits for the reads of a streamed window and passes it to the listener
+	 */
+	private void deliver(int window, int windows, DeviceOutput output, CLEvent readEvt, int samples, String[] ids, SolveListener listener) {
+		readEvt.waitFor();
+		listener.windowCompleted(window, windows, output.toResults(ids, samples, null));
+	}
+
+	/**
+	 * Callback of {@link OpenCLBackend#integrateAsync}, called on an OpenCL
+	 * thread, implementations must hand any further work to their own thread
+	 * and must not throw
+	 */
+	interface WindowCallback {
+		void completed(HHResults results);
+
+		void failed(Throwable error);
+	}
+
+	/**
+	 * Starts integrating one time window from the given state and returns once
+	 * the commands are enqueued, without waiting for the device. The lane is
+	 * only held while enqueuing, the callback gets the results when the reads
+	 * complete. The state must not be used until then, and release() waits
+	 * for the callback to return.
+	 * 
+	 * @param state: a state created by this backend
+	 * @param ids: ids of the models being evaluated
+	 * @param timeConfiguration: time configuration for this window
+	 * @param parameters: channel parameters
+	 * @param callback: called with the results or the error
+	 */
+	void integrateAsync(NeuronState state, final String[] ids, final ITimeConfiguration timeConfiguration, HHParameters parameters, final WindowCallback callback) {
+		final DeviceState deviceState = (DeviceState) state;
+		CLEvent readEvt;
+		OpenCLSession lane = acquireLane();
+		windowStarted();
+		try {
+			deviceState.uploadChanges(lane.getQueue());
+			deviceState.uploadParameters(lane.getQueue(), parameters);
+			CLEvent integrateEvt = enqueueKernel(lane, deviceState, timeConfiguration, parameters);
+			readEvt = deviceState.getOutput().enqueueRead(lane.getQueue(), false, integrateEvt);
+			lane.getQueue().flush();
+			_metrics.addNeuronSteps((long) deviceState.getElemCount() * timeConfiguration.getTimeSteps());
+			_metrics.addBytesUploaded(deviceState.takeBytesUploaded());
+			_metrics.addBytesRead(deviceState.getOutput().getReadBytes());
+		} catch (RuntimeException e) {
+			windowEnded();
+			throw e;
+		} finally {
+			releaseLane(lane);
+		}
+
+		// the queue is in-order, the last read completes after everything else
+		try {
+			setCallback(readEvt, deviceState, ids, timeConfiguration, callback);
+		} catch (RuntimeException e) {
+			windowEnded();
+			throw e;
+		}
+	}
+
+	private void setCallback(CLEvent readEvt, final DeviceState deviceState, final String[] ids, final ITimeConfiguration timeConfiguration, final WindowCallback callback) {
+		readEvt.setCompletionCallback(new CLEvent.EventCallback() {
+			public void callback(int executionStatus) {
+				try {
+					if (executionStatus < 0) {
+						callback.failed(new IllegalStateException("Integration failed with OpenCL status " + executionStatus));
+						return;
+					}
+					HHResults results;
+					try {
+						deviceState.advanceTime((double) timeConfiguration.getTimeStepLength() * timeConfiguration.getTimeSteps());
+						int samples = timeConfiguration.getTimeSteps() / timeConfiguration.getSamplePeriod();
+						results = deviceState.getOutput().toResults(ids, samples, null);
+					} catch (Throwable e) {
+						// nothing may escape to the native callback
+						callback.failed(e);
+						return;
+					}
+					callback.completed(results);
+				} finally {
+					// the context may only be released once the results are read
+					windowEnded();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs the kernel over one time window starting from the state held in
+	 * the device buffers, the caller must hold the lane.
+	 */
+	private HHResults run(OpenCLSession lane, DeviceState state, String[] ids, ITimeConfiguration timeConfiguration, HHParameters parameters) {
+		DeviceOutput output = state.getOutput();
+		CLQueue queue = lane.getQueue();
+
+		// timed from the enqueue, so tuning and buffer setup are not counted
+		CLEvent kernelEvt = enqueueKernel(lane, state, timeConfiguration, parameters);
+		long kernelTime = nanoTime();
+		kernelEvt.waitFor();
+		_metrics.recordKernel(nanoTime() - kernelTime, (long) state.getElemCount() * timeConfiguration.getTimeSteps());
+		state.advanceTime((double) timeConfiguration.getTimeStepLength() * timeConfiguration.getTimeSteps());
+
+		long readTime = nanoTime();
+		output.enqueueRead(queue, true);
+		Spikes spikes = state.readSpikes(queue);
+		_metrics.addBytesUploaded(state.takeBytesUploaded());
+		_metrics.addBytesRead(output.getReadBytes() + state.takeBytesRead());
+
+		// return all the models sampled as specified in timeConfiguration
+		int samples = timeConfiguration.getTimeSteps() / timeConfiguration.getSamplePeriod();
+		HHResults results = output.toResults(ids, samples, spikes);
+		_metrics.record(SolverMetrics.Phase.READBACK, nanoTime() - readTime);
+		return results;
+	}
+
+	/**
+	 * Enqueues the kernel over one time window on the lane, the caller must
+	 * hold the lane and enqueue the reads of the results.
+	 * 
+	 * @return the event of the kernel
+	 */
+	private CLEvent enqueueKernel(OpenCLSession lane, DeviceState state, ITimeConfiguration timeConfiguration, HHParameters parameters) {
+		int ELEM_COUNT = state.getElemCount();
+		CLQueue queue = lane.getQueue();
+		DeviceOutput output = state.getOutput();
+
+		// only sampled steps are stored by the kernel
+		int samples = timeConfiguration.getTimeSteps() / timeConfiguration.getSamplePeriod();
+		output.ensureCapacity(ELEM_COUNT, samples, _storageFormats, _zeroCopy, _steadyState != null);
+
+		state.prepareSpikes(queue, timeConfiguration.getTimeStepLength() * timeConfiguration.getTimeSteps());
+
+		LaunchProfile profile = getLaunchProfile(lane, ELEM_COUNT, parameters);
+		CLKernel integrateHHStepKernel = lane.getKernel(profile.vectorWidth);
+		setArgs(integrateHHStepKernel, parameters, timeConfiguration.getTimeStepLength(), timeConfiguration.getTimeSteps(), timeConfiguration.getSamplePeriod(), _steadyState, state);
+
+		// the default queue is in-order so the kernel waits for any pending upload
+		return enqueue(integrateHHStepKernel, queue, profile, ELEM_COUNT);
+	}
+
+	/**
+	 * Returns the launch profile for a population size: the one already in
+	 * use for its size bucket, the stored one, a newly tuned one when
+	 * autotuning is enabled, or the default. Tuning runs on the given lane
+	 * outside of any lock, the calls for the same size bucket wait for its
+	 * result and the other buckets go on.
+	 */
+	private LaunchProfile getLaunchProfile(final OpenCLSession lane, final int elemCount, final HHParameters parameters) {
+		int bucket = LaunchProfileStore.getSizeBucket(elemCount);
+		FutureTask<LaunchProfile> profile;
+		boolean owner = false;
+		synchronized (_profiles) {
+			profile = _profiles.get(bucket);
+			if (profile == null) {
+				profile = new FutureTask<LaunchProfile>(new Callable<LaunchProfile>() {
+					public LaunchProfile call() {
+						return findLaunchProfile(lane, elemCount, parameters);
+					}
+				});
+				_profiles.put(bucket, profile);
+				owner = true;
+			}
+		}
+		if (owner) {
+			profile.run();
+		}
+
+		try {
+			return profile.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the launch profile", e);
+		} catch (ExecutionException e) {
+			// the next call tunes again
+			synchronized (_profiles) {
+				if (_profiles.get(bucket) == profile) {
+					_profiles.remove(bucket);
+				}
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("Launch tuning failed", e.getCause());
+		}
+	}
+
+	/**
+	 * @return the stored launch profile for the population size, a newly
+	 *         tuned one when autotuning is enabled, or the default
+	 */
+	private LaunchProfile findLaunchProfile(OpenCLSession lane, int elemCount, HHParameters parameters) {
+		String kernelName = _configuration.getKernelName();
+		boolean vectorized = _configuration.isVectorizedKernel();
+		LaunchProfile profile = _profileStore.get(_session.getDevice(), kernelName, elemCount);
+		if (profile == null && _configuration.isAutotune()) {
+			profile = LaunchTuner.tune(lane, kernelName, vectorized, elemCount, parameters, _storageFormats);
+			_profileStore.put(_session.getDevice(), kernelName, elemCount, profile);
+		}
+		if (profile == null) {
+			profile = LaunchProfile.defaultFor(vectorized);
+		}
+		_logger.info("Launch profile for " + elemCount + " models: " + profile);
+		return profile;
+	}
+
+	/**
+	 * Sets the arguments of an integration kernel, all the kernel variants
+	 * share these arguments. The rate table arguments of the TABLE variant
+	 * are bound by the session when the kernel is compiled.
+	 * 
+	 * @param steadyState: the steady state detection settings, null when it
+	 *            is off
+	 */
+	static void setArgs(CLKernel kernel, HHParameters parameters, float dt, int steps, int samplePeriod, SteadyState steadyState, DeviceState state) {
+		setArgs(kernel, parameters, dt, steps, samplePeriod, steadyState, state, state.getOutput());
+	}
+
+	/**
+	 * Sets the arguments of an integration kernel writing its samples to the
+	 * given output
+	 */
+	static void setArgs(CLKernel kernel, HHParameters parameters, float dt, int steps, int samplePeriod, SteadyState steadyState, DeviceState state, DeviceOutput output) {
+		SpikeDetection detection = state.getSpikeDetection();
+		kernel.setArgs(parameters.maxG_K, parameters.maxG_Na, parameters.maxG_Leak, 
+					   parameters.E_K, parameters.E_Na, parameters.E_Leak, 
+					   dt, steps, samplePeriod,
+					   state.I_in_Buffer, state.stimuli_Buffer, state.stimulusOffsets_Buffer, (float) state.getTime(),
+					   state.channels_Buffer, state.hasChannelsPerNeuron() ? 1 : 0,
+					   detection == null ? 0f : detection.getThreshold(), detection == null ? 0f : detection.getRefractory(),
+					   state.lastSpikes_Buffer, state.spikeNeurons_Buffer, state.spikeTimes_Buffer, state.spikeCount_Buffer, state.getSpikeCapacity(),
+					   StorageFormat.pack(output.getFormats()),
+					   steadyState == null ? 0f : steadyState.getVoltageTolerance() * dt, steadyState == null ? 0f : steadyState.getGateTolerance() * dt,
+					   steadyState == null ? 0 : steadyState.getHoldSteps(dt), output.settled_Buffer,
+					   state.V_in_Buffer, state.x_n_in_Buffer, state.x_m_in_Buffer, state.x_h_in_Buffer,
+					   output.V_results_Buffer, output.Xn_results_Buffer, output.Xm_results_Buffer, output.Xh_results_Buffer, state.getElemCount());
+	}
+
+	/**
+	 * Enqueues an integration kernel with the given launch shape, after the
+	 * given events
+	 */
+	static CLEvent enqueue(CLKernel kernel, CLQueue queue, LaunchProfile profile, int elemCount, CLEvent... eventsToWaitFor) {
+		int[] localSizes = profile.getLocalSizes();
+		if (localSizes == null) {
+			return kernel.enqueueNDRange(queue, profile.getGlobalSizes(elemCount), eventsToWaitFor);
+		}
+		return kernel.enqueueNDRange(queue, profile.getGlobalSizes(elemCount), localSizes, eventsToWaitFor);
+	}
+}
@@ -0,0 +1,307 @@
+package org.geppetto.samplesolver;
+
+import static java.lang.System.nanoTime;
+import static org.bridj.Pointer.allocateFloats;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bridj.Pointer;
+
+import com.nativelibs4java.opencl.CLBuffer;
+import com.nativelibs4java.opencl.CLContext;
+import com.nativelibs4java.opencl.CLDevice;
+import com.nativelibs4java.opencl.CLKernel;
+import com.nativelibs4java.opencl.CLMem.Usage;
+import com.nativelibs4java.opencl.CLPlatform.DeviceFeature;
+import com.nativelibs4java.opencl.CLProgram;
+import com.nativelibs4java.opencl.CLQueue;
+import com.nativelibs4java.opencl.JavaCL;
+import com.nativelibs4java.util.IOUtils;
+
+/**
+ * Long-lived OpenCL resources used by the solver. Context, queue, program and
+ * kernel are created once and reused across solve() calls, the buffers used by
+ * solve() are kept as long as the population size doesn't change. The program
+ * is compiled once for each vector width it is used with, or loaded from a
+ * {@link KernelBinaryCache} if one is set.
+ * 
+ * A session can create lanes, sessions sharing its context, compiled programs
+ * and rate table but with their own queue, kernels and buffers, so that
+ * several solves can run concurrently on the same device. A session and its
+ * lanes are each meant to be used by one thread at a time.
+ */
+class OpenCLSession {
+
+	private static final Log _logger = LogFactory.getLog(OpenCLSession.class);
+
+	// the session owning the context and programs, null for the owner itself
+	private final OpenCLSession _owner;
+
+	private CLContext _context;
+	private CLQueue _queue;
+	private CLQueue _readQueue;
+	private String _source;
+	private String _kernelName;
+	private Map<Integer, CLProgram> _programs = new HashMap<Integer, CLProgram>();
+	private Map<Integer, CLKernel> _kernels = new HashMap<Integer, CLKernel>();
+	private final SolverMetrics _metrics;
+
+	// buffers reused by consecutive solve() calls
+	private DeviceState _state;
+
+	// rate table of the TABLE variant, uploaded once
+	private RateTable _rateTable;
+	private CLBuffer<Float> _rateTableBuffer;
+
+	// compiled programs persisted across restarts, null to always compile
+	private KernelBinaryCache _binaryCache;
+
+	/**
+	 * Creates the context and queue on the best CPU device and reads the
+	 * kernel sources
+	 *
+	 * @param kernelPath: classpath location of the kernel sources
+	 * @param kernelName: name of the kernel function
+	 * @param metrics: times the builds of the programs
+	 * @throws IOException if the kernel sources can't be read
+	 */
+	OpenCLSession(String kernelPath, String kernelName, SolverMetrics metrics) throws IOException {
+		this(JavaCL.createBestContext(DeviceFeature.CPU), kernelPath, kernelName, metrics);
+	}
+
+	/**
+	 * Creates the context and queue on the given device and reads the kernel
+	 * sources
+	 *
+	 * @param device: the device kernels are run on
+	 * @param kernelPath: classpath location of the kernel sources
+	 * @param kernelName: name of the kernel function
+	 * @param metrics: times the builds of the programs
+	 * @throws IOException if the kernel sources can't be read
+	 */
+	OpenCLSession(CLDevice device, String kernelPath, String kernelName, SolverMetrics metrics) throws IOException {
+		this(device.getPlatform().createContext(null, device), kernelPath, kernelName, metrics);
+	}
+
+	private OpenCLSession(CLContext context, String kernelPath, String kernelName, SolverMetrics metrics) throws IOException {
+		_owner = null;
+		_context = context;
+		_metrics = metrics;
+		_logger.info("Using OpenCL device " + _context.getDevices()[0]);
+		_queue = _context.createDefaultQueue(CLDevice.QueueProperties.ProfilingEnable);
+
+		// Read the program sources, they are compiled on first use
+		_source = IOUtils.readText(OpenCLSession.class.getResource(kernelPath));
+		_kernelName = kernelName;
+	}
+
+	/**
+	 * Lane of the given session, see {@link #createLane()}
+	 */
+	private OpenCLSession(OpenCLSession owner) {
+		_owner = owner;
+		_context = owner._context;
+		_metrics = owner._metrics;
+		_queue = _context.createDefaultQueue(CLDevice.QueueProperties.ProfilingEnable);
+		_source = owner._source;
+		_kernelName = owner._kernelName;
+		_rateTable = owner._rateTable;
+	}
+
+	/**
+	 * Creates a lane sharing the context, programs and rate table of this
+	 * session, with its own queue, kernels and buffers. Lanes must be released
+	 * before the session that created them.
+	 * 
+	 * @return the new lane
+	 */
+	OpenCLSession createLane() {
+		if (_owner != null) {
+			return _owner.createLane();
+		}
+		return new OpenCLSession(this);
+	}
+
+	CLContext getContext() {
+		return _context;
+	}
+
+	CLQueue getQueue() {
+		return _queue;
+	}
+
+	/**
+	 * @return a second queue of this lane, so that reads can overlap the
+	 *         kernels of the main queue, created on first use
+	 */
+	CLQueue getReadQueue() {
+		if (_readQueue == null) {
+			_readQueue = _context.createDefaultQueue();
+		}
+		return _readQueue;
+	}
+
+	/**
+	 * @return the device kernels are run on
+	 */
+	CLDevice getDevice() {
+		return _context.getDevices()[0];
+	}
+
+	/**
+	 * Sets the rate table bound to the kernel arguments that follow the
+	 * common ones, must be called before the kernel is first used
+	 * 
+	 * @param rateTable: the table
+	 * @throws IllegalArgumentException if the table doesn't fit the constant
+	 *             memory of the device
+	 */
+	void setRateTable(RateTable rateTable) {
+		long maxBytes = getDevice().getMaxConstantBufferSize();
+		if (rateTable.getByteCount() > maxBytes) {
+			throw new IllegalArgumentException("Rate table of " + rateTable.getByteCount() + " bytes exceeds the " + maxBytes + " bytes of constant memory of the device, use a larger step");
+		}
+		_rateTable = rateTable;
+	}
+
+	/**
+	 * Sets the cache programs are loaded from and stored to, must be called
+	 * before the kernel is first used
+	 * 
+	 * @param binaryCache: the cache, null to compile from source
+	 */
+	void setBinaryCache(KernelBinaryCache binaryCache) {
+		_binaryCache = binaryCache;
+	}
+
+	/**
+	 * Returns the kernel compiled for the given vector width, compiling it on
+	 * first use
+	 * 
+	 * @param vectorWidth: value of the VECTOR_WIDTH macro
+	 * @return the kernel
+	 */
+	CLKernel getKernel(int vectorWidth) {
+		CLKernel kernel = _kernels.get(vectorWidth);
+		if (kernel == null) {
+			OpenCLSession owner = _owner == null ? this : _owner;
+			kernel = owner.getProgram(vectorWidth).createKernel(_kernelName);
+			if (_rateTable != null) {
+				bindRateTable(kernel, owner.getRateTableBuffer());
+			}
+			_kernels.put(vectorWidth, kernel);
+		}
+		return kernel;
+	}
+
+	/**
+	 * Returns the program compiled for the given vector width, shared by all
+	 * the lanes, compiling or loading it on first use
+	 */
+	private synchronized CLProgram getProgram(int vectorWidth) {
+		CLProgram program = _programs.get(vectorWidth);
+		if (program == null) {
+			Map<String, String> macros = new LinkedHashMap<String, String>();
+			macros.put("VECTOR_WIDTH", Integer.toString(vectorWidth));
+			macros.put("SCALED_V_MIN", StorageFormat.SCALED_V_MIN + "f");
+			macros.put("SCALED_V_MAX", StorageFormat.SCALED_V_MAX + "f");
+			long compileTime = nanoTime();
+			if (_binaryCache != null) {
+				program = _binaryCache.build(_context, _source, macros);
+			} else {
+				program = _context.createProgram(_source);
+				KernelBinaryCache.defineMacros(program, macros);
+				program.build();
+			}
+			_metrics.record(SolverMetrics.Phase.COMPILE, nanoTime() - compileTime);
+			_programs.put(vectorWidth, program);
+		}
+		return program;
+	}
+
+	/**
+	 * @return the rate table buffer shared by all the lanes, uploaded on
+	 *         first use
+	 */
+	private synchronized CLBuffer<Float> getRateTableBuffer() {
+		if (_rateTableBuffer == null) {
+			float[] rows = _rateTable.getValues();
+			Pointer<Float> values = allocateFloats(rows.length).order(_context.getByteOrder());
+			values.setFloats(rows);
+			_rateTableBuffer = _context.createFloatBuffer(Usage.Input, values, true);
+			values.release();
+		}
+		return _rateTableBuffer;
+	}
+
+	/**
+	 * Binds the rate table to the arguments following the common ones, see
+	 * OpenCLBackend.setArgs()
+	 */
+	private void bindRateTable(CLKernel kernel, CLBuffer<Float> rateTableBuffer) {
+		kernel.setArg(OpenCLBackend.COMMON_ARGS, rateTableBuffer);
+		kernel.setArg(OpenCLBackend.COMMON_ARGS + 1, RateTable.V_MIN);
+		kernel.setArg(OpenCLBackend.COMMON_ARGS + 2, _rateTable.getInvStep());
+		kernel.setArg(OpenCLBackend.COMMON_ARGS + 3, _rateTable.getPoints());
+	}
+
+	/**
+	 * @return the state buffers shared by solve() calls, reallocated when the
+	 *         population size changes
+	 */
+	DeviceState getState(int elemCount) {
+		if (_state == null || _state.getElemCount() != elemCount) {
+			if (_state != null) {
+				_state.release();
+			}
+			_state = new DeviceState(_context, elemCount);
+		}
+		return _state;
+	}
+
+	/**
+	 * Releases all the device resources held by this session, only the queue,
+	 * kernels and buffers for a lane
+	 */
+	void release() {
+		if (_state != null) {
+			_state.release();
+			_state = null;
+		}
+
+		if (_readQueue != null) {
+			_readQueue.release();
+			_readQueue = null;
+		}
+
+		if (_owner != null) {
+			for (CLKernel kernel : _kernels.values()) {
+				kernel.release();
+			}
+			_kernels.clear();
+			_queue.release();
+			return;
+		}
+
+		if (_rateTableBuffer != null) {
+			_rateTableBuffer.release();
+			_rateTableBuffer = null;
+		}
+
+		for (CLKernel kernel : _kernels.values()) {
+			kernel.release();
+		}
+		for (CLProgram program : _programs.values()) {
+			program.release();
+		}
+		_kernels.clear();
+		_programs.clear();
+		_queue.release();
+		_context.release();
+	}
+}
@@ -0,0 +1,94 @@
+package org.geppetto.samplesolver;
+
+/**
+ * Grid of channel parameters, the cartesian product of the values given for
+ * each parameter. Parameters without values keep their default. Point i of
+ * the grid varies E_Leak fastest and maxG_K slowest.
+ */
+public class ParameterSweep {
+
+	private static final HHParameters DEFAULTS = new HHParameters();
+
+	private float[] _maxG_K = { DEFAULTS.maxG_K };
+	private float[] _maxG_Na = { DEFAULTS.maxG_Na };
+	private float[] _maxG_Leak = { DEFAULTS.maxG_Leak };
+	private float[] _E_K = { DEFAULTS.E_K };
+	private float[] _E_Na = { DEFAULTS.E_Na };
+	private float[] _E_Leak = { DEFAULTS.E_Leak };
+
+	/**
+	 * @return count values evenly spaced from first to last, both included
+	 */
+	public static float[] range(float first, float last, int count) {
+		float[] values = new float[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = count == 1 ? first : first + (last - first) * i / (count - 1);
+		}
+		return values;
+	}
+
+	public ParameterSweep maxG_K(float... values) {
+		_maxG_K = check(values);
+		return this;
+	}
+
+	public ParameterSweep maxG_Na(float... values) {
+		_maxG_Na = check(values);
+		return this;
+	}
+
+	public ParameterSweep maxG_Leak(float... values) {
+		_maxG_Leak = check(values);
+		return this;
+	}
+
+	public ParameterSweep E_K(float... values) {
+		_E_K = check(values);
+		return this;
+	}
+
+	public ParameterSweep E_Na(float... values) {
+		_E_Na = check(values);
+		return this;
+	}
+
+	public ParameterSweep E_Leak(float... values) {
+		_E_Leak = check(values);
+		return this;
+	}
+
+	/**
+	 * @return the number of points of the grid
+	 */
+	public int size() {
+		long size = (long) _maxG_K.length * _maxG_Na.length * _maxG_Leak.length * _E_K.length * _E_Na.length * _E_Leak.length;
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Sweep too large: " + size + " points");
+		}
+		return (int) size;
+	}
+
+	/**
+	 * @return the parameters of point i of the grid
+	 */
+	public HHParameters get(int i) {
+		int E_Leak = i % _E_Leak.length;
+		i /= _E_Leak.length;
+		int E_Na = i % _E_Na.length;
+		i /= _E_Na.length;
+		int E_K = i % _E_K.length;
+		i /= _E_K.length;
+		int maxG_Leak = i % _maxG_Leak.length;
+		i /= _maxG_Leak.length;
+		int maxG_Na = i % _maxG_Na.length;
+		i /= _maxG_Na.length;
+		return new HHParameters(_maxG_K[i], _maxG_Na[maxG_Na], _maxG_Leak[maxG_Leak], _E_K[E_K], _E_Na[E_Na], _E_Leak[E_Leak]);
+	}
+
+	private static float[] check(float[] values) {
+		if (values.length == 0) {
+			throw new IllegalArgumentException("No values for a swept parameter");
+		}
+		return values.clone();
+	}
+}
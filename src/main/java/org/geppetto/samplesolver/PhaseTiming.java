@@ -0,0 +1,134 @@
+package org.geppetto.samplesolver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of the durations of one phase. Durations are counted in buckets
+ * of 8 per power of two nanoseconds, so recording only takes a few atomic
+ * increments and percentiles are within 1/16 of their value. Recording is
+ * thread safe and never blocks.
+ */
+public class PhaseTiming implements PhaseTimingMBean {
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray _buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong _count = new AtomicLong();
+	private final AtomicLong _totalNanos = new AtomicLong();
+	private final AtomicLong _maxNanos = new AtomicLong();
+
+	/**
+	 * Records the duration of one call
+	 */
+	void record(long nanos) {
+		nanos = Math.max(0, nanos);
+		_buckets.incrementAndGet(bucketOf(nanos));
+		_count.incrementAndGet();
+		_totalNanos.addAndGet(nanos);
+		long max = _maxNanos.get();
+		while (nanos > max && !_maxNanos.compareAndSet(max, nanos)) {
+			max = _maxNanos.get();
+		}
+	}
+
+	public long getCount() {
+		return _count.get();
+	}
+
+	public double getTotalMillis() {
+		return _totalNanos.get() / 1e6;
+	}
+
+	long getTotalNanos() {
+		return _totalNanos.get();
+	}
+
+	public double getMeanMillis() {
+		long count = _count.get();
+		return count == 0 ? 0 : _totalNanos.get() / 1e6 / count;
+	}
+
+	public double getMaxMillis() {
+		return _maxNanos.get() / 1e6;
+	}
+
+	public double getMedianMillis() {
+		return getPercentileMillis(50);
+	}
+
+	public double get90thPercentileMillis() {
+		return getPercentileMillis(90);
+	}
+
+	public double get99thPercentileMillis() {
+		return getPercentileMillis(99);
+	}
+
+	public double getPercentileMillis(double percentile) {
+		long count = 0;
+		long[] buckets = new long[BUCKETS];
+		for (int b = 0; b < BUCKETS; b++) {
+			buckets[b] = _buckets.get(b);
+			count += buckets[b];
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * count));
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += buckets[b];
+			if (seen >= rank) {
+				// middle of the bucket, never above the largest duration
+				long middle = lowerBound(b) + (width(b) - 1) / 2;
+				return Math.min(middle, _maxNanos.get()) / 1e6;
+			}
+		}
+		return getMaxMillis();
+	}
+
+	public void reset() {
+		for (int b = 0; b < BUCKETS; b++) {
+			_buckets.set(b, 0);
+		}
+		_count.set(0);
+		_totalNanos.set(0);
+		_maxNanos.set(0);
+	}
+
+	/**
+	 * @return the bucket of a duration: durations below 8ns have their own,
+	 *         each power of two above is split in 8
+	 */
+	static int bucketOf(long nanos) {
+		if (nanos < SUB_BUCKETS) {
+			return (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return the shortest duration of a bucket
+	 */
+	static long lowerBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+	}
+
+	private static long width(int bucket) {
+		return bucket < SUB_BUCKETS ? 1 : 1L << (bucket / SUB_BUCKETS - 1);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d calls, mean %.3fms, median %.3fms, 99%% %.3fms, max %.3fms", getCount(), getMeanMillis(), getMedianMillis(), get99thPercentileMillis(), getMaxMillis());
+	}
+}
@@ -0,0 +1,37 @@
+package org.geppetto.samplesolver;
+
+/**
+ * JMX view of the timings of one phase of the solver, see
+ * {@link SolverMetrics}
+ */
+public interface PhaseTimingMBean {
+
+	/**
+	 * @return the number of timed calls
+	 */
+	long getCount();
+
+	double getTotalMillis();
+
+	double getMeanMillis();
+
+	double getMaxMillis();
+
+	double getMedianMillis();
+
+	double get90thPercentileMillis();
+
+	double get99thPercentileMillis();
+
+	/**
+	 * @param percentile: between 0 and 100
+	 * @return the duration not exceeded by the given percentage of the
+	 *         calls, within 1/16 of its value
+	 */
+	double getPercentileMillis(double percentile);
+
+	/**
+	 * Clears the timings
+	 */
+	void reset();
+}
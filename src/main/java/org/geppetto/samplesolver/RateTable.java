@@ -0,0 +1,186 @@
+package org.geppetto.samplesolver;
+
+/**
+ * Steady state values x0 and rates 1/tau of the n, m and h gates sampled on
+ * a uniform voltage grid, read with linear interpolation instead of
+ * evaluating the alpha and beta functions. Each row holds x0 for n, m, h, a
+ * pad, then 1/tau for n, m, h and a pad, so that a row is two float4 in the
+ * kernel. V outside the grid falls back to the analytic functions.
+ */
+public class RateTable {
+
+	/**
+	 * Lowest voltage of the grid, in mV
+	 */
+	public static final float V_MIN = -50;
+
+	/**
+	 * Highest voltage of the grid, in mV
+	 */
+	public static final float V_MAX = 150;
+
+	/**
+	 * Floats per row
+	 */
+	static final int ROW_SIZE = 8;
+
+	// points where the interpolation error is measured in each interval
+	private static final int ERROR_SAMPLES = 16;
+
+	private final float _step;
+	private final float _invStep;
+	private final int _points;
+	private final float[] _values;
+	private float _maxX0Error;
+	private float _maxRateError;
+
+	/**
+	 * @param step: grid resolution in mV
+	 */
+	public RateTable(float step) {
+		if (!(step > 0)) {
+			throw new IllegalArgumentException("Invalid rate table step: " + step);
+		}
+		_step = step;
+		_invStep = 1 / step;
+		_points = (int) Math.ceil((V_MAX - V_MIN) / step) + 1;
+		_values = new float[_points * ROW_SIZE];
+
+		double[] row = new double[6];
+		for (int i = 0; i < _points; i++) {
+			analyticRow(V_MIN + (double) i * step, row);
+			for (int k = 0; k < 3; k++) {
+				_values[i * ROW_SIZE + k] = (float) row[k];
+				_values[i * ROW_SIZE + k + 4] = (float) row[k + 3];
+			}
+		}
+		measureError();
+	}
+
+	public float getStep() {
+		return _step;
+	}
+
+	float getInvStep() {
+		return _invStep;
+	}
+
+	/**
+	 * @return number of voltages in the grid
+	 */
+	public int getPoints() {
+		return _points;
+	}
+
+	/**
+	 * @return the size of the table uploaded to the device
+	 */
+	public long getByteCount() {
+		return 4L * _values.length;
+	}
+
+	/**
+	 * @return the rows of the table, not copied
+	 */
+	float[] getValues() {
+		return _values;
+	}
+
+	/**
+	 * @return the largest absolute error of the interpolated x0 of any gate
+	 *         against the analytic value
+	 */
+	public float getMaxX0Error() {
+		return _maxX0Error;
+	}
+
+	/**
+	 * @return the largest error of the interpolated 1/tau of any gate,
+	 *         relative to the analytic value
+	 */
+	public float getMaxRateError() {
+		return _maxRateError;
+	}
+
+	/**
+	 * Interpolates the row for V
+	 * 
+	 * @param r: scratch array for the analytic rates, used outside the grid
+	 * @param row: receives x0 for n, m, h then 1/tau for n, m, h
+	 */
+	void lookup(float V, float[] r, float[] row) {
+		float u = (V - V_MIN) * _invStep;
+		if (u >= 0 && u < _points - 1) {
+			int i = (int) u;
+			float f = u - i;
+			int lo = i * ROW_SIZE;
+			int hi = lo + ROW_SIZE;
+			for (int k = 0; k < 3; k++) {
+				row[k] = _values[lo + k] + (_values[hi + k] - _values[lo + k]) * f;
+				row[k + 3] = _values[lo + k + 4] + (_values[hi + k + 4] - _values[lo + k + 4]) * f;
+			}
+		} else {
+			JavaBackend.rates(V, r);
+			for (int k = 0; k < 3; k++) {
+				float rate = r[k] + r[k + 3];
+				row[k] = r[k] / rate;
+				row[k + 3] = rate;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return _points + " points every " + _step + "mV, max x0 error " + _maxX0Error + ", max relative 1/tau error " + _maxRateError;
+	}
+
+	/**
+	 * x0 and 1/tau in double precision, alpha_n and alpha_m are replaced by
+	 * their limits where they are 0/0 (V = 10 and V = 25)
+	 * 
+	 * @param row: receives x0 for n, m, h then 1/tau for n, m, h
+	 */
+	static void analyticRow(double V, double[] row) {
+		double alpha_n = relative(10 - V) / 10;
+		double alpha_m = relative(25 - V);
+		double alpha_h = 0.07 * Math.exp(-V / 20);
+		double beta_n = 0.125 * Math.exp(-V / 80);
+		double beta_m = 4 * Math.exp(-V / 18);
+		double beta_h = 1 / (Math.exp((30 - V) / 10) + 1);
+		row[0] = alpha_n / (alpha_n + beta_n);
+		row[1] = alpha_m / (alpha_m + beta_m);
+		row[2] = alpha_h / (alpha_h + beta_h);
+		row[3] = alpha_n + beta_n;
+		row[4] = alpha_m + beta_m;
+		row[5] = alpha_h + beta_h;
+	}
+
+	/**
+	 * @return (x / 10) / (exp(x / 10) - 1), 1 at x = 0
+	 */
+	private static double relative(double x) {
+		double y = x / 10;
+		return Math.abs(y) < 1e-6 ? 1 - y / 2 : y / Math.expm1(y);
+	}
+
+	/**
+	 * Compares the interpolated values with the analytic ones inside every
+	 * interval of the grid
+	 */
+	private void measureError() {
+		float[] r = new float[6];
+		float[] row = new float[6];
+		double[] exact = new double[6];
+		for (int i = 0; i < _points - 1; i++) {
+			for (int s = 1; s < ERROR_SAMPLES; s++) {
+				double V = V_MIN + (i + (double) s / ERROR_SAMPLES) * _step;
+				lookup((float) V, r, row);
+				analyticRow(V, exact);
+				for (int k = 0; k < 3; k++) {
+					_maxX0Error = (float) Math.max(_maxX0Error, Math.abs(row[k] - exact[k]));
+					_maxRateError = (float) Math.max(_maxRateError, Math.abs(row[k + 3] - exact[k + 3]) / exact[k + 3]);
+				}
+			}
+		}
+	}
+}
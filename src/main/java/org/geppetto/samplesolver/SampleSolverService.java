@@ -1,189 +1,733 @@
 package org.geppetto.samplesolver;
 
 import static java.lang.System.nanoTime;
-import static java.lang.System.out;
 
-import java.nio.ByteOrder;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import org.bridj.Pointer;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.geppetto.core.model.HHModel;
 import org.geppetto.core.model.IModel;
 import org.geppetto.core.simulation.ITimeConfiguration;
 import org.geppetto.core.solver.ISolver;
+import org.geppetto.samplesolver.HHResults.Variable;
 import org.springframework.stereotype.Service;
 
-import static org.bridj.Pointer.allocateFloats;
-import com.nativelibs4java.opencl.CLBuffer;
-import com.nativelibs4java.opencl.CLContext;
-import com.nativelibs4java.opencl.CLEvent;
-import com.nativelibs4java.opencl.CLKernel;
-import com.nativelibs4java.opencl.CLMem.Usage;
-import com.nativelibs4java.opencl.CLPlatform.DeviceFeature;
-import com.nativelibs4java.opencl.CLProgram;
-import com.nativelibs4java.opencl.CLQueue;
-import com.nativelibs4java.opencl.JavaCL;
-import com.nativelibs4java.util.IOUtils;
-
 /**
  * A simple implementation of the ISolver interface for solving Hodking Huxley
  * equation given models. This implementation is internal to this module and is
  * not exported to other bundles.
+ * 
+ * The service is shared by all the callers and keeps no per-call state, calls
+ * can be made concurrently from any number of threads. Solves hold the read
+ * side of a lock while they use the backend, configuration changes and
+ * shutdown take the write side so the backend is only replaced or released
+ * once the calls in progress have returned.
  */
 @Service
 public class SampleSolverService implements ISolver {
 
+	private static final Log _logger = LogFactory.getLog(SampleSolverService.class);
+
 	private String KERNEL_PATH = "/resource/AlphaHHKernel_Tuning.cl";
-	private String KERNEL_NAME = "IntegrateHHStep";
 
-	private List<IModel> _models;
+	private final ReadWriteLock _lock = new ReentrantReadWriteLock();
+
+	// guards the creation of the backend by concurrent solves
+	private final Object _backendLock = new Object();
+
+	private SolverConfiguration _configuration = new SolverConfiguration();
+	private HHBackend _backend;
+	private SolveBatcher _batcher;
 
-	// max conductances
-	float maxG_K = 36;
-	float maxG_Na = 120;
-	float maxG_Leak = (float) 0.3;
-	// reverse potentials
-	float E_K = -12;
-	float E_Na = 115;
-	float E_Leak = (float) 10.613;
+	private HHParameters _parameters = new HHParameters();
+
+	// timings of the calls, registered as MBeans with the first backend
+	private final SolverMetrics _metrics = new SolverMetrics();
+
+	// runs the windows of asynchronous solves, never waits for a device,
+	// created with the first of them and shut down with the service
+	private ExecutorService _asyncExecutor;
 
 	public List<List<IModel>> solve(final List<IModel> models, final ITimeConfiguration timeConfiguration) {
-		out.println("Solver invoked with " + models.size() + " models");
-
-		_models = models;
-		List<List<IModel>> results = null;
-		int ELEM_COUNT = models.size();
-
-		try {
-			CLContext context = JavaCL.createBestContext(DeviceFeature.CPU);
-			out.println(context.getDevices()[0].toString());
-			CLQueue queue = context.createDefaultQueue();
-			ByteOrder byteOrder = context.getByteOrder();
-
-			// Read the program sources and compile them :
-			String src = IOUtils.readText(SampleSolverService.class.getResource(KERNEL_PATH));
-			CLProgram program = context.createProgram(src);
-
-			// I/O BUFFERS DECLARATION
-			Pointer<Float> I_in_Ptr = allocateFloats(ELEM_COUNT).order(byteOrder);
-			Pointer<Float> V_in_Ptr = allocateFloats(ELEM_COUNT).order(byteOrder);
-			Pointer<Float> x_n_in_Ptr = allocateFloats(ELEM_COUNT).order(byteOrder);
-			Pointer<Float> x_m_in_Ptr = allocateFloats(ELEM_COUNT).order(byteOrder);
-			Pointer<Float> x_h_in_Ptr = allocateFloats(ELEM_COUNT).order(byteOrder);
-
-			// fill input buffers with initial conditions
-			initInputBuffers(models, I_in_Ptr, V_in_Ptr, x_n_in_Ptr, x_m_in_Ptr, x_h_in_Ptr);
-
-			// Create OpenCL input buffers (using the native memory pointers) :
-			CLBuffer<Float> I_in_Buffer = context.createFloatBuffer(Usage.Input, I_in_Ptr);
-			CLBuffer<Float> V_in_Buffer = context.createFloatBuffer(Usage.Input, V_in_Ptr);
-			CLBuffer<Float> x_n_in_Buffer = context.createFloatBuffer(Usage.Input, x_n_in_Ptr);
-			CLBuffer<Float> x_m_in_Buffer = context.createFloatBuffer(Usage.Input, x_m_in_Ptr);
-			CLBuffer<Float> x_h_in_Buffer = context.createFloatBuffer(Usage.Input, x_h_in_Ptr);
-			CLBuffer<Float> V_results_Buffer = context.createFloatBuffer(Usage.Output, ELEM_COUNT * timeConfiguration.getTimeSteps());
-			CLBuffer<Float> Xn_results_Buffer = context.createFloatBuffer(Usage.Output, ELEM_COUNT * timeConfiguration.getTimeSteps());
-			CLBuffer<Float> Xm_results_Buffer = context.createFloatBuffer(Usage.Output, ELEM_COUNT * timeConfiguration.getTimeSteps());
-			CLBuffer<Float> Xh_results_Buffer = context.createFloatBuffer(Usage.Output, ELEM_COUNT * timeConfiguration.getTimeSteps());
-
-			// get a reference to the kernel function
-			CLKernel integrateHHStepKernel = program.createKernel(KERNEL_NAME);
-
-			long compuTime = nanoTime();
-
-			integrateHHStepKernel.setArgs(maxG_K, maxG_Na, maxG_Leak, 
-										  E_K, E_Na, E_Leak, 
-										  timeConfiguration.getTimeStepLength(), timeConfiguration.getTimeSteps(), 
-										  I_in_Buffer, V_in_Buffer, x_n_in_Buffer, x_m_in_Buffer, x_h_in_Buffer,
-										  V_results_Buffer, Xn_results_Buffer, Xm_results_Buffer, Xh_results_Buffer, ELEM_COUNT);
-
-			int[] globalSizes = new int[] { ELEM_COUNT };
-			CLEvent integrateEvt = integrateHHStepKernel.enqueueNDRange(queue, globalSizes);
-
-			// blocks until add_floats finished
-			Pointer<Float> V_out_Ptr = V_results_Buffer.read(queue,	integrateEvt);
-			Pointer<Float> x_n_out_Ptr = Xn_results_Buffer.read(queue, integrateEvt);
-			Pointer<Float> x_m_out_Ptr = Xm_results_Buffer.read(queue, integrateEvt);
-			Pointer<Float> x_h_out_Ptr = Xh_results_Buffer.read(queue, integrateEvt);
-
-			compuTime = nanoTime() - compuTime;
-
-			out.println("computation took: " + (compuTime / 1000000) + "ms");
-			out.println("end of solver computation");
-
-			// return all the models sampled as specified in timeConfiguration
-			results = convertBufferToModel(V_out_Ptr, x_n_out_Ptr, x_m_out_Ptr, x_h_out_Ptr, models.size(), timeConfiguration);
+		HHResults results = solveColumnar(models, timeConfiguration);
+		if (results == null) {
+			return null;
+		}
+		long conversionTime = nanoTime();
+		List<List<IModel>> converted = results.asModels();
+		_metrics.record(SolverMetrics.Phase.CONVERSION, nanoTime() - conversionTime);
+		return converted;
+	}
+
+	/**
+	 * Solves the given models and returns the sampled values as primitive
+	 * columns, without creating any HHModel unless asked through
+	 * {@link HHResults#asModels()}.
+	 * 
+	 * @param models: a list of models containing initial conditions
+	 * @param timeConfiguration: time configuration for this solver run
+	 * @return the sampled results, or null if the solver failed
+	 */
+	public HHResults solveColumnar(final List<IModel> models, final ITimeConfiguration timeConfiguration) {
+		_logger.debug("Solver invoked with " + models.size() + " models");
+
+		SolveBatcher batcher;
+		_lock.readLock().lock();
+		try {
+			batcher = _batcher;
+		} finally {
+			_lock.readLock().unlock();
+		}
+		if (batcher != null) {
+			return batcher.solve(models, timeConfiguration);
+		}
+		return solveDirect(models, timeConfiguration);
+	}
+
+	/**
+	 * Solves the given models in one launch, bypassing the batcher
+	 */
+	private HHResults solveDirect(List<IModel> models, ITimeConfiguration timeConfiguration) {
+		HHResults results = null;
+
+		_lock.readLock().lock();
+		try {
+			results = getBackend().solve(models, getIds(models), timeConfiguration, _parameters);
 		} catch (Exception e) {
-			// TODO: need to handle exceptions
-			e.printStackTrace();
+			_logger.error("HH simulation failed", e);
 		} finally {
-			System.out.println("End of HH simulation");
+			_lock.readLock().unlock();
 		}
 
 		return results;
 	}
 
 	/**
-	 * Given float buffers with all the results generates IModels
+	 * Solves the given models in windows of the given number of steps, each
+	 * window is passed to the consumer as soon as it is available and is not
+	 * kept by the solver. Memory use only depends on the window size, not on
+	 * the number of steps. On OpenCL the reads of a window overlap the
+	 * integration of the next one.
 	 * 
-	 * @param vBuffer: a buffer with all the v result values for each time step
-	 * @param xhBuffer: a buffer with all the xh result values for each time step
-	 * @param xnBuffer: a buffer with all xn result values for each time step
-	 * @param xmBuffer: a buffer with all xn result values for each time step
-	 * @param noModels: total number of models being evaluated
+	 * @param models: a list of models containing initial conditions
 	 * @param timeConfiguration: time configuration for this solver run
-	 * @return
+	 * @param windowSteps: number of steps of each window, a multiple of the
+	 *            sample period
+	 * @param consumer: receives the results of each window, in time order,
+	 *            an exception it throws stops the run and reaches the caller
+	 * @throws IOException if the kernel sources can't be read
 	 */
-	private List<List<IModel>> convertBufferToModel(Pointer<Float> vBuffer,	Pointer<Float> xnBuffer, Pointer<Float> xmBuffer, Pointer<Float> xhBuffer, Integer noModels, ITimeConfiguration timeConfiguration) {
-		List<List<IModel>> allModels = new ArrayList<List<IModel>>();
-		int currentModel = 1;
-		int timeStep = 1;
+	public void solveStreaming(final List<IModel> models, final ITimeConfiguration timeConfiguration, int windowSteps, SolveListener consumer) throws IOException {
+		_logger.debug("Solver invoked with " + models.size() + " models in windows of " + windowSteps + " steps");
+
+		_lock.readLock().lock();
+		try {
+			getBackend().stream(models, getIds(models), new TimeWindows(timeConfiguration, windowSteps), _parameters, consumer);
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
 
-		for (int i = 0; i < noModels * timeConfiguration.getTimeSteps(); i++) {
-			// current model is not contained yet, we have to add it
-			if (currentModel > allModels.size()) {
-				allModels.add(new ArrayList<IModel>());
+	/**
+	 * Solves the given models in windows of the given number of steps and
+	 * writes the samples to a memory-mapped trace file, for runs whose results
+	 * don't fit in the heap. The file is read back with {@link TraceReader}.
+	 * 
+	 * @param models: a list of models containing initial conditions
+	 * @param timeConfiguration: time configuration for this solver run
+	 * @param windowSteps: number of steps of each window, a multiple of the
+	 *            sample period
+	 * @param file: the trace file, replaced if it exists
+	 * @throws IOException if the kernel sources can't be read or the trace
+	 *             file can't be written
+	 */
+	public void solveToTrace(final List<IModel> models, final ITimeConfiguration timeConfiguration, int windowSteps, File file) throws IOException {
+		TraceWriter writer = new TraceWriter(file, timeConfiguration);
+		try {
+			solveStreaming(models, timeConfiguration, windowSteps, writer);
+		} catch (IllegalStateException e) {
+			// the writer reports its I/O failures unchecked, as a listener
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
 			}
+			throw e;
+		} finally {
+			writer.close();
+		}
+	}
 
-			// sample when the time step divided by the sample is not decimal
-			// NOTE: else what?
-			if (((float) timeStep / timeConfiguration.getSamplePeriod()) % 1 == 0) {
-				// sample result
-				allModels.get(currentModel - 1).add(new HHModel(_models.get(currentModel - 1).getId(), vBuffer.get(i), xnBuffer.get(i), xmBuffer.get(i), xhBuffer.get(i), 0.0f));
+	/**
+	 * Starts solving the given models in the background and returns
+	 * immediately. The run is integrated in windows of the given number of
+	 * steps, the listener is notified after each of them and the future
+	 * completes with the samples of all the windows. No thread is held while
+	 * a window runs on an OpenCL device, so any number of solves can be
+	 * pending. Changing the configuration or shutting the service down waits
+	 * for the windows running on the device, then the pending solves fail.
+	 * 
+	 * @param models: a list of models containing initial conditions
+	 * @param timeConfiguration: time configuration for this solver run
+	 * @param windowSteps: number of steps of each window, a multiple of the
+	 *            sample period
+	 * @param listener: notified of the progress, can be null
+	 * @return the future results, cancelling it stops the solve after the
+	 *         window in progress
+	 * @throws IOException if the kernel sources can't be read
+	 */
+	public SolveFuture solveAsync(final List<IModel> models, final ITimeConfiguration timeConfiguration, int windowSteps, SolveListener listener) throws IOException {
+		_logger.debug("Solver invoked asynchronously with " + models.size() + " models");
+
+		_lock.readLock().lock();
+		try {
+			SolveFuture future = new SolveFuture(getBackend(), models, getIds(models), _parameters, timeConfiguration, windowSteps, listener, getAsyncExecutor());
+			future.start();
+			return future;
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Solves the given models with a time-varying stimulus on top of the
+	 * external current of each model, the whole protocol runs in one launch.
+	 * 
+	 * @param models: a list of models containing initial conditions
+	 * @param stimuli: the stimulus of each model, in model order, null
+	 *            entries for none
+	 * @param timeConfiguration: time configuration for this solver run
+	 * @return the sampled results
+	 * @throws IOException if the kernel sources can't be read
+	 */
+	public HHResults solveColumnar(final List<IModel> models, final List<Stimulus> stimuli, final ITimeConfiguration timeConfiguration) throws IOException {
+		_logger.debug("Solver invoked with " + models.size() + " models and stimuli");
+		return solveState(models, stimuli, null, null, timeConfiguration);
+	}
+
+	/**
+	 * Solves the given models and detects their spikes on the device, see
+	 * {@link HHResults#getSpikes()}. With a sample period longer than the
+	 * run no sample is stored and only the spikes are transferred back.
+	 * 
+	 * @param models: a list of models containing initial conditions
+	 * @param stimuli: the stimulus of each model, in model order, null
+	 *            entries for none, null for no stimuli at all
+	 * @param timeConfiguration: time configuration for this solver run
+	 * @param detection: threshold and refractory period of the detection
+	 * @return the sampled results with their spikes
+	 * @throws IOException if the kernel sources can't be read
+	 */
+	public HHResults solveSpikes(final List<IModel> models, final List<Stimulus> stimuli, final ITimeConfiguration timeConfiguration, SpikeDetection detection) throws IOException {
+		_logger.debug("Solver invoked with " + models.size() + " models and spike detection");
+		return solveState(models, stimuli, null, detection, timeConfiguration);
+	}
+
+	/**
+	 * Solves the given models, each with its own channel parameters, in one
+	 * launch
+	 * 
+	 * @param models: a list of models containing initial conditions
+	 * @param parameters: the channel parameters of each model, in model
+	 *            order, null entries for the shared ones
+	 * @param timeConfiguration: time configuration for this solver run
+	 * @return the sampled results
+	 * @throws IOException if the kernel sources can't be read
+	 */
+	public HHResults solveWithParameters(final List<IModel> models, final List<HHParameters> parameters, final ITimeConfiguration timeConfiguration) throws IOException {
+		_logger.debug("Solver invoked with " + models.size() + " models and their own parameters");
+		return solveState(models, null, parameters, null, timeConfiguration);
+	}
+
+	/**
+	 * Solves one model for every point of a parameter sweep in one launch.
+	 * Result i, with id "modelId[i]", is the point i of the sweep, see
+	 * {@link ParameterSweep#get(int)}.
+	 * 
+	 * @param model: the initial conditions shared by all the points
+	 * @param sweep: the parameter grid
+	 * @param timeConfiguration: time configuration for this solver run
+	 * @return the sampled results
+	 * @throws IOException if the kernel sources can't be read
+	 */
+	public HHResults solveSweep(final IModel model, final ParameterSweep sweep, final ITimeConfiguration timeConfiguration) throws IOException {
+		HHModel initial = (HHModel) model;
+		int size = sweep.size();
+		List<IModel> models = new ArrayList<IModel>(size);
+		List<HHParameters> parameters = new ArrayList<HHParameters>(size);
+		for (int i = 0; i < size; i++) {
+			models.add(new HHModel(initial.getId() + "[" + i + "]", initial.getV(), initial.getXn(), initial.getXm(), initial.getXh(), initial.getI()));
+			parameters.add(sweep.get(i));
+		}
+		_logger.debug("Solver invoked with a sweep of " + size + " points");
+		return solveState(models, null, parameters, null, timeConfiguration);
+	}
+
+	/**
+	 * Solves the given models in a state of their own, with the optional
+	 * stimuli, per-model parameters and spike detection. Failures of the
+	 * backend reach the caller.
+	 */
+	private HHResults solveState(List<IModel> models, List<Stimulus> stimuli, List<HHParameters> parameters, SpikeDetection detection, ITimeConfiguration timeConfiguration) throws IOException {
+		NeuronState state = null;
+
+		_lock.readLock().lock();
+		try {
+			HHBackend backend = getBackend();
+			state = backend.createState(models);
+			for (int i = 0; stimuli != null && i < stimuli.size(); i++) {
+				state.setStimulus(i, stimuli.get(i));
 			}
+			for (int i = 0; parameters != null && i < parameters.size(); i++) {
+				state.setParameters(i, parameters.get(i));
+			}
+			state.setSpikeDetection(detection);
+			return backend.integrate(state, getIds(models), timeConfiguration, _parameters);
+		} finally {
+			if (state != null) {
+				state.release();
+			}
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Starts a simulation whose state stays in the backend between
+	 * consecutive time windows, see {@link HHSimulation}.
+	 * 
+	 * The simulation uses the backend in use when it is started, it must be
+	 * closed before the configuration is changed or the service is shut down.
+	 * 
+	 * @param models: a list of models containing initial conditions
+	 * @return the simulation, to be closed when no longer needed
+	 * @throws IOException if the kernel sources can't be read
+	 */
+	public HHSimulation startSimulation(final List<IModel> models) throws IOException {
+		_lock.readLock().lock();
+		try {
+			HHBackend backend = getBackend();
+			return new HHSimulation(backend, backend.createState(models), getIds(models), _parameters);
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Restores a simulation checkpointed with
+	 * {@link HHSimulation#checkpoint}, possibly by another process. The state
+	 * is loaded straight into the backend in use, which need not be the one
+	 * that wrote the snapshot, and the simulation continues from the
+	 * simulated time it was checkpointed at.
+	 * 
+	 * @param channel: channel the snapshot is read from, left open
+	 * @return the simulation, to be closed when no longer needed
+	 * @throws IOException if the kernel sources or the snapshot can't be
+	 *             read, or the snapshot is not valid
+	 */
+	public HHSimulation restoreSimulation(ReadableByteChannel channel) throws IOException {
+		_lock.readLock().lock();
+		try {
+			return StateSnapshot.read(channel, getBackend());
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Replaces the solver configuration, the current backend is released and
+	 * the next call creates one with the new configuration.
+	 * 
+	 * @param configuration: the configuration, copied
+	 */
+	public void setConfiguration(SolverConfiguration configuration) {
+		_lock.writeLock().lock();
+		try {
+			releaseBackend();
+			_configuration = new SolverConfiguration(configuration);
+			_batcher = createBatcher();
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return a copy of the solver configuration
+	 */
+	public SolverConfiguration getConfiguration() {
+		_lock.readLock().lock();
+		try {
+			return new SolverConfiguration(_configuration);
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the timings, throughput and transfers of the calls to this
+	 *         service, also exposed as MBeans under
+	 *         org.geppetto.samplesolver:type=SolverMetrics once a backend is
+	 *         created
+	 */
+	public SolverMetrics getMetrics() {
+		return _metrics;
+	}
+
+	/**
+	 * Selects the backend used from the next call on, the current backend is
+	 * released. Defaults to the value of the {@link SolverBackend#PROPERTY}
+	 * system property, or AUTO.
+	 * 
+	 * @param backendType: the backend to use
+	 */
+	public void setBackend(SolverBackend backendType) {
+		_lock.writeLock().lock();
+		try {
+			releaseBackend();
+			_configuration.setBackend(backendType);
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Selects the kernel run by the OpenCL backend from the next call on, the
+	 * current backend is released. Defaults to REFERENCE. The Java backend
+	 * also uses the rate table of TABLE and runs the REFERENCE math for the
+	 * other variants.
+	 * 
+	 * @param kernelVariant: the kernel to use
+	 */
+	public void setKernelVariant(KernelVariant kernelVariant) {
+		_lock.writeLock().lock();
+		try {
+			releaseBackend();
+			_configuration.setKernelVariant(kernelVariant);
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Sets the grid resolution of the rate table of the TABLE variant from
+	 * the next call on, the current backend is released. The interpolation
+	 * error against the analytic rates is printed when the table is built.
+	 * 
+	 * @param step: grid resolution in mV, defaults to 0.1
+	 */
+	public void setRateTableStep(float step) {
+		_lock.writeLock().lock();
+		try {
+			releaseBackend();
+			_configuration.setRateTableStep(step);
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
 
-			// advance or reset currentModel
-			if (currentModel == noModels) {
-				currentModel = 1;
-				timeStep++;
-			} else {
-				// advance
-				currentModel++;
+	/**
+	 * Selects the integration scheme from the next call on, the current
+	 * backend is released. Defaults to EULER.
+	 * 
+	 * @param integrator: the integration scheme
+	 */
+	public void setIntegrator(Integrator integrator) {
+		_lock.writeLock().lock();
+		try {
+			releaseBackend();
+			_configuration.setIntegrator(integrator);
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Enables benchmarking of the kernel launch shape for population sizes
+	 * without a stored launch profile, the winning shape is stored in the
+	 * profiles file for the following runs. Disabled by default.
+	 * 
+	 * @param autotune: true to enable tuning
+	 */
+	public void setAutotune(boolean autotune) {
+		_lock.writeLock().lock();
+		try {
+			releaseBackend();
+			_configuration.setAutotune(autotune);
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the name of the backend in use, creating it if needed
+	 * @throws IOException if the kernel sources can't be read
+	 */
+	public String getBackendName() throws IOException {
+		_lock.readLock().lock();
+		try {
+			return getBackend().getName();
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the backend, creating it on first use. For OpenCL the context,
+	 * queue and compiled kernel are then reused by all the following calls.
+	 * 
+	 * The caller must hold the read lock.
+	 * 
+	 * @return the backend owned by this service
+	 * @throws IOException if the kernel sources can't be read
+	 */
+	private HHBackend getBackend() throws IOException {
+		synchronized (_backendLock) {
+			if (_backend != null) {
+				return _backend;
+			}
+			_metrics.register();
+			long contextTime = nanoTime();
+			switch (_configuration.getBackend()) {
+			case OPENCL:
+				_backend = createOpenCLBackend();
+				break;
+			case JAVA:
+				_backend = new JavaBackend(new SolverConfiguration(_configuration), _metrics);
+				break;
+			default:
+				_backend = createBestBackend();
 			}
+			_metrics.record(SolverMetrics.Phase.CONTEXT, nanoTime() - contextTime);
+			_logger.info("Using " + _backend.getName() + " backend");
+			return _backend;
 		}
+	}
 
-		return allModels;
+	/**
+	 * @return the OpenCL backend if a device is available, the Java backend otherwise
+	 */
+	private HHBackend createBestBackend() throws IOException {
+		try {
+			return createOpenCLBackend();
+		} catch (LinkageError e) {
+			// no OpenCL library on this node
+			_logger.warn("OpenCL not available (" + e + "), falling back to Java");
+		} catch (RuntimeException e) {
+			// no usable OpenCL device
+			_logger.warn("OpenCL not available (" + e + "), falling back to Java");
+		}
+		return new JavaBackend(new SolverConfiguration(_configuration), _metrics);
 	}
 
 	/**
-	 * Input buffer initialization given a list of models with initial
-	 * conditions for the current run
+	 * @return an OpenCL backend on the best CPU device, or on all the CPU
+	 *         devices in multi-device mode
+	 */
+	private HHBackend createOpenCLBackend() throws IOException {
+		SolverConfiguration configuration = new SolverConfiguration(_configuration);
+		if (configuration.isMultiDevice()) {
+			return new MultiDeviceBackend(KERNEL_PATH, configuration, _metrics);
+		}
+		return new OpenCLBackend(KERNEL_PATH, configuration, _metrics);
+	}
+
+	/**
+	 * Splits populations across all the OpenCL CPU devices from the next call
+	 * on, the current backend is released. Disabled by default.
 	 * 
-	 * @param models: a list of models containing initial conditions
-	 * @param V_in: input buffer with V initial conditions
-	 * @param x_n_in: input buffer with xh initial conditions
-	 * @param x_m_in: input buffer with xm initial conditions
-	 * @param x_h_in: input buffer with xh initial conditions
-	 */
-	private void initInputBuffers(List<IModel> models, Pointer<Float> i_in, Pointer<Float> V_in, Pointer<Float> x_n_in, Pointer<Float> x_m_in, Pointer<Float> x_h_in) {
-		// load input buffers from models
-		for (int y = 0; y < models.size(); y++) {
-			HHModel model = (HHModel) models.get(y);
-			V_in.set(y, model.getV());
-			x_n_in.set(y, model.getXn());
-			x_m_in.set(y, model.getXm());
-			x_h_in.set(y, model.getXh());
-			i_in.set(y, model.getI());
+	 * @param multiDevice: true to use all the devices
+	 * @param computeUnitsPerSubDevice: if greater than 0, devices are split in
+	 *            sub-devices with this many compute units using device fission
+	 */
+	public void setMultiDevice(boolean multiDevice, int computeUnitsPerSubDevice) {
+		_lock.writeLock().lock();
+		try {
+			releaseBackend();
+			_configuration.setMultiDevice(multiDevice);
+			_configuration.setComputeUnitsPerSubDevice(computeUnitsPerSubDevice);
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Sets how many solves can run concurrently on each OpenCL device from the
+	 * next call on, the current backend is released. Defaults to 4, calls
+	 * beyond that wait for a lane to be free.
+	 * 
+	 * @param lanesPerDevice: max number of concurrent solves per device
+	 */
+	public void setLanesPerDevice(int lanesPerDevice) {
+		_lock.writeLock().lock();
+		try {
+			releaseBackend();
+			_configuration.setLanesPerDevice(lanesPerDevice);
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Sets the format the samples of a variable are stored in from the next
+	 * call on, see {@link SolverConfiguration#setStorageFormat}
+	 * 
+	 * @param variable: the variable
+	 * @param format: FLOAT, or a 16-bit format reading back half the data
+	 */
+	public void setStorageFormat(Variable variable, StorageFormat format) {
+		_lock.writeLock().lock();
+		try {
+			releaseBackend();
+			_configuration.setStorageFormat(variable, format);
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Lets the results of CPU devices wrap the memory the kernel writes to
+	 * from the next call on, see {@link SolverConfiguration#setZeroCopy}
+	 * 
+	 * @param zeroCopy: true to map the output buffers instead of reading
+	 *            them back
+	 */
+	public void setZeroCopy(boolean zeroCopy) {
+		_lock.writeLock().lock();
+		try {
+			releaseBackend();
+			_configuration.setZeroCopy(zeroCopy);
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Ends the integration of neurons without stimulus once they settled
+	 * from the next call on, see {@link SolverConfiguration#setSteadyState}
+	 * 
+	 * @param steadyState: the detection settings, null to turn it off
+	 */
+	public void setSteadyState(SteadyState steadyState) {
+		_lock.writeLock().lock();
+		try {
+			releaseBackend();
+			_configuration.setSteadyState(steadyState);
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Batches concurrent solveColumnar() and solve() calls sharing the same
+	 * time configuration into one launch from the next call on, see
+	 * {@link SolveBatcher}. Disabled by default.
+	 * 
+	 * @param maxWait: max time in ms a request waits for others to join its
+	 *            batch, 0 to disable batching
+	 * @param maxModels: number of models launching a batch without waiting
+	 */
+	public void setBatching(long maxWait, int maxModels) {
+		_lock.writeLock().lock();
+		try {
+			_configuration.setBatchMaxWait(maxWait);
+			_configuration.setBatchMaxModels(maxModels);
+			_batcher = createBatcher();
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return a batcher for the batching configuration, null if disabled
+	 */
+	private SolveBatcher createBatcher() {
+		if (_configuration.getBatchMaxWait() <= 0) {
+			return null;
+		}
+		return new SolveBatcher(new SolveBatcher.BatchSolver() {
+			@Override
+			public HHResults solve(List<IModel> models, ITimeConfiguration timeConfiguration) {
+				return solveDirect(models, timeConfiguration);
+			}
+		}, _configuration.getBatchMaxWait(), _configuration.getBatchMaxModels());
+	}
+
+	/**
+	 * Releases the backend once the calls in progress have returned, stops
+	 * the threads of the asynchronous solves and unregisters the metrics
+	 * MBeans, called when the bundle is stopped. The pending asynchronous
+	 * solves fail, and no window or listener runs once this returns.
+	 */
+	@PreDestroy
+	public void shutdown() {
+		ExecutorService asyncExecutor;
+		_lock.writeLock().lock();
+		try {
+			// the windows already queued still run and fail on the released
+			// backend, the later ones are rejected, so no future is left
+			// waiting
+			synchronized (_backendLock) {
+				asyncExecutor = _asyncExecutor;
+				_asyncExecutor = null;
+			}
+			if (asyncExecutor != null) {
+				asyncExecutor.shutdown();
+			}
+			releaseBackend();
+			_metrics.unregister();
+		} finally {
+			_lock.writeLock().unlock();
+		}
+
+		// outside the lock, a listener may still call the service
+		if (asyncExecutor != null) {
+			try {
+				asyncExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return the executor of the asynchronous solves, created on first use
+	 */
+	private ExecutorService getAsyncExecutor() {
+		synchronized (_backendLock) {
+			if (_asyncExecutor == null) {
+				_asyncExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new DaemonThreadFactory("HH-Async"));
+			}
+			return _asyncExecutor;
+		}
+	}
+
+	/**
+	 * Releases the backend, the caller must hold the write lock
+	 */
+	private void releaseBackend() {
+		if (_backend != null) {
+			_backend.release();
+			_backend = null;
+		}
+	}
+
+	/**
+	 * @return the ids of the given models, in the same order
+	 */
+	private String[] getIds(List<IModel> models) {
+		String[] ids = new String[models.size()];
+		for (int m = 0; m < ids.length; m++) {
+			ids[m] = models.get(m).getId();
 		}
+		return ids;
 	}
 };
\ No newline at end of file
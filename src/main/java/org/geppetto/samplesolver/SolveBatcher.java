@@ -0,0 +1,196 @@
+package org.geppetto.samplesolver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geppetto.core.model.IModel;
+import org.geppetto.core.simulation.ITimeConfiguration;
+
+/**
+ * Batching front end of the solver. Concurrent requests with the same time
+ * step, number of steps and sample period are concatenated and solved in one
+ * launch, each caller gets back the results of its own models. The first
+ * request of a batch waits up to the max wait for others to join, or less if
+ * the batch reaches the max number of models, then solves the batch on its
+ * own thread while the others wait for the results.
+ */
+class SolveBatcher {
+
+	private static final Log _logger = LogFactory.getLog(SolveBatcher.class);
+
+	/**
+	 * Solves a batch in one launch
+	 */
+	interface BatchSolver {
+		HHResults solve(List<IModel> models, ITimeConfiguration timeConfiguration);
+	}
+
+	private final BatchSolver _solver;
+	private final long _maxWait;
+	private final int _maxModels;
+
+	// batches still open to new requests, by time configuration
+	private final Map<BatchKey, Batch> _open = new HashMap<BatchKey, Batch>();
+
+	/**
+	 * @param solver: solves the batches
+	 * @param maxWait: max time in ms the first request of a batch waits
+	 * @param maxModels: number of models launching a batch without waiting
+	 */
+	SolveBatcher(BatchSolver solver, long maxWait, int maxModels) {
+		_solver = solver;
+		_maxWait = maxWait;
+		_maxModels = maxModels;
+	}
+
+	/**
+	 * Solves the given models as part of a batch
+	 * 
+	 * @return the results of the given models, or null if the batch failed
+	 */
+	HHResults solve(List<IModel> models, ITimeConfiguration timeConfiguration) {
+		BatchKey key = new BatchKey(timeConfiguration);
+		Batch batch;
+		int offset;
+		boolean leader = false;
+
+		synchronized (this) {
+			batch = _open.get(key);
+			if (batch != null && batch.models.size() + models.size() > _maxModels) {
+				// no room left, launch it and start a new one
+				close(key, batch);
+				batch = null;
+			}
+			if (batch == null) {
+				batch = new Batch();
+				_open.put(key, batch);
+				leader = true;
+			}
+			offset = batch.models.size();
+			batch.models.addAll(models);
+			batch.requests++;
+			if (batch.models.size() >= _maxModels) {
+				close(key, batch);
+			}
+		}
+
+		if (leader) {
+			lead(key, batch, timeConfiguration);
+		} else {
+			awaitResults(batch);
+		}
+
+		return batch.results == null ? null : batch.results.slice(offset, offset + models.size());
+	}
+
+	/**
+	 * Waits for other requests to join, then solves the batch and hands the
+	 * results to the other requests
+	 */
+	private void lead(BatchKey key, Batch batch, ITimeConfiguration timeConfiguration) {
+		boolean interrupted = false;
+		synchronized (this) {
+			long deadline = System.nanoTime() + _maxWait * 1000000;
+			long remaining = _maxWait * 1000000;
+			while (!batch.closed && remaining > 0) {
+				try {
+					wait(remaining / 1000000, (int) (remaining % 1000000));
+				} catch (InterruptedException e) {
+					// the other requests still need the batch to be solved
+					interrupted = true;
+					break;
+				}
+				remaining = deadline - System.nanoTime();
+			}
+			close(key, batch);
+		}
+
+		_logger.debug("Solving a batch of " + batch.models.size() + " models from " + batch.requests + " requests");
+		HHResults results = null;
+		try {
+			results = _solver.solve(batch.models, timeConfiguration);
+		} finally {
+			synchronized (this) {
+				batch.results = results;
+				batch.done = true;
+				notifyAll();
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private synchronized void awaitResults(Batch batch) {
+		boolean interrupted = false;
+		while (!batch.done) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// the results are on their way, keep the request consistent
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Closes a batch to new requests and wakes up its leader, the caller
+	 * must hold the lock
+	 */
+	private void close(BatchKey key, Batch batch) {
+		if (!batch.closed) {
+			batch.closed = true;
+			if (_open.get(key) == batch) {
+				_open.remove(key);
+			}
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Requests solved together
+	 */
+	private static class Batch {
+		final List<IModel> models = new ArrayList<IModel>();
+		int requests;
+		boolean closed;
+		boolean done;
+		HHResults results;
+	}
+
+	/**
+	 * Time configurations that can share a launch
+	 */
+	private static class BatchKey {
+		final float timeStepLength;
+		final int timeSteps;
+		final int samplePeriod;
+
+		BatchKey(ITimeConfiguration timeConfiguration) {
+			timeStepLength = timeConfiguration.getTimeStepLength();
+			timeSteps = timeConfiguration.getTimeSteps();
+			samplePeriod = timeConfiguration.getSamplePeriod();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof BatchKey)) {
+				return false;
+			}
+			BatchKey other = (BatchKey) obj;
+			return Float.floatToIntBits(timeStepLength) == Float.floatToIntBits(other.timeStepLength) && timeSteps == other.timeSteps && samplePeriod == other.samplePeriod;
+		}
+
+		@Override
+		public int hashCode() {
+			return (Float.floatToIntBits(timeStepLength) * 31 + timeSteps) * 31 + samplePeriod;
+		}
+	}
+}
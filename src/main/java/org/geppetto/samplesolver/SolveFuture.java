@@ -0,0 +1,260 @@
+package org.geppetto.samplesolver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.geppetto.core.model.IModel;
+import org.geppetto.core.simulation.ITimeConfiguration;
+
+/**
+ * An asynchronous solve, integrated one time window after the other. No
+ * thread is held while the device integrates a window: on OpenCL the next
+ * window is started from the completion callback of the previous one, on the
+ * other backends each window is a task of the solver executor. The state is
+ * only allocated when the first window starts, so pending solves don't hold
+ * any device memory. Cancelling stops the solve after the window in progress.
+ */
+public class SolveFuture implements Future<HHResults> {
+
+	private final HHBackend _backend;
+	private final List<IModel> _models;
+	private final String[] _ids;
+	private final HHParameters _parameters;
+	private final TimeWindows _timeWindows;
+	private final int _windows;
+	private final SolveListener _listener;
+	private final Executor _executor;
+
+	private NeuronState _state;
+	private final List<HHResults> _windowResults = new ArrayList<HHResults>();
+
+	// guarded by this
+	private boolean _done;
+	private boolean _cancelled;
+	private HHResults _results;
+	private Throwable _error;
+
+	/**
+	 * @param backend: the backend integrating the windows
+	 * @param models: a list of models containing initial conditions
+	 * @param ids: ids of the models, in the same order
+	 * @param parameters: channel parameters
+	 * @param timeConfiguration: time configuration for the whole solve
+	 * @param windowSteps: number of steps of each window, a multiple of the
+	 *            sample period
+	 * @param listener: notified of each window, can be null
+	 * @param executor: runs the windows and the listener
+	 */
+	SolveFuture(HHBackend backend, List<IModel> models, String[] ids, HHParameters parameters, ITimeConfiguration timeConfiguration, int windowSteps, SolveListener listener, Executor executor) {
+		_timeWindows = new TimeWindows(timeConfiguration, windowSteps);
+		_backend = backend;
+		_models = models;
+		_ids = ids;
+		_parameters = parameters;
+		_windows = _timeWindows.getCount();
+		_listener = listener;
+		_executor = executor;
+	}
+
+	/**
+	 * @return the number of time windows of this solve
+	 */
+	public int getWindowCount() {
+		return _windows;
+	}
+
+	/**
+	 * @return the number of time windows integrated so far
+	 */
+	public synchronized int getCompletedWindows() {
+		return _windowResults.size();
+	}
+
+	/**
+	 * Submits the first window
+	 */
+	void start() {
+		submit(0);
+	}
+
+	private void submit(final int window) {
+		post(new Runnable() {
+			public void run() {
+				startWindow(window);
+			}
+		});
+	}
+
+	/**
+	 * Runs a task on the executor, fails the solve if the executor is shut
+	 * down
+	 */
+	private void post(Runnable task) {
+		try {
+			_executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Starts integrating a window, unless the solve was cancelled
+	 */
+	private void startWindow(final int window) {
+		synchronized (this) {
+			if (_cancelled) {
+				releaseState();
+				return;
+			}
+		}
+		try {
+			if (_state == null) {
+				_state = _backend.createState(_models);
+			}
+			ITimeConfiguration windowConfiguration = _timeWindows.get(window);
+
+			if (_backend instanceof OpenCLBackend) {
+				// called on an OpenCL thread, the listener and the next window
+				// run on the executor
+				((OpenCLBackend) _backend).integrateAsync(_state, _ids, windowConfiguration, _parameters, new OpenCLBackend.WindowCallback() {
+					public void completed(final HHResults results) {
+						post(new Runnable() {
+							public void run() {
+								windowCompleted(window, results);
+							}
+						});
+					}
+
+					public void failed(final Throwable error) {
+						post(new Runnable() {
+							public void run() {
+								fail(error);
+							}
+						});
+					}
+				});
+			} else {
+				windowCompleted(window, _backend.integrate(_state, _ids, windowConfiguration, _parameters));
+			}
+		} catch (Throwable e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Records the results of a window and submits the next one, or completes
+	 * the solve after the last one
+	 */
+	private void windowCompleted(int window, HHResults results) {
+		synchronized (this) {
+			if (_cancelled) {
+				releaseState();
+				return;
+			}
+			_windowResults.add(results);
+		}
+		try {
+			if (_listener != null) {
+				_listener.windowCompleted(window, _windows, results);
+			}
+		} catch (RuntimeException e) {
+			fail(e);
+			return;
+		}
+		if (window + 1 < _windows) {
+			submit(window + 1);
+			return;
+		}
+		synchronized (this) {
+			try {
+				if (!_done) {
+					_results = HHResults.concatSamples(_windowResults);
+					_done = true;
+					notifyAll();
+				}
+			} catch (RuntimeException e) {
+				fail(e);
+			}
+			releaseState();
+		}
+	}
+
+	private synchronized void fail(Throwable error) {
+		if (!_done) {
+			_error = error;
+			_done = true;
+			notifyAll();
+		}
+		releaseState();
+	}
+
+	/**
+	 * Releases the state, the caller must hold the lock and no window must be
+	 * in progress
+	 */
+	private void releaseState() {
+		if (_state != null) {
+			_state.release();
+			_state = null;
+		}
+	}
+
+	/**
+	 * Cancels the solve, the window in progress finishes on the device but
+	 * no other window is started
+	 */
+	public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+		if (_done) {
+			return false;
+		}
+		_cancelled = true;
+		_done = true;
+		notifyAll();
+		return true;
+	}
+
+	public synchronized boolean isCancelled() {
+		return _cancelled;
+	}
+
+	public synchronized boolean isDone() {
+		return _done;
+	}
+
+	public synchronized HHResults get() throws InterruptedException, ExecutionException {
+		while (!_done) {
+			wait();
+		}
+		return getResults();
+	}
+
+	public synchronized HHResults get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		long remaining = unit.toNanos(timeout);
+		long deadline = System.nanoTime() + remaining;
+		while (!_done) {
+			if (remaining <= 0) {
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			remaining = deadline - System.nanoTime();
+		}
+		return getResults();
+	}
+
+	private HHResults getResults() throws ExecutionException {
+		if (_cancelled) {
+			throw new CancellationException();
+		}
+		if (_error != null) {
+			throw new ExecutionException(_error);
+		}
+		return _results;
+	}
+}
@@ -0,0 +1,18 @@
+package org.geppetto.samplesolver;
+
+/**
+ * Receives the progress of an asynchronous solve, see
+ * {@link SampleSolverService#solveAsync}. Methods are called on solver
+ * threads and should return quickly.
+ */
+public interface SolveListener {
+
+	/**
+	 * Called when a time window has been integrated
+	 * 
+	 * @param window: index of the window, from 0
+	 * @param windows: number of windows of the solve
+	 * @param results: the samples of this window
+	 */
+	void windowCompleted(int window, int windows, HHResults results);
+}
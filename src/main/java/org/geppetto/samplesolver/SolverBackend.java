@@ -0,0 +1,25 @@
+package org.geppetto.samplesolver;
+
+/**
+ * Backends the solver can run on. With AUTO the OpenCL backend is used when
+ * an OpenCL device is available and the Java backend otherwise.
+ */
+public enum SolverBackend {
+	AUTO, OPENCL, JAVA;
+
+	/**
+	 * System property overriding the automatic backend selection
+	 */
+	public static final String PROPERTY = "org.geppetto.samplesolver.backend";
+
+	/**
+	 * @return the backend set through the system property, AUTO if not set
+	 */
+	public static SolverBackend fromSystemProperty() {
+		String value = System.getProperty(PROPERTY);
+		if (value == null || value.trim().length() == 0) {
+			return AUTO;
+		}
+		return valueOf(value.trim().toUpperCase());
+	}
+}
@@ -0,0 +1,320 @@
+package org.geppetto.samplesolver;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.geppetto.samplesolver.HHResults.Variable;
+
+/**
+ * Configuration of the solver, read by the backend when it is created. The
+ * service copies the configuration it is given, changes made afterwards to
+ * the instance passed in have no effect.
+ */
+public class SolverConfiguration {
+
+	/**
+	 * System property overriding the location of the launch profiles file
+	 */
+	public static final String PROFILES_PROPERTY = "org.geppetto.samplesolver.profiles";
+
+	/**
+	 * System property overriding the location of the kernel binary cache,
+	 * an empty value disables the cache
+	 */
+	public static final String KERNEL_CACHE_PROPERTY = "org.geppetto.samplesolver.kernelCache";
+
+	private SolverBackend _backend = SolverBackend.fromSystemProperty();
+	private KernelVariant _kernelVariant = KernelVariant.REFERENCE;
+	private Integrator _integrator = Integrator.EULER;
+	private float _rateTableStep = 0.1f;
+	private boolean _autotune = false;
+	private File _profilesFile = defaultProfilesFile();
+	private File _kernelCacheDirectory = defaultKernelCacheDirectory();
+	private boolean _multiDevice = false;
+	private int _computeUnitsPerSubDevice = 0;
+	private int _lanesPerDevice = 4;
+	private long _batchMaxWait = 0;
+	private int _batchMaxModels = 65536;
+	private StorageFormat[] _storageFormats = defaultStorageFormats();
+	private boolean _zeroCopy = false;
+	private SteadyState _steadyState;
+
+	public SolverConfiguration() {
+	}
+
+	public SolverConfiguration(SolverConfiguration other) {
+		_backend = other._backend;
+		_kernelVariant = other._kernelVariant;
+		_integrator = other._integrator;
+		_rateTableStep = other._rateTableStep;
+		_autotune = other._autotune;
+		_profilesFile = other._profilesFile;
+		_kernelCacheDirectory = other._kernelCacheDirectory;
+		_multiDevice = other._multiDevice;
+		_computeUnitsPerSubDevice = other._computeUnitsPerSubDevice;
+		_lanesPerDevice = other._lanesPerDevice;
+		_batchMaxWait = other._batchMaxWait;
+		_batchMaxModels = other._batchMaxModels;
+		_storageFormats = other._storageFormats.clone();
+		_zeroCopy = other._zeroCopy;
+		_steadyState = other._steadyState;
+	}
+
+	public SolverBackend getBackend() {
+		return _backend;
+	}
+
+	public void setBackend(SolverBackend backend) {
+		_backend = backend;
+	}
+
+	public KernelVariant getKernelVariant() {
+		return _kernelVariant;
+	}
+
+	public void setKernelVariant(KernelVariant kernelVariant) {
+		_kernelVariant = kernelVariant;
+	}
+
+	public Integrator getIntegrator() {
+		return _integrator;
+	}
+
+	/**
+	 * Selects the integration scheme, the kernel variant only applies to
+	 * EULER
+	 */
+	public void setIntegrator(Integrator integrator) {
+		_integrator = integrator;
+	}
+
+	/**
+	 * @return grid resolution of the rate table in mV
+	 */
+	public float getRateTableStep() {
+		return _rateTableStep;
+	}
+
+	/**
+	 * Sets the grid resolution of the rate table used by
+	 * {@link KernelVariant#TABLE}. The default 0.1 mV is the finest grid
+	 * fitting the 64KB of constant memory every OpenCL device provides.
+	 */
+	public void setRateTableStep(float rateTableStep) {
+		_rateTableStep = rateTableStep;
+	}
+
+	/**
+	 * @return the rate table to use, null unless the TABLE variant is run
+	 */
+	RateTable createRateTable() {
+		if (_integrator != Integrator.EULER || _kernelVariant != KernelVariant.TABLE) {
+			return null;
+		}
+		return new RateTable(_rateTableStep);
+	}
+
+	/**
+	 * @return the kernel entry point run by the OpenCL backend
+	 */
+	String getKernelName() {
+		return _integrator == Integrator.EULER ? _kernelVariant.getKernelName() : _integrator.getKernelName();
+	}
+
+	/**
+	 * @return true if the kernel run is compiled for the vector width of the
+	 *         launch profile
+	 */
+	boolean isVectorizedKernel() {
+		return _integrator == Integrator.EULER && _kernelVariant.isVectorized();
+	}
+
+	/**
+	 * @return true if launch shapes missing from the profiles file are
+	 *         benchmarked on first use and stored
+	 */
+	public boolean isAutotune() {
+		return _autotune;
+	}
+
+	public void setAutotune(boolean autotune) {
+		_autotune = autotune;
+	}
+
+	/**
+	 * @return the file launch profiles are loaded from and stored to
+	 */
+	public File getProfilesFile() {
+		return _profilesFile;
+	}
+
+	public void setProfilesFile(File profilesFile) {
+		_profilesFile = profilesFile;
+	}
+
+	/**
+	 * @return the directory compiled kernel binaries are loaded from and
+	 *         stored to, null if kernels are always compiled from source
+	 */
+	public File getKernelCacheDirectory() {
+		return _kernelCacheDirectory;
+	}
+
+	public void setKernelCacheDirectory(File kernelCacheDirectory) {
+		_kernelCacheDirectory = kernelCacheDirectory;
+	}
+
+	/**
+	 * @return true if the OpenCL backend splits populations across all the
+	 *         CPU devices of all the platforms
+	 */
+	public boolean isMultiDevice() {
+		return _multiDevice;
+	}
+
+	public void setMultiDevice(boolean multiDevice) {
+		_multiDevice = multiDevice;
+	}
+
+	/**
+	 * @return the number of compute units of the sub-devices each device is
+	 *         split in with device fission in multi-device mode, 0 to use
+	 *         whole devices
+	 */
+	public int getComputeUnitsPerSubDevice() {
+		return _computeUnitsPerSubDevice;
+	}
+
+	public void setComputeUnitsPerSubDevice(int computeUnitsPerSubDevice) {
+		_computeUnitsPerSubDevice = computeUnitsPerSubDevice;
+	}
+
+	/**
+	 * @return the max number of solves running concurrently on each OpenCL
+	 *         device
+	 */
+	public int getLanesPerDevice() {
+		return _lanesPerDevice;
+	}
+
+	/**
+	 * Sets how many solves can run concurrently on each OpenCL device, each
+	 * in a lane with its own queue and buffers. Lanes are only created when
+	 * concurrent calls need them, the compiled kernels are shared.
+	 */
+	public void setLanesPerDevice(int lanesPerDevice) {
+		_lanesPerDevice = lanesPerDevice;
+	}
+
+	/**
+	 * @return how long in ms the first request of a batch waits for others
+	 *         to join it, 0 when batching is disabled
+	 */
+	public long getBatchMaxWait() {
+		return _batchMaxWait;
+	}
+
+	/**
+	 * Enables batching of concurrent solve() calls when greater than 0, see
+	 * {@link SolveBatcher}. This is the latency added to a request that no
+	 * other request joins.
+	 */
+	public void setBatchMaxWait(long batchMaxWait) {
+		_batchMaxWait = batchMaxWait;
+	}
+
+	/**
+	 * @return the number of models at which a batch is launched without
+	 *         waiting any longer
+	 */
+	public int getBatchMaxModels() {
+		return _batchMaxModels;
+	}
+
+	public void setBatchMaxModels(int batchMaxModels) {
+		_batchMaxModels = batchMaxModels;
+	}
+
+	/**
+	 * @return the format the samples of a variable are stored in
+	 */
+	public StorageFormat getStorageFormat(Variable variable) {
+		return _storageFormats[variable.ordinal()];
+	}
+
+	/**
+	 * Sets the format the samples of a variable are written in by the kernel
+	 * and kept in the results, FLOAT by default. The 16-bit formats halve the
+	 * data read back from the device, with the accuracy stated in
+	 * {@link StorageFormat}.
+	 */
+	public void setStorageFormat(Variable variable, StorageFormat format) {
+		_storageFormats[variable.ordinal()] = format;
+	}
+
+	/**
+	 * @return the format of each variable, in Variable order
+	 */
+	StorageFormat[] getStorageFormats() {
+		return _storageFormats.clone();
+	}
+
+	/**
+	 * @return true if the results of CPU devices are written to host memory
+	 *         wrapped by the results
+	 */
+	public boolean isZeroCopy() {
+		return _zeroCopy;
+	}
+
+	/**
+	 * Creates the output buffers of CPU devices on host memory, which the
+	 * kernel writes to directly. The buffers are mapped instead of read back
+	 * and the results wrap that memory, so there is no copy between the
+	 * kernel and the caller. Other devices keep reading back. Disabled by
+	 * default.
+	 */
+	public void setZeroCopy(boolean zeroCopy) {
+		_zeroCopy = zeroCopy;
+	}
+
+	/**
+	 * @return the steady state detection settings, null when it is off
+	 */
+	public SteadyState getSteadyState() {
+		return _steadyState;
+	}
+
+	/**
+	 * Lets neurons without stimulus stop integrating once they settled, see
+	 * {@link SteadyState}. Their traces are then constant from a sample
+	 * instead of integrated to the end. Off by default.
+	 * 
+	 * @param steadyState: the detection settings, null to turn it off
+	 */
+	public void setSteadyState(SteadyState steadyState) {
+		_steadyState = steadyState;
+	}
+
+	private static StorageFormat[] defaultStorageFormats() {
+		StorageFormat[] formats = new StorageFormat[Variable.values().length];
+		Arrays.fill(formats, StorageFormat.FLOAT);
+		return formats;
+	}
+
+	private static File defaultProfilesFile() {
+		String path = System.getProperty(PROFILES_PROPERTY);
+		if (path != null) {
+			return new File(path);
+		}
+		return new File(System.getProperty("user.home"), ".geppetto/samplesolver-launch-profiles.properties");
+	}
+
+	private static File defaultKernelCacheDirectory() {
+		String path = System.getProperty(KERNEL_CACHE_PROPERTY);
+		if (path != null) {
+			return path.length() == 0 ? null : new File(path);
+		}
+		return new File(System.getProperty("user.home"), ".geppetto/samplesolver-kernels");
+	}
+}
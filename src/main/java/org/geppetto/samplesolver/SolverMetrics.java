@@ -0,0 +1,250 @@
+package org.geppetto.samplesolver;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Timings of each phase of the solver calls, throughput and transfers,
+ * collected by the backends of a service and exposed as MBeans under
+ * org.geppetto.samplesolver:type=SolverMetrics. Phases are timed on the host
+ * around each call. The kernels of streaming solves on OpenCL, which overlap
+ * the reads, are timed from their profiling timestamps; the kernel and read
+ * back phases of asynchronous solves and the reads of streaming solves are
+ * not timed.
+ */
+public class SolverMetrics implements SolverMetricsMBean {
+
+	private static final Log _logger = LogFactory.getLog(SolverMetrics.class);
+
+	/**
+	 * The phases of a solver call
+	 */
+	public enum Phase {
+		/**
+		 * Creation of the backend, its OpenCL contexts and queues
+		 */
+		CONTEXT,
+		/**
+		 * Build of a program, from source or from a cached binary
+		 */
+		COMPILE,
+		/**
+		 * Upload of the state and inputs of a run
+		 */
+		UPLOAD,
+		/**
+		 * Integration, the kernel on OpenCL
+		 */
+		KERNEL,
+		/**
+		 * Read back of the samples and spikes into the results
+		 */
+		READBACK,
+		/**
+		 * Conversion of the results to models
+		 */
+		CONVERSION
+	}
+
+	static final String DOMAIN = "org.geppetto.samplesolver";
+
+	// distinguishes the MBeans of several services
+	private static final AtomicInteger _instances = new AtomicInteger();
+
+	private final PhaseTiming[] _timings = new PhaseTiming[Phase.values().length];
+	private final AtomicLong _neuronSteps = new AtomicLong();
+	private final AtomicLong _timedNeuronSteps = new AtomicLong();
+	private final AtomicLong _bytesUploaded = new AtomicLong();
+	private final AtomicLong _bytesRead = new AtomicLong();
+	private final AtomicLong _kernelCacheHits = new AtomicLong();
+	private final AtomicLong _kernelCacheMisses = new AtomicLong();
+	private final AtomicLong _kernelCacheRejections = new AtomicLong();
+	private final AtomicInteger _maxLanesInUse = new AtomicInteger();
+
+	private final String _name = "solver" + _instances.incrementAndGet();
+	private ObjectName[] _names;
+
+	public SolverMetrics() {
+		for (int p = 0; p < _timings.length; p++) {
+			_timings[p] = new PhaseTiming();
+		}
+	}
+
+	/**
+	 * @return the timings of a phase
+	 */
+	public PhaseTiming getTiming(Phase phase) {
+		return _timings[phase.ordinal()];
+	}
+
+	/**
+	 * Records the duration of a phase
+	 */
+	void record(Phase phase, long nanos) {
+		_timings[phase.ordinal()].record(nanos);
+	}
+
+	/**
+	 * Records the duration of a kernel and the neuron-steps it integrated
+	 */
+	void recordKernel(long nanos, long neuronSteps) {
+		_timings[Phase.KERNEL.ordinal()].record(nanos);
+		_neuronSteps.addAndGet(neuronSteps);
+		_timedNeuronSteps.addAndGet(neuronSteps);
+	}
+
+	/**
+	 * Counts neuron-steps integrated by a kernel that was not timed
+	 */
+	void addNeuronSteps(long neuronSteps) {
+		_neuronSteps.addAndGet(neuronSteps);
+	}
+
+	void addBytesUploaded(long bytes) {
+		_bytesUploaded.addAndGet(bytes);
+	}
+
+	void addBytesRead(long bytes) {
+		_bytesRead.addAndGet(bytes);
+	}
+
+	void addKernelCacheHit() {
+		_kernelCacheHits.incrementAndGet();
+	}
+
+	void addKernelCacheMiss() {
+		_kernelCacheMisses.incrementAndGet();
+	}
+
+	void addKernelCacheRejection() {
+		_kernelCacheRejections.incrementAndGet();
+	}
+
+	/**
+	 * Records the number of OpenCL lanes of a device used at once, after a
+	 * call took a lane
+	 */
+	void recordLanesInUse(int lanes) {
+		int max = _maxLanesInUse.get();
+		while (lanes > max && !_maxLanesInUse.compareAndSet(max, lanes)) {
+			max = _maxLanesInUse.get();
+		}
+	}
+
+	public long getNeuronSteps() {
+		return _neuronSteps.get();
+	}
+
+	public double getNeuronStepsPerSecond() {
+		long nanos = getTiming(Phase.KERNEL).getTotalNanos();
+		return nanos == 0 ? 0 : _timedNeuronSteps.get() * 1e9 / nanos;
+	}
+
+	public long getBytesUploaded() {
+		return _bytesUploaded.get();
+	}
+
+	public long getBytesRead() {
+		return _bytesRead.get();
+	}
+
+	public long getKernelCacheHits() {
+		return _kernelCacheHits.get();
+	}
+
+	public long getKernelCacheMisses() {
+		return _kernelCacheMisses.get();
+	}
+
+	public long getKernelCacheRejections() {
+		return _kernelCacheRejections.get();
+	}
+
+	public int getMaxLanesInUse() {
+		return _maxLanesInUse.get();
+	}
+
+	public void reset() {
+		for (PhaseTiming timing : _timings) {
+			timing.reset();
+		}
+		_neuronSteps.set(0);
+		_timedNeuronSteps.set(0);
+		_bytesUploaded.set(0);
+		_bytesRead.set(0);
+		_kernelCacheHits.set(0);
+		_kernelCacheMisses.set(0);
+		_kernelCacheRejections.set(0);
+		_maxLanesInUse.set(0);
+	}
+
+	/**
+	 * Registers the MBeans of these metrics and of each phase with the
+	 * platform MBean server, if they are not already. Failures are logged,
+	 * the metrics are still collected.
+	 */
+	synchronized void register() {
+		if (_names != null) {
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		String prefix = DOMAIN + ":type=SolverMetrics,name=" + _name;
+		ObjectName[] names = new ObjectName[_timings.length + 1];
+		try {
+			ObjectName name = new ObjectName(prefix);
+			server.registerMBean(this, name);
+			names[0] = name;
+			for (Phase phase : Phase.values()) {
+				name = new ObjectName(prefix + ",phase=" + phase.name().toLowerCase());
+				server.registerMBean(_timings[phase.ordinal()], name);
+				names[phase.ordinal() + 1] = name;
+			}
+			_names = names;
+		} catch (JMException e) {
+			_logger.warn("Could not register the solver metrics: " + e);
+			unregister(server, names);
+		}
+	}
+
+	/**
+	 * Unregisters the MBeans registered by register()
+	 */
+	synchronized void unregister() {
+		if (_names != null) {
+			unregister(ManagementFactory.getPlatformMBeanServer(), _names);
+			_names = null;
+		}
+	}
+
+	private static void unregister(MBeanServer server, ObjectName[] names) {
+		for (ObjectName name : names) {
+			// only the names registered by this instance are set
+			if (name != null) {
+				try {
+					server.unregisterMBean(name);
+				} catch (JMException e) {
+					_logger.warn("Could not unregister " + name + ": " + e);
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		for (Phase phase : Phase.values()) {
+			text.append(phase).append(": ").append(getTiming(phase)).append('\n');
+		}
+		text.append(getNeuronSteps()).append(" neuron-steps, ").append(String.format("%.3g", getNeuronStepsPerSecond())).append(" per second, ");
+		text.append(getBytesUploaded()).append(" bytes uploaded, ").append(getBytesRead()).append(" bytes read");
+		return text.toString();
+	}
+}
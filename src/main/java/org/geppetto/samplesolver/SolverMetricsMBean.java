@@ -0,0 +1,51 @@
+package org.geppetto.samplesolver;
+
+/**
+ * JMX view of the throughput and transfers of the solver, see
+ * {@link SolverMetrics}. The timings of each phase have their own MBean.
+ */
+public interface SolverMetricsMBean {
+
+	/**
+	 * @return the neuron-steps integrated, one per neuron and time step
+	 */
+	long getNeuronSteps();
+
+	/**
+	 * @return the neuron-steps integrated per second of kernel time, over
+	 *         the runs whose kernel was timed
+	 */
+	double getNeuronStepsPerSecond();
+
+	/**
+	 * @return the bytes written to OpenCL devices
+	 */
+	long getBytesUploaded();
+
+	/**
+	 * @return the bytes read back from OpenCL devices, zero-copy results
+	 *         are not read
+	 */
+	long getBytesRead();
+
+	long getKernelCacheHits();
+
+	long getKernelCacheMisses();
+
+	/**
+	 * @return the cached kernel binaries found stale or rejected by the
+	 *         driver and built again from source
+	 */
+	long getKernelCacheRejections();
+
+	/**
+	 * @return the most OpenCL lanes of one device used at once by concurrent
+	 *         calls
+	 */
+	int getMaxLanesInUse();
+
+	/**
+	 * Clears the counters and the timings of all the phases
+	 */
+	void reset();
+}
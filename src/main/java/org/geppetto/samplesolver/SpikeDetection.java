@@ -0,0 +1,76 @@
+package org.geppetto.samplesolver;
+
+/**
+ * Settings of the spike detection done while integrating. A spike is an
+ * upward crossing of the threshold by V, timed by linear interpolation within
+ * the step, and crossings less than the refractory period after the previous
+ * spike of the same neuron are ignored. Detected spikes are returned by
+ * {@link HHResults#getSpikes()}.
+ */
+public class SpikeDetection {
+
+	private final float _threshold;
+	private final float _refractory;
+	private final int _maxSpikesPerNeuron;
+
+	/**
+	 * Detects crossings of 50 mV with a refractory period of 2 ms
+	 */
+	public SpikeDetection() {
+		this(50, 2);
+	}
+
+	/**
+	 * @param threshold: threshold of V in mV
+	 * @param refractory: refractory period in ms, greater than 0
+	 */
+	public SpikeDetection(float threshold, float refractory) {
+		this(threshold, refractory, 0);
+	}
+
+	/**
+	 * @param threshold: threshold of V in mV
+	 * @param refractory: refractory period in ms
+	 * @param maxSpikesPerNeuron: max number of spikes recorded per neuron and
+	 *            run, 0 for the most the refractory period allows
+	 */
+	public SpikeDetection(float threshold, float refractory, int maxSpikesPerNeuron) {
+		if (maxSpikesPerNeuron <= 0 && refractory <= 0) {
+			throw new IllegalArgumentException("Spike detection needs a refractory period or a max number of spikes");
+		}
+		_threshold = threshold;
+		_refractory = refractory;
+		_maxSpikesPerNeuron = maxSpikesPerNeuron;
+	}
+
+	public float getThreshold() {
+		return _threshold;
+	}
+
+	public float getRefractory() {
+		return _refractory;
+	}
+
+	public int getMaxSpikesPerNeuron() {
+		return _maxSpikesPerNeuron;
+	}
+
+	/**
+	 * Returns the number of spikes a population can fire over a run, which
+	 * sizes the event buffer of the OpenCL backend. Spikes beyond it are
+	 * counted but not recorded, see {@link Spikes#getDropped()}.
+	 * 
+	 * @param elemCount: number of neurons
+	 * @param duration: duration of the run in ms
+	 * @return the capacity of the event buffer
+	 */
+	int getCapacity(int elemCount, float duration) {
+		long perNeuron = _maxSpikesPerNeuron > 0 ? _maxSpikesPerNeuron : (long) (duration / _refractory) + 1;
+		return (int) Math.min(Integer.MAX_VALUE - 8, perNeuron * elemCount);
+	}
+
+	@Override
+	public String toString() {
+		return "threshold " + _threshold + " mV, refractory " + _refractory + " ms";
+	}
+}
@@ -0,0 +1,70 @@
+package org.geppetto.samplesolver;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Spikes detected by the Java backend on one slice of a population, same
+ * detection as detectSpike in the kernel sources
+ */
+class SpikeRecorder {
+
+	private final float _threshold;
+	private final float _refractory;
+
+	private int[] _neurons = new int[64];
+	private float[] _times = new float[64];
+	private int _count;
+
+	SpikeRecorder(SpikeDetection detection) {
+		_threshold = detection.getThreshold();
+		_refractory = detection.getRefractory();
+	}
+
+	/**
+	 * Records a spike when V crosses the threshold upwards during the step,
+	 * unless within the refractory period of the previous spike
+	 * 
+	 * @param neuron: index of the neuron
+	 * @param V_prev: V at the start of the step
+	 * @param V: V at the end of the step
+	 * @param stepStart: time at the start of the step
+	 * @param dt: time step
+	 * @param lastSpike: time of the previous spike of the neuron
+	 * @return the time of the last spike of the neuron
+	 */
+	float detect(int neuron, float V_prev, float V, float stepStart, float dt, float lastSpike) {
+		if (V_prev < _threshold && V >= _threshold) {
+			float spikeTime = stepStart + dt * (_threshold - V_prev) / (V - V_prev);
+			if (spikeTime - lastSpike >= _refractory) {
+				if (_count == _neurons.length) {
+					_neurons = Arrays.copyOf(_neurons, _count * 2);
+					_times = Arrays.copyOf(_times, _count * 2);
+				}
+				_neurons[_count] = neuron;
+				_times[_count++] = spikeTime;
+				return spikeTime;
+			}
+		}
+		return lastSpike;
+	}
+
+	/**
+	 * @return the spikes of all the slices, nothing is dropped on the host
+	 */
+	static Spikes merge(List<SpikeRecorder> recorders) {
+		int count = 0;
+		for (SpikeRecorder recorder : recorders) {
+			count += recorder._count;
+		}
+		int[] neurons = new int[count];
+		float[] times = new float[count];
+		int offset = 0;
+		for (SpikeRecorder recorder : recorders) {
+			System.arraycopy(recorder._neurons, 0, neurons, offset, recorder._count);
+			System.arraycopy(recorder._times, 0, times, offset, recorder._count);
+			offset += recorder._count;
+		}
+		return new Spikes(neurons, times, count, 0);
+	}
+}
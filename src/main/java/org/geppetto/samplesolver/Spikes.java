@@ -0,0 +1,140 @@
+package org.geppetto.samplesolver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Spikes detected during a run, as (neuron, time) pairs sorted by time then
+ * by neuron. Neurons are indices in the order models were passed to the
+ * solver and times are in ms since the start of the simulation.
+ */
+public class Spikes {
+
+	private final int[] _neurons;
+	private final float[] _times;
+	private final int _dropped;
+
+	/**
+	 * @param neurons: neuron of each spike
+	 * @param times: time of each spike, in the same order
+	 * @param count: number of spikes in the arrays
+	 * @param dropped: number of spikes detected but not recorded
+	 */
+	Spikes(int[] neurons, float[] times, int count, int dropped) {
+		Integer[] order = new Integer[count];
+		for (int k = 0; k < count; k++) {
+			order[k] = k;
+		}
+		final int[] unsortedNeurons = neurons;
+		final float[] unsortedTimes = times;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int byTime = Float.compare(unsortedTimes[a], unsortedTimes[b]);
+				return byTime != 0 ? byTime : unsortedNeurons[a] - unsortedNeurons[b];
+			}
+		});
+		_neurons = new int[count];
+		_times = new float[count];
+		for (int k = 0; k < count; k++) {
+			_neurons[k] = neurons[order[k]];
+			_times[k] = times[order[k]];
+		}
+		_dropped = dropped;
+	}
+
+	/**
+	 * @return the number of recorded spikes
+	 */
+	public int getCount() {
+		return _neurons.length;
+	}
+
+	public int getNeuron(int spike) {
+		return _neurons[spike];
+	}
+
+	public float getTime(int spike) {
+		return _times[spike];
+	}
+
+	/**
+	 * @return the number of spikes detected beyond the capacity of the event
+	 *         buffer, which are missing from this list
+	 */
+	public int getDropped() {
+		return _dropped;
+	}
+
+	/**
+	 * @return the spike times of one neuron, in time order
+	 */
+	public float[] getTimes(int neuron) {
+		int count = 0;
+		for (int n : _neurons) {
+			if (n == neuron) {
+				count++;
+			}
+		}
+		float[] times = new float[count];
+		count = 0;
+		for (int k = 0; k < _neurons.length; k++) {
+			if (_neurons[k] == neuron) {
+				times[count++] = _times[k];
+			}
+		}
+		return times;
+	}
+
+	/**
+	 * Merges spikes of consecutive slices of a population, the neurons of
+	 * each part are offset by the size of the slices before it
+	 * 
+	 * @param parts: the spikes of each slice, in model order
+	 * @param sizes: the number of neurons of each slice, all 0 to merge time
+	 *            windows of the same population
+	 */
+	static Spikes concat(List<Spikes> parts, int[] sizes) {
+		int count = 0;
+		for (Spikes part : parts) {
+			count += part.getCount();
+		}
+		int[] neurons = new int[count];
+		float[] times = new float[count];
+		int dropped = 0;
+		int spike = 0;
+		int offset = 0;
+		for (int p = 0; p < parts.size(); p++) {
+			Spikes part = parts.get(p);
+			for (int k = 0; k < part.getCount(); k++) {
+				neurons[spike] = part._neurons[k] + offset;
+				times[spike++] = part._times[k];
+			}
+			dropped += part._dropped;
+			offset += sizes[p];
+		}
+		return new Spikes(neurons, times, count, dropped);
+	}
+
+	/**
+	 * Returns the spikes of the neurons in [from, to), renumbered from 0.
+	 * Dropped spikes can't be attributed to neurons, the count of the whole
+	 * population is kept.
+	 */
+	Spikes slice(int from, int to) {
+		List<Integer> kept = new ArrayList<Integer>();
+		for (int k = 0; k < _neurons.length; k++) {
+			if (_neurons[k] >= from && _neurons[k] < to) {
+				kept.add(k);
+			}
+		}
+		int[] neurons = new int[kept.size()];
+		float[] times = new float[kept.size()];
+		for (int k = 0; k < neurons.length; k++) {
+			neurons[k] = _neurons[kept.get(k)] - from;
+			times[k] = _times[kept.get(k)];
+		}
+		return new Spikes(neurons, times, neurons.length, _dropped);
+	}
+}
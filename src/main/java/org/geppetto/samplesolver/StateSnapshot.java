@@ -0,0 +1,288 @@
+package org.geppetto.samplesolver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Binary snapshot of the state of a {@link HHSimulation}, written by
+ * {@link HHSimulation#checkpoint} and read by
+ * {@link SampleSolverService#restoreSimulation}. The per-neuron state is
+ * stored as whole columns, each moved between the channel and the backend in
+ * one transfer, so no model object is created. All the values are
+ * little-endian.
+ *
+ * <pre>
+ * offset  type      content
+ * 0       int       magic, 0x48484353 ("HHCS")
+ * 4       int       version, 1
+ * 8       int       number of models N
+ * 12      int       bytes of the ids
+ * 16      double    simulated time in ms
+ * 24      float[6]  shared maxG_K, maxG_Na, maxG_Leak, E_K, E_Na, E_Leak
+ * 48      int       1 if spike detection is on, 0 otherwise
+ * 52      float     spike threshold in mV
+ * 56      float     refractory period in ms
+ * 60      int       max spikes recorded per neuron and run
+ * 64      int       number of models with their own parameters P
+ * 68      int       number of models with a stimulus S
+ * 72      int       segments of all the stimuli G
+ * 76      int       reserved, 0
+ * 80      ...       N model ids, each an int length and its UTF-8 bytes
+ * </pre>
+ *
+ * The ids are followed by the N floats of each column: V, x_n, x_m, x_h, the
+ * external current and the time of the last spike. Then come P entries of an
+ * int model index and its 6 parameters, and S entries of an int model index,
+ * an int number of segments and the segments of its stimulus, G segments of
+ * {@link Stimulus#SEGMENT_SIZE} floats in all.
+ */
+class StateSnapshot {
+
+	static final int MAGIC = 0x48484353;
+	static final int VERSION = 1;
+
+	// columns, in snapshot order
+	static final int V = 0;
+	static final int XN = 1;
+	static final int XM = 2;
+	static final int XH = 3;
+	static final int I = 4;
+	static final int LAST_SPIKE = 5;
+	static final int COLUMNS = 6;
+
+	private static final int HEADER_SIZE = 80;
+	private static final int PARAMETERS_SIZE = 4 + 6 * 4;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Writes the state of a simulation
+	 *
+	 * @param channel: channel the snapshot is written to, left open
+	 * @param backend: the backend that created the state
+	 * @param state: the state, unchanged
+	 * @param ids: ids of the models
+	 * @param shared: the parameters shared by the simulation
+	 */
+	static void write(WritableByteChannel channel, HHBackend backend, NeuronState state, String[] ids, HHParameters shared) throws IOException {
+		int elemCount = state.getElemCount();
+		byte[][] encodedIds = new byte[elemCount][];
+		long idsBytes = 0;
+		int ownParameters = 0;
+		int stimuli = 0;
+		long segments = 0;
+		for (int m = 0; m < elemCount; m++) {
+			encodedIds[m] = ids[m].getBytes(UTF8);
+			idsBytes += 4 + encodedIds[m].length;
+			if (state.getParameters(m) != null) {
+				ownParameters++;
+			}
+			if (state.getStimulus(m) != null) {
+				stimuli++;
+				segments += state.getStimulus(m).getSegmentCount();
+			}
+		}
+		long stimuliBytes = stimuli * 8L + segments * Stimulus.SEGMENT_SIZE * 4;
+		if (HEADER_SIZE + idsBytes > Integer.MAX_VALUE || elemCount > Integer.MAX_VALUE / 4 || stimuliBytes > Integer.MAX_VALUE) {
+			throw new IOException("State of " + elemCount + " models too large for a snapshot");
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + (int) idsBytes).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(elemCount);
+		header.putInt((int) idsBytes);
+		header.putDouble(state.getTime());
+		putParameters(header, shared);
+		SpikeDetection detection = state.getSpikeDetection();
+		header.putInt(detection == null ? 0 : 1);
+		header.putFloat(detection == null ? 0 : detection.getThreshold());
+		header.putFloat(detection == null ? 0 : detection.getRefractory());
+		header.putInt(detection == null ? 0 : detection.getMaxSpikesPerNeuron());
+		header.putInt(ownParameters);
+		header.putInt(stimuli);
+		header.putInt((int) segments);
+		header.putInt(0);
+		for (byte[] id : encodedIds) {
+			header.putInt(id.length);
+			header.put(id);
+		}
+		header.flip();
+		writeFully(channel, header);
+
+		// one direct buffer reused for all the columns
+		ByteBuffer column = ByteBuffer.allocateDirect(elemCount * 4).order(ByteOrder.LITTLE_ENDIAN);
+		for (int c = 0; c < COLUMNS; c++) {
+			column.clear();
+			backend.readColumn(state, c, column);
+			column.clear();
+			writeFully(channel, column);
+		}
+
+		ByteBuffer parameters = ByteBuffer.allocate(ownParameters * PARAMETERS_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer stimulusBytes = ByteBuffer.allocate((int) stimuliBytes).order(ByteOrder.LITTLE_ENDIAN);
+		for (int m = 0; m < elemCount; m++) {
+			if (state.getParameters(m) != null) {
+				parameters.putInt(m);
+				putParameters(parameters, state.getParameters(m));
+			}
+			Stimulus stimulus = state.getStimulus(m);
+			if (stimulus != null) {
+				float[] values = new float[stimulus.getSegmentCount() * Stimulus.SEGMENT_SIZE];
+				stimulus.write(values, 0);
+				stimulusBytes.putInt(m);
+				stimulusBytes.putInt(stimulus.getSegmentCount());
+				stimulusBytes.asFloatBuffer().put(values);
+				stimulusBytes.position(stimulusBytes.position() + values.length * 4);
+			}
+		}
+		parameters.flip();
+		writeFully(channel, parameters);
+		stimulusBytes.flip();
+		writeFully(channel, stimulusBytes);
+	}
+
+	/**
+	 * Reads a snapshot into a new state of the given backend, which may not
+	 * be the one the snapshot was written from
+	 *
+	 * @param channel: channel the snapshot is read from, left open
+	 * @param backend: the backend the simulation continues on
+	 * @return the restored simulation
+	 * @throws IOException if the channel can't be read or holds no valid
+	 *             snapshot
+	 */
+	static HHSimulation read(ReadableByteChannel channel, HHBackend backend) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, header);
+		if (header.getInt(0) != MAGIC) {
+			throw new IOException("Not a solver state snapshot");
+		}
+		if (header.getInt(4) != VERSION) {
+			throw new IOException("Unsupported snapshot version " + header.getInt(4));
+		}
+		int elemCount = header.getInt(8);
+		int idsBytes = header.getInt(12);
+		double time = header.getDouble(16);
+		header.position(24);
+		HHParameters shared = getParameters(header);
+		boolean detectionOn = header.getInt(48) != 0;
+		float threshold = header.getFloat(52);
+		float refractory = header.getFloat(56);
+		int maxSpikes = header.getInt(60);
+		int ownParameters = header.getInt(64);
+		int stimuli = header.getInt(68);
+		long segments = header.getInt(72);
+		if (elemCount < 0 || elemCount > Integer.MAX_VALUE / 4 || idsBytes < 4L * elemCount || ownParameters < 0 || ownParameters > elemCount || stimuli < 0 || stimuli > elemCount || segments < 0
+				|| stimuli * 8L + segments * Stimulus.SEGMENT_SIZE * 4 > Integer.MAX_VALUE) {
+			throw new IOException("Invalid snapshot header");
+		}
+
+		ByteBuffer idBytes = ByteBuffer.allocate(idsBytes).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, idBytes);
+		idBytes.flip();
+		String[] ids = new String[elemCount];
+		for (int m = 0; m < elemCount; m++) {
+			int length = idBytes.getInt();
+			if (length < 0 || length > idBytes.remaining()) {
+				throw new IOException("Invalid snapshot ids");
+			}
+			byte[] id = new byte[length];
+			idBytes.get(id);
+			ids[m] = new String(id, UTF8);
+		}
+
+		NeuronState state = backend.createState(elemCount);
+		try {
+			ByteBuffer column = ByteBuffer.allocateDirect(elemCount * 4).order(ByteOrder.LITTLE_ENDIAN);
+			for (int c = 0; c < COLUMNS; c++) {
+				column.clear();
+				readFully(channel, column);
+				column.clear();
+				backend.writeColumn(state, c, column);
+			}
+			state.setTime(time);
+			if (detectionOn) {
+				state.setSpikeDetection(new SpikeDetection(threshold, refractory, maxSpikes));
+			}
+
+			ByteBuffer parameters = ByteBuffer.allocate(ownParameters * PARAMETERS_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, parameters);
+			parameters.flip();
+			for (int p = 0; p < ownParameters; p++) {
+				state.setParameters(checkModel(parameters.getInt(), elemCount), getParameters(parameters));
+			}
+
+			ByteBuffer stimulusBytes = ByteBuffer.allocate((int) (stimuli * 8L + segments * Stimulus.SEGMENT_SIZE * 4)).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, stimulusBytes);
+			stimulusBytes.flip();
+			for (int s = 0; s < stimuli; s++) {
+				int model = checkModel(stimulusBytes.getInt(), elemCount);
+				int count = stimulusBytes.getInt();
+				if (count < 0 || count > stimulusBytes.remaining() / (Stimulus.SEGMENT_SIZE * 4)) {
+					throw new IOException("Invalid snapshot stimulus");
+				}
+				float[] values = new float[count * Stimulus.SEGMENT_SIZE];
+				stimulusBytes.asFloatBuffer().get(values);
+				stimulusBytes.position(stimulusBytes.position() + values.length * 4);
+				state.setStimulus(model, Stimulus.fromSegments(values));
+			}
+			return new HHSimulation(backend, state, ids, shared);
+		} catch (IOException e) {
+			state.release();
+			throw e;
+		} catch (RuntimeException e) {
+			state.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reverses the byte order of the floats of a buffer in place, for devices
+	 * that are not little-endian
+	 */
+	static void swapFloats(ByteBuffer buffer) {
+		for (int i = 0; i + 4 <= buffer.limit(); i += 4) {
+			buffer.putInt(i, Integer.reverseBytes(buffer.getInt(i)));
+		}
+	}
+
+	private static void putParameters(ByteBuffer buffer, HHParameters p) {
+		buffer.putFloat(p.maxG_K);
+		buffer.putFloat(p.maxG_Na);
+		buffer.putFloat(p.maxG_Leak);
+		buffer.putFloat(p.E_K);
+		buffer.putFloat(p.E_Na);
+		buffer.putFloat(p.E_Leak);
+	}
+
+	private static HHParameters getParameters(ByteBuffer buffer) {
+		return new HHParameters(buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+	}
+
+	private static int checkModel(int model, int elemCount) throws IOException {
+		if (model < 0 || model >= elemCount) {
+			throw new IOException("Invalid snapshot model index " + model);
+		}
+		return model;
+	}
+
+	private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException("Truncated snapshot");
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package org.geppetto.samplesolver;
+
+/**
+ * Settings of the steady state detection done while integrating. A neuron
+ * without stimulus has settled once the rates of change of V and of the
+ * gating variables stayed under the tolerances for the hold time: it is not
+ * integrated any further in the run and its trace is constant from the next
+ * sample on, see {@link HHResults#getSettledSample(int)}. A run ends as soon
+ * as all its neurons have settled.
+ *
+ * The state of a settled neuron is off its exact trajectory by about the
+ * tolerance times the slowest time constant of the neuron, a few ms at rest.
+ */
+public class SteadyState {
+
+	private final float _voltageTolerance;
+	private final float _gateTolerance;
+	private final float _holdTime;
+
+	/**
+	 * Settles neurons whose V changes by less than 1e-4 mV/ms and gating
+	 * variables by less than 1e-5 per ms for 5 ms
+	 */
+	public SteadyState() {
+		this(1e-4f, 1e-5f, 5);
+	}
+
+	/**
+	 * @param voltageTolerance: max rate of change of V in mV/ms
+	 * @param gateTolerance: max rate of change of the gating variables per ms
+	 * @param holdTime: time in ms the rates must stay under the tolerances,
+	 *            long enough not to settle at the extrema of an oscillation
+	 */
+	public SteadyState(float voltageTolerance, float gateTolerance, float holdTime) {
+		if (voltageTolerance <= 0 || gateTolerance <= 0 || holdTime <= 0) {
+			throw new IllegalArgumentException("Steady state tolerances and hold time must be greater than 0");
+		}
+		_voltageTolerance = voltageTolerance;
+		_gateTolerance = gateTolerance;
+		_holdTime = holdTime;
+	}
+
+	public float getVoltageTolerance() {
+		return _voltageTolerance;
+	}
+
+	public float getGateTolerance() {
+		return _gateTolerance;
+	}
+
+	public float getHoldTime() {
+		return _holdTime;
+	}
+
+	/**
+	 * @return the number of consecutive steps of dt the hold time lasts
+	 */
+	int getHoldSteps(float dt) {
+		return Math.max(1, (int) Math.ceil(_holdTime / dt));
+	}
+
+	/**
+	 * @return true if a step of dt changed the state by less than the
+	 *         tolerances
+	 */
+	boolean isSteady(float dV, float dx_n, float dx_m, float dx_h, float dt) {
+		float maxV = _voltageTolerance * dt;
+		float maxX = _gateTolerance * dt;
+		return Math.abs(dV) <= maxV && Math.abs(dx_n) <= maxX && Math.abs(dx_m) <= maxX && Math.abs(dx_h) <= maxX;
+	}
+
+	@Override
+	public String toString() {
+		return "V " + _voltageTolerance + " mV/ms, gates " + _gateTolerance + "/ms, hold " + _holdTime + " ms";
+	}
+}
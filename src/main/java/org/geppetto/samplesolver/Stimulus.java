@@ -0,0 +1,126 @@
+package org.geppetto.samplesolver;
+
+import java.util.Arrays;
+
+/**
+ * Time-varying current injected into one model on top of its constant
+ * external current, evaluated by the kernel at every step so that a whole
+ * protocol runs in one launch. A stimulus is a list of segments whose
+ * currents add up, each active in [start, end) with times in ms counted from
+ * the start of the simulation:
+ * <ul>
+ * <li>a step injects a constant amplitude</li>
+ * <li>a ramp goes linearly from one amplitude to another</li>
+ * <li>a pulse train injects the amplitude for the first width ms of every
+ * period</li>
+ * </ul>
+ * The current is evaluated at the start of each step and held over it.
+ */
+public class Stimulus {
+
+	/**
+	 * Floats per segment: start, end, amplitude, slope, period, width and two
+	 * pads, read as a float8 by the kernel
+	 */
+	static final int SEGMENT_SIZE = 8;
+
+	private float[] _segments = new float[0];
+
+	/**
+	 * Adds a constant current
+	 * 
+	 * @param start: start time in ms
+	 * @param end: end time in ms, excluded
+	 * @param amplitude: the current
+	 * @return this stimulus
+	 */
+	public Stimulus step(float start, float end, float amplitude) {
+		return addSegment(start, end, amplitude, 0, 0, 0);
+	}
+
+	/**
+	 * Adds a current going linearly from one amplitude at start to another at
+	 * end
+	 * 
+	 * @param start: start time in ms
+	 * @param end: end time in ms, excluded
+	 * @param from: the current at start
+	 * @param to: the current at end
+	 * @return this stimulus
+	 */
+	public Stimulus ramp(float start, float end, float from, float to) {
+		return addSegment(start, end, from, (to - from) / (end - start), 0, 0);
+	}
+
+	/**
+	 * Adds a train of square pulses, the first one at start
+	 * 
+	 * @param start: start time in ms
+	 * @param end: end time in ms, excluded
+	 * @param amplitude: the current during a pulse
+	 * @param period: time between the starts of two pulses in ms
+	 * @param width: duration of a pulse in ms
+	 * @return this stimulus
+	 */
+	public Stimulus pulseTrain(float start, float end, float amplitude, float period, float width) {
+		if (!(period > 0) || !(width > 0)) {
+			throw new IllegalArgumentException("Invalid pulse train, period " + period + " and width " + width);
+		}
+		return addSegment(start, end, amplitude, 0, period, width);
+	}
+
+	public int getSegmentCount() {
+		return _segments.length / SEGMENT_SIZE;
+	}
+
+	/**
+	 * @return the current injected at the given time, same math as the
+	 *         stimulusCurrent kernel function
+	 */
+	public float current(float time) {
+		float I = 0;
+		for (int s = 0; s < _segments.length; s += SEGMENT_SIZE) {
+			if (time >= _segments[s] && time < _segments[s + 1]) {
+				float elapsed = time - _segments[s];
+				if (_segments[s + 4] == 0 || elapsed % _segments[s + 4] < _segments[s + 5]) {
+					I += _segments[s + 2] + _segments[s + 3] * elapsed;
+				}
+			}
+		}
+		return I;
+	}
+
+	/**
+	 * Copies the segments of this stimulus
+	 * 
+	 * @param dest: array receiving SEGMENT_SIZE floats per segment
+	 * @param offset: index of the first float written
+	 */
+	void write(float[] dest, int offset) {
+		System.arraycopy(_segments, 0, dest, offset, _segments.length);
+	}
+
+	/**
+	 * @return a stimulus with the given segments, as copied by write()
+	 */
+	static Stimulus fromSegments(float[] segments) {
+		Stimulus stimulus = new Stimulus();
+		stimulus._segments = segments.clone();
+		return stimulus;
+	}
+
+	private Stimulus addSegment(float start, float end, float amplitude, float slope, float period, float width) {
+		if (!(end > start)) {
+			throw new IllegalArgumentException("Invalid segment [" + start + ", " + end + ")");
+		}
+		int s = _segments.length;
+		_segments = Arrays.copyOf(_segments, s + SEGMENT_SIZE);
+		_segments[s] = start;
+		_segments[s + 1] = end;
+		_segments[s + 2] = amplitude;
+		_segments[s + 3] = slope;
+		_segments[s + 4] = period;
+		_segments[s + 5] = width;
+		return this;
+	}
+}
@@ -0,0 +1,266 @@
+package org.geppetto.samplesolver;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+import org.bridj.Pointer;
+import org.geppetto.samplesolver.HHResults.Variable;
+
+/**
+ * Formats the sampled values of a variable can be stored in, by the kernel
+ * and in {@link HHResults}. The 16-bit formats halve the results read back
+ * from the device and kept on the host, values are decoded when accessed.
+ * The ordinal is the format code of storeResult() in the kernel sources.
+ */
+public enum StorageFormat {
+	/**
+	 * 32-bit float, exact
+	 */
+	FLOAT(4),
+	/**
+	 * IEEE 754 half float, rounded to nearest even: 11 significant bits, i.e.
+	 * at most 0.0625 mV off for V in [-256, 256] mV and 2.4e-4 off for the
+	 * gating variables
+	 */
+	HALF(2),
+	/**
+	 * 16-bit unsigned fixed point over a fixed range per variable: [-50, 150]
+	 * mV for V, at most 1.5e-3 mV off, and [0, 1] for the gating variables,
+	 * at most 7.6e-6 off. Values outside the range are clamped to it.
+	 */
+	SCALED16(2);
+
+	// range of V in SCALED16, the gating variables use [0, 1]
+	static final float SCALED_V_MIN = -50f;
+	static final float SCALED_V_MAX = 150f;
+
+	private static final int SCALED_LEVELS = 65535;
+
+	private final int _bytes;
+
+	private StorageFormat(int bytes) {
+		_bytes = bytes;
+	}
+
+	/**
+	 * @return the number of bytes of each stored value
+	 */
+	public int getBytes() {
+		return _bytes;
+	}
+
+	/**
+	 * @return the largest difference between a value within the range of
+	 *         the format and its decoded value
+	 */
+	public float getMaxError(Variable variable) {
+		switch (this) {
+		case HALF:
+			// half of the spacing of halves in [128, 256) and [0.5, 1)
+			return variable == Variable.V ? 0.0625f : 1f / 4096;
+		case SCALED16:
+			// half of a level, plus the float rounding of the decoding
+			return (getMax(variable) - getMin(variable)) / SCALED_LEVELS / 2 + Math.ulp(getMax(variable));
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * @return the smallest value SCALED16 can store for the variable
+	 */
+	static float getMin(Variable variable) {
+		return variable == Variable.V ? SCALED_V_MIN : 0f;
+	}
+
+	/**
+	 * @return the largest value SCALED16 can store for the variable
+	 */
+	static float getMax(Variable variable) {
+		return variable == Variable.V ? SCALED_V_MAX : 1f;
+	}
+
+	/**
+	 * @return the kernel argument giving the format of each variable, 2 bits
+	 *         per variable in Variable order
+	 */
+	static int pack(StorageFormat[] formats) {
+		int packed = 0;
+		for (int v = 0; v < formats.length; v++) {
+			packed |= formats[v].ordinal() << (2 * v);
+		}
+		return packed;
+	}
+
+	/**
+	 * @return a column of the given number of values, float[] for FLOAT and
+	 *         short[] otherwise
+	 */
+	Object allocate(int length) {
+		return this == FLOAT ? new float[length] : new short[length];
+	}
+
+	/**
+	 * Reads a column written by the kernel in this format
+	 *
+	 * @param values: number of values to read
+	 */
+	Object read(Pointer<?> pointer, int values) {
+		return this == FLOAT ? pointer.getFloats(values) : pointer.getShorts(values);
+	}
+
+	/**
+	 * Wraps memory the kernel wrote values to in this format, without copy
+	 *
+	 * @param values: number of values in the memory
+	 * @return a FloatBuffer for FLOAT, a ShortBuffer otherwise
+	 */
+	Object wrap(ByteBuffer memory, int values) {
+		Buffer view = this == FLOAT ? memory.asFloatBuffer() : memory.asShortBuffer();
+		view.limit(values);
+		return view;
+	}
+
+	/**
+	 * @return the values of a column wrapping memory copied to an array, the
+	 *         column itself if it already is an array
+	 */
+	static Object toArray(Object column) {
+		if (column instanceof FloatBuffer) {
+			FloatBuffer buffer = ((FloatBuffer) column).duplicate();
+			buffer.rewind();
+			float[] values = new float[buffer.remaining()];
+			buffer.get(values);
+			return values;
+		}
+		if (column instanceof ShortBuffer) {
+			ShortBuffer buffer = ((ShortBuffer) column).duplicate();
+			buffer.rewind();
+			short[] values = new short[buffer.remaining()];
+			buffer.get(values);
+			return values;
+		}
+		return column;
+	}
+
+	/**
+	 * Encodes values the way the kernel does
+	 *
+	 * @return the column, the values themselves for FLOAT
+	 */
+	Object encode(float[] values, Variable variable) {
+		if (this == FLOAT) {
+			return values;
+		}
+		short[] column = new short[values.length];
+		for (int i = 0; i < values.length; i++) {
+			column[i] = this == HALF ? floatToHalf(values[i]) : toScaled(values[i], variable);
+		}
+		return column;
+	}
+
+	/**
+	 * @return the value at the given index of a column in this format
+	 */
+	float decode(Object column, int index, Variable variable) {
+		switch (this) {
+		case HALF:
+			return halfToFloat(getShort(column, index));
+		case SCALED16:
+			return fromScaled(getShort(column, index), variable);
+		default:
+			return column instanceof float[] ? ((float[]) column)[index] : ((FloatBuffer) column).get(index);
+		}
+	}
+
+	private static short getShort(Object column, int index) {
+		return column instanceof short[] ? ((short[]) column)[index] : ((ShortBuffer) column).get(index);
+	}
+
+	/**
+	 * @return a decoded copy of a column in this format, the column itself
+	 *         for a FLOAT array
+	 */
+	float[] decode(Object column, Variable variable) {
+		if (this == FLOAT) {
+			return (float[]) toArray(column);
+		}
+		short[] encoded = (short[]) toArray(column);
+		float[] values = new float[encoded.length];
+		for (int i = 0; i < encoded.length; i++) {
+			values[i] = this == HALF ? halfToFloat(encoded[i]) : fromScaled(encoded[i], variable);
+		}
+		return values;
+	}
+
+	private static short toScaled(float value, Variable variable) {
+		float min = getMin(variable);
+		float level = (value - min) * (SCALED_LEVELS / (getMax(variable) - min));
+		// saturated, rounded to nearest even as convert_ushort_sat_rte
+		return (short) Math.rint(Math.max(0, Math.min(SCALED_LEVELS, level)));
+	}
+
+	private static float fromScaled(short level, Variable variable) {
+		float min = getMin(variable);
+		return min + (level & 0xffff) * ((getMax(variable) - min) / SCALED_LEVELS);
+	}
+
+	/**
+	 * @return the bits of the half nearest to the value, ties to even, as
+	 *         vstore_half
+	 */
+	static short floatToHalf(float value) {
+		int bits = Float.floatToRawIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int exponent = (bits >>> 23) & 0xff;
+		int mantissa = bits & 0x7fffff;
+		if (exponent == 0xff) {
+			// infinity or NaN
+			return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+		}
+		int halfExponent = exponent - 127 + 15;
+		if (halfExponent >= 0x1f) {
+			return (short) (sign | 0x7c00);
+		}
+		int shift;
+		if (halfExponent <= 0) {
+			// subnormal half, the implicit bit becomes explicit
+			if (halfExponent < -10) {
+				return (short) sign;
+			}
+			mantissa |= 0x800000;
+			shift = 14 - halfExponent;
+			halfExponent = 0;
+		} else {
+			shift = 13;
+		}
+		int half = (halfExponent << 10) | (mantissa >>> shift);
+		int rest = mantissa & ((1 << shift) - 1);
+		int halfway = 1 << (shift - 1);
+		if (rest > halfway || (rest == halfway && (half & 1) != 0)) {
+			// may carry into the exponent, which is still the right rounding
+			half++;
+		}
+		return (short) (sign | half);
+	}
+
+	/**
+	 * @return the float value of the bits of a half
+	 */
+	static float halfToFloat(short half) {
+		int sign = (half & 0x8000) << 16;
+		int exponent = (half >>> 10) & 0x1f;
+		int mantissa = half & 0x3ff;
+		if (exponent == 0x1f) {
+			return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+		}
+		if (exponent == 0) {
+			// zero or subnormal, mantissa * 2^-24
+			float value = mantissa * (1f / (1 << 24));
+			return sign == 0 ? value : -value;
+		}
+		return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+	}
+}
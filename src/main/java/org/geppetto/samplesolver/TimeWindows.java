@@ -0,0 +1,63 @@
+package org.geppetto.samplesolver;
+
+import java.util.List;
+
+import org.geppetto.core.model.IModel;
+import org.geppetto.core.simulation.ITimeConfiguration;
+import org.geppetto.core.simulation.TimeConfiguration;
+
+/**
+ * Splits a run in consecutive time windows of a fixed number of steps, the
+ * last one holding the remaining steps. Windows are integrated one after the
+ * other from the same state, so their samples follow each other exactly.
+ */
+class TimeWindows {
+
+	private final ITimeConfiguration _timeConfiguration;
+	private final int _windowSteps;
+	private final int _count;
+
+	/**
+	 * @param timeConfiguration: time configuration of the whole run
+	 * @param windowSteps: number of steps of each window, a multiple of the
+	 *            sample period
+	 */
+	TimeWindows(ITimeConfiguration timeConfiguration, int windowSteps) {
+		if (windowSteps <= 0 || windowSteps % timeConfiguration.getSamplePeriod() != 0) {
+			throw new IllegalArgumentException("Window of " + windowSteps + " steps is not a multiple of the sample period " + timeConfiguration.getSamplePeriod());
+		}
+		_timeConfiguration = timeConfiguration;
+		_windowSteps = windowSteps;
+		_count = Math.max(1, (timeConfiguration.getTimeSteps() + windowSteps - 1) / windowSteps);
+	}
+
+	/**
+	 * @return the number of windows
+	 */
+	int getCount() {
+		return _count;
+	}
+
+	/**
+	 * @return the time configuration of the given window
+	 */
+	ITimeConfiguration get(int window) {
+		int steps = Math.min(_windowSteps, _timeConfiguration.getTimeSteps() - window * _windowSteps);
+		return new TimeConfiguration(_timeConfiguration.getTimeStepLength(), steps, _timeConfiguration.getSamplePeriod());
+	}
+
+	/**
+	 * Integrates the windows one after the other on a state of their own,
+	 * passing each one to the listener as soon as it is done
+	 */
+	void stream(HHBackend backend, List<IModel> models, String[] ids, HHParameters parameters, SolveListener listener) {
+		NeuronState state = backend.createState(models);
+		try {
+			for (int w = 0; w < _count; w++) {
+				listener.windowCompleted(w, _count, backend.integrate(state, ids, get(w), parameters));
+			}
+		} finally {
+			state.release();
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package org.geppetto.samplesolver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+
+import org.geppetto.samplesolver.HHResults.Variable;
+
+/**
+ * Binary trace file written by {@link TraceWriter} and read by
+ * {@link TraceReader}, accessed through memory mappings so neither needs the
+ * traces in the heap. All the values are little-endian.
+ *
+ * <pre>
+ * offset  type      content
+ * 0       int       magic, 0x48485452 ("HHTR")
+ * 4       int       version, 1
+ * 8       int       layout, 1 for model-major
+ * 12      int       number of models M
+ * 16      long      number of samples per model S
+ * 24      long      number of samples written so far, at most S
+ * 32      float     time step in ms
+ * 36      int       sample period in steps
+ * 40      byte[4]   StorageFormat ordinal of V, XN, XM and XH
+ * 44      int       reserved, 0
+ * 48      long      offset of the data, a multiple of 64
+ * 56      ...       M model ids, each an int length and its UTF-8 bytes
+ * </pre>
+ *
+ * The data holds one block per variable, in Variable order. A block holds the
+ * S values of the first model, then the S values of the second model and so
+ * on, each value in the format of its variable: float, or 16 bits decoded as
+ * in {@link StorageFormat}. The trace of one model is contiguous, sample s is
+ * taken at (s + 1) * sample period * time step ms.
+ */
+class TraceFile {
+
+	static final int MAGIC = 0x48485452;
+	static final int VERSION = 1;
+	static final int LAYOUT_MODEL_MAJOR = 1;
+
+	private static final int SAMPLES_WRITTEN_OFFSET = 24;
+	private static final int IDS_OFFSET = 56;
+	private static final int DATA_ALIGNMENT = 64;
+
+	// largest region mapped at once
+	private static final long MAX_MAPPING = 1L << 30;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File _file;
+	private final RandomAccessFile _raf;
+	private final FileChannel _channel;
+	private final boolean _writable;
+	private final MappedByteBuffer _header;
+
+	private final String[] _ids;
+	private final long _samplesPerModel;
+	private final float _dt;
+	private final int _samplePeriod;
+	private final StorageFormat[] _formats;
+
+	// offset of the block of each variable and number of models per mapping
+	private final long[] _blockOffsets;
+	private final int[] _modelsPerMapping;
+	// mappings of each variable, created on first use
+	private final MappedByteBuffer[][] _mappings;
+
+	private TraceFile(File file, RandomAccessFile raf, boolean writable, String[] ids, long samplesPerModel, float dt, int samplePeriod, StorageFormat[] formats, long dataOffset) throws IOException {
+		_file = file;
+		_raf = raf;
+		_channel = raf.getChannel();
+		_writable = writable;
+		_ids = ids;
+		_samplesPerModel = samplesPerModel;
+		_dt = dt;
+		_samplePeriod = samplePeriod;
+		_formats = formats;
+
+		_blockOffsets = new long[formats.length];
+		_modelsPerMapping = new int[formats.length];
+		_mappings = new MappedByteBuffer[formats.length][];
+		long offset = dataOffset;
+		for (int v = 0; v < formats.length; v++) {
+			long traceBytes = samplesPerModel * formats[v].getBytes();
+			if (traceBytes > MAX_MAPPING) {
+				throw new IllegalArgumentException("Traces of " + samplesPerModel + " samples are too long to be mapped");
+			}
+			_blockOffsets[v] = offset;
+			_modelsPerMapping[v] = (int) Math.max(1, Math.min(ids.length, MAX_MAPPING / Math.max(1, traceBytes)));
+			_mappings[v] = new MappedByteBuffer[(ids.length + _modelsPerMapping[v] - 1) / _modelsPerMapping[v]];
+			offset += traceBytes * ids.length;
+		}
+		if (writable) {
+			_raf.setLength(offset);
+		}
+		_header = _channel.map(writable ? MapMode.READ_WRITE : MapMode.READ_ONLY, 0, dataOffset);
+		_header.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Creates a trace file with its header, replacing any existing file
+	 */
+	static TraceFile create(File file, String[] ids, long samplesPerModel, float dt, int samplePeriod, StorageFormat[] formats) throws IOException {
+		byte[][] encodedIds = new byte[ids.length][];
+		long idsBytes = 0;
+		for (int m = 0; m < ids.length; m++) {
+			encodedIds[m] = ids[m].getBytes(UTF8);
+			idsBytes += 4 + encodedIds[m].length;
+		}
+		long dataOffset = (IDS_OFFSET + idsBytes + DATA_ALIGNMENT - 1) / DATA_ALIGNMENT * DATA_ALIGNMENT;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			TraceFile trace = new TraceFile(file, raf, true, ids, samplesPerModel, dt, samplePeriod, formats, dataOffset);
+			ByteBuffer header = trace._header;
+			header.putInt(0, MAGIC);
+			header.putInt(4, VERSION);
+			header.putInt(8, LAYOUT_MODEL_MAJOR);
+			header.putInt(12, ids.length);
+			header.putLong(16, samplesPerModel);
+			header.putLong(SAMPLES_WRITTEN_OFFSET, 0);
+			header.putFloat(32, dt);
+			header.putInt(36, samplePeriod);
+			for (int v = 0; v < formats.length; v++) {
+				header.put(40 + v, (byte) formats[v].ordinal());
+			}
+			header.putInt(44, 0);
+			header.putLong(48, dataOffset);
+			header.position(IDS_OFFSET);
+			for (byte[] id : encodedIds) {
+				header.putInt(id.length);
+				header.put(id);
+			}
+			return trace;
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		} catch (RuntimeException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens an existing trace file for reading
+	 *
+	 * @throws IOException if the file can't be read or is not a trace file
+	 */
+	static TraceFile open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer fixed = ByteBuffer.allocate(IDS_OFFSET).order(ByteOrder.LITTLE_ENDIAN);
+			while (fixed.hasRemaining() && channel.read(fixed) >= 0) {
+			}
+			if (fixed.hasRemaining() || fixed.getInt(0) != MAGIC) {
+				throw new IOException(file + " is not a trace file");
+			}
+			if (fixed.getInt(4) != VERSION || fixed.getInt(8) != LAYOUT_MODEL_MAJOR) {
+				throw new IOException("Unsupported trace file version " + fixed.getInt(4) + ", layout " + fixed.getInt(8));
+			}
+			int modelCount = fixed.getInt(12);
+			long samplesPerModel = fixed.getLong(16);
+			float dt = fixed.getFloat(32);
+			int samplePeriod = fixed.getInt(36);
+			StorageFormat[] formats = new StorageFormat[Variable.values().length];
+			for (int v = 0; v < formats.length; v++) {
+				formats[v] = StorageFormat.values()[fixed.get(40 + v)];
+			}
+			long dataOffset = fixed.getLong(48);
+
+			ByteBuffer idBytes = channel.map(MapMode.READ_ONLY, IDS_OFFSET, dataOffset - IDS_OFFSET).order(ByteOrder.LITTLE_ENDIAN);
+			String[] ids = new String[modelCount];
+			for (int m = 0; m < modelCount; m++) {
+				byte[] id = new byte[idBytes.getInt()];
+				idBytes.get(id);
+				ids[m] = new String(id, UTF8);
+			}
+			return new TraceFile(file, raf, false, ids, samplesPerModel, dt, samplePeriod, formats, dataOffset);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		} catch (RuntimeException e) {
+			raf.close();
+			throw new IOException(file + " is not a valid trace file: " + e);
+		}
+	}
+
+	File getFile() {
+		return _file;
+	}
+
+	String[] getIds() {
+		return _ids;
+	}
+
+	long getSamplesPerModel() {
+		return _samplesPerModel;
+	}
+
+	float getTimeStepLength() {
+		return _dt;
+	}
+
+	int getSamplePeriod() {
+		return _samplePeriod;
+	}
+
+	StorageFormat getFormat(Variable variable) {
+		return _formats[variable.ordinal()];
+	}
+
+	long getSamplesWritten() {
+		return _header.getLong(SAMPLES_WRITTEN_OFFSET);
+	}
+
+	void setSamplesWritten(long samples) {
+		_header.putLong(SAMPLES_WRITTEN_OFFSET, samples);
+	}
+
+	/**
+	 * Returns the mapped memory of a model's trace, position 0 is its first
+	 * sample. The region belongs to a mapping shared with other models and
+	 * only covers this trace.
+	 */
+	ByteBuffer getTrace(Variable variable, int model) throws IOException {
+		int v = variable.ordinal();
+		int mapping = model / _modelsPerMapping[v];
+		MappedByteBuffer mapped = _mappings[v][mapping];
+		long traceBytes = _samplesPerModel * _formats[v].getBytes();
+		if (mapped == null) {
+			int firstModel = mapping * _modelsPerMapping[v];
+			int models = Math.min(_modelsPerMapping[v], _ids.length - firstModel);
+			mapped = _channel.map(_writable ? MapMode.READ_WRITE : MapMode.READ_ONLY, _blockOffsets[v] + firstModel * traceBytes, models * traceBytes);
+			_mappings[v][mapping] = mapped;
+		}
+		ByteBuffer trace = mapped.duplicate();
+		int start = (int) ((model % _modelsPerMapping[v]) * traceBytes);
+		trace.position(start);
+		trace.limit(start + (int) traceBytes);
+		return trace.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Flushes the mappings of a writable file to disk and closes it. The
+	 * mapped memory is released once the mappings are garbage collected.
+	 */
+	void close() throws IOException {
+		if (_writable) {
+			_header.force();
+			for (MappedByteBuffer[] mappings : _mappings) {
+				for (MappedByteBuffer mapped : mappings) {
+					if (mapped != null) {
+						mapped.force();
+					}
+				}
+			}
+		}
+		_raf.close();
+	}
+}
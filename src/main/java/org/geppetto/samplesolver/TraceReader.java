@@ -0,0 +1,122 @@
+package org.geppetto.samplesolver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.geppetto.samplesolver.HHResults.Variable;
+
+/**
+ * Random access to a trace file written by {@link TraceWriter}. Traces are
+ * read from memory mappings of the file, only the pages of the traces
+ * accessed are loaded.
+ */
+public class TraceReader implements Closeable {
+
+	private final TraceFile _trace;
+	private final long _samples;
+
+	/**
+	 * @param file: a trace file
+	 * @throws IOException if the file can't be read or is not a trace file
+	 */
+	public TraceReader(File file) throws IOException {
+		_trace = TraceFile.open(file);
+		_samples = _trace.getSamplesWritten();
+	}
+
+	public int getModelCount() {
+		return _trace.getIds().length;
+	}
+
+	public String getModelId(int model) {
+		return _trace.getIds()[model];
+	}
+
+	/**
+	 * @return the index of the model with the given id, -1 if there is none
+	 */
+	public int indexOf(String id) {
+		String[] ids = _trace.getIds();
+		for (int m = 0; m < ids.length; m++) {
+			if (ids[m].equals(id)) {
+				return m;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the number of samples of each model written to the file, less
+	 *         than the samples of the run if it was interrupted
+	 */
+	public long getSampleCount() {
+		return _samples;
+	}
+
+	public float getTimeStepLength() {
+		return _trace.getTimeStepLength();
+	}
+
+	public int getSamplePeriod() {
+		return _trace.getSamplePeriod();
+	}
+
+	public StorageFormat getStorageFormat(Variable variable) {
+		return _trace.getFormat(variable);
+	}
+
+	/**
+	 * @return the value of a variable for the given model and sample
+	 */
+	public float get(Variable variable, int model, long sample) throws IOException {
+		checkSample(sample);
+		ByteBuffer trace = _trace.getTrace(variable, model);
+		StorageFormat format = _trace.getFormat(variable);
+		if (format == StorageFormat.FLOAT) {
+			return trace.getFloat((int) sample * 4);
+		}
+		return format.decode(new short[] { trace.getShort((int) sample * 2) }, 0, variable);
+	}
+
+	/**
+	 * @return the values of a variable over all the samples written for one
+	 *         model
+	 */
+	public float[] getTrace(Variable variable, int model) throws IOException {
+		return getTrace(variable, model, 0, (int) _samples);
+	}
+
+	/**
+	 * @param from: first sample, included
+	 * @param length: number of samples
+	 * @return the values of a variable over a range of samples of one model
+	 */
+	public float[] getTrace(Variable variable, int model, long from, int length) throws IOException {
+		checkSample(from);
+		checkSample(from + length - 1);
+		ByteBuffer trace = _trace.getTrace(variable, model);
+		StorageFormat format = _trace.getFormat(variable);
+		if (format == StorageFormat.FLOAT) {
+			float[] values = new float[length];
+			trace.position((int) from * 4);
+			trace.asFloatBuffer().get(values);
+			return values;
+		}
+		short[] encoded = new short[length];
+		trace.position((int) from * 2);
+		trace.asShortBuffer().get(encoded);
+		return format.decode(encoded, variable);
+	}
+
+	private void checkSample(long sample) {
+		if (sample < 0 || sample >= _samples) {
+			throw new IndexOutOfBoundsException("Sample " + sample + " of a trace with " + _samples + " samples");
+		}
+	}
+
+	public void close() throws IOException {
+		_trace.close();
+	}
+}
@@ -0,0 +1,131 @@
+package org.geppetto.samplesolver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.geppetto.core.simulation.ITimeConfiguration;
+import org.geppetto.samplesolver.HHResults.Variable;
+
+/**
+ * Writes consecutive windows of results to a memory-mapped trace file, see
+ * {@link TraceFile} for the format. Used as the consumer of
+ * {@link SampleSolverService#solveStreaming}, it stores runs with more samples
+ * than fit in the heap: only the current window is ever held in memory. The
+ * file is created with the ids and storage formats of the first window and
+ * sized for the whole run, the number of samples written is updated after
+ * each window so an interrupted run leaves a readable file.
+ */
+public class TraceWriter implements SolveListener, Closeable {
+
+	private final File _file;
+	private final ITimeConfiguration _timeConfiguration;
+	private TraceFile _trace;
+	private long _samples;
+	private boolean _closed;
+
+	/**
+	 * @param file: the file to write, replaced if it exists
+	 * @param timeConfiguration: time configuration of the whole run
+	 */
+	public TraceWriter(File file, ITimeConfiguration timeConfiguration) {
+		_file = file;
+		_timeConfiguration = timeConfiguration;
+	}
+
+	public File getFile() {
+		return _file;
+	}
+
+	/**
+	 * @return the number of samples per model written so far
+	 */
+	public synchronized long getSampleCount() {
+		return _samples;
+	}
+
+	/**
+	 * Writes the next window, see {@link #write(HHResults)}
+	 *
+	 * @throws IllegalStateException if the window can't be written
+	 */
+	public void windowCompleted(int window, int windows, HHResults results) {
+		try {
+			write(results);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not write the trace to " + _file, e);
+		}
+	}
+
+	/**
+	 * Appends the samples of the next window of the run
+	 *
+	 * @param results: the results of the window, same models as the previous
+	 *            windows
+	 * @throws IOException if the file can't be created
+	 */
+	public synchronized void write(HHResults results) throws IOException {
+		if (_closed) {
+			throw new IllegalStateException("Trace already closed");
+		}
+		if (_trace == null) {
+			_trace = create(results);
+		}
+		int noModels = results.getModelCount();
+		int noSamples = results.getSampleCount();
+		if (noModels != _trace.getIds().length) {
+			throw new IllegalArgumentException("Results with " + noModels + " models for a trace of " + _trace.getIds().length);
+		}
+		if (_samples + noSamples > _trace.getSamplesPerModel()) {
+			throw new IllegalArgumentException("More samples than the " + _trace.getSamplesPerModel() + " of the time configuration");
+		}
+
+		for (Variable variable : Variable.values()) {
+			if (results.getStorageFormat(variable) != _trace.getFormat(variable)) {
+				throw new IllegalArgumentException("Results of " + variable + " in " + results.getStorageFormat(variable) + " for a trace in " + _trace.getFormat(variable));
+			}
+			// time-major window to the contiguous trace of each model
+			Object column = results.getStoredColumn(variable);
+			for (int m = 0; m < noModels; m++) {
+				ByteBuffer trace = _trace.getTrace(variable, m);
+				if (column instanceof float[]) {
+					float[] values = (float[]) column;
+					for (int s = 0; s < noSamples; s++) {
+						trace.putFloat((int) (_samples + s) * 4, values[s * noModels + m]);
+					}
+				} else {
+					short[] values = (short[]) column;
+					for (int s = 0; s < noSamples; s++) {
+						trace.putShort((int) (_samples + s) * 2, values[s * noModels + m]);
+					}
+				}
+			}
+		}
+		_samples += noSamples;
+		_trace.setSamplesWritten(_samples);
+	}
+
+	private TraceFile create(HHResults results) throws IOException {
+		String[] ids = new String[results.getModelCount()];
+		for (int m = 0; m < ids.length; m++) {
+			ids[m] = results.getModelId(m);
+		}
+		StorageFormat[] formats = new StorageFormat[Variable.values().length];
+		for (Variable variable : Variable.values()) {
+			formats[variable.ordinal()] = results.getStorageFormat(variable);
+		}
+		long samples = _timeConfiguration.getTimeSteps() / _timeConfiguration.getSamplePeriod();
+		return TraceFile.create(_file, ids, samples, _timeConfiguration.getTimeStepLength(), _timeConfiguration.getSamplePeriod(), formats);
+	}
+
+	/**
+	 * Flushes the file to disk and closes it
+	 */
+	public synchronized void close() throws IOException {
+		if (!_closed && _trace != null) {
+			_trace.close();
+		}
+		_closed = true;
+	}
+}
@@ -1,22 +1,158 @@
+    // Current injected by the stimulus segments [first, last) at the given
+    // time, see Stimulus. A segment is (start, end, amplitude, slope, period,
+    // width, 0, 0), pulses are only on for width ms of each period when the
+    // period is not 0.
+    float stimulusCurrent(global const float8* stimuli, const int first, const int last, const float time) {
+    	float I = 0.0f;
+    	for (int s = first; s < last; s++) {
+    		float8 segment = stimuli[s];
+    		if (time >= segment.s0 && time < segment.s1) {
+    			float elapsed = time - segment.s0;
+    			if (segment.s4 == 0.0f || fmod(elapsed, segment.s4) < segment.s5) {
+    				I += segment.s2 + segment.s3 * elapsed;
+    			}
+    		}
+    	}
+    	return I;
+    }
+
+    // Records a spike of neuron i when V crosses the threshold upwards during
+    // the step starting at stepStart, unless it falls within the refractory
+    // period of the previous spike. The crossing is timed by linear
+    // interpolation and appended to the event buffers through the atomic
+    // counter, which keeps counting past maxSpikes so the host knows how many
+    // were dropped. Returns the time of the last spike of the neuron.
+    float detectSpike(const int i, const float V_prev, const float V, const float stepStart, const float dt, const float lastSpike,
+    				  const float spikeThreshold, const float refractory,
+    				  global int* spikeNeurons, global float* spikeTimes, volatile global int* spikeCount, const int maxSpikes) {
+    	if (V_prev < spikeThreshold && V >= spikeThreshold) {
+    		float spikeTime = stepStart + dt * (spikeThreshold - V_prev) / (V - V_prev);
+    		if (spikeTime - lastSpike >= refractory) {
+    			int slot = atomic_inc(spikeCount);
+    			if (slot < maxSpikes) {
+    				spikeNeurons[slot] = i;
+    				spikeTimes[slot] = spikeTime;
+    			}
+    			return spikeTime;
+    		}
+    	}
+    	return lastSpike;
+    }
+
+    // Storage formats of the sampled results, see StorageFormat: 32-bit
+    // float, half float rounded to nearest even, or 16-bit unsigned fixed
+    // point over [min, max] saturated and rounded to nearest even.
+    // resultFormats packs the format of each variable in 2 bits, V first.
+    // The range of V in fixed point is set at build time.
+    #define FORMAT_HALF 1
+    #define FORMAT_SCALED16 2
+
+    #ifndef SCALED_V_MIN
+    #define SCALED_V_MIN -50.0f
+    #define SCALED_V_MAX 150.0f
+    #endif
+
+    void storeResult(const float value, const int index, global float* results, const int format, const float min, const float max) {
+    	if (format == FORMAT_HALF) {
+    		vstore_half(value, index, (global half*) results);
+    	} else if (format == FORMAT_SCALED16) {
+    		((global ushort*) results)[index] = convert_ushort_sat_rte((value - min) * (65535.0f / (max - min)));
+    	} else {
+    		results[index] = value;
+    	}
+    }
+
+    // Stores the four variables of one sample at the given index
+    #define STORE_SAMPLE(index, V, x_n, x_m, x_h) \
+    	storeResult(V, index, V_results, resultFormats & 3, SCALED_V_MIN, SCALED_V_MAX); \
+    	storeResult(x_n, index, Xn_results, (resultFormats >> 2) & 3, 0.0f, 1.0f); \
+    	storeResult(x_m, index, Xm_results, (resultFormats >> 4) & 3, 0.0f, 1.0f); \
+    	storeResult(x_h, index, Xh_results, (resultFormats >> 6) & 3, 0.0f, 1.0f)
+
+    // Steady state detection, see SteadyState. hold is steadyHold, or 0 for
+    // neurons with a stimulus, and steadyHold is 0 when detection is off. A
+    // neuron settles once V changed by at most steadyV and each gating
+    // variable by at most steadyX at each of the last hold steps: its state
+    // is stored as the next sample, from which its trace is constant, and its
+    // loop ends. Needs steadySteps, sampleIndex and nextSample in scope.
+    #define CHECK_STEADY(hold, dV, dx_n, dx_m, dx_h, V, x_n, x_m, x_h) \
+    	if (hold > 0) { \
+    		if (fabs(dV) <= steadyV && fabs(dx_n) <= steadyX && fabs(dx_m) <= steadyX && fabs(dx_h) <= steadyX) { \
+    			if (++steadySteps >= hold) { \
+    				if (nextSample <= steps) { \
+    					STORE_SAMPLE(sampleIndex, V, x_n, x_m, x_h); \
+    				} \
+    				break; \
+    			} \
+    		} else { \
+    			steadySteps = 0; \
+    		} \
+    	}
+
+    // Index of the sample neuron i is constant from, the number of samples if
+    // it did not settle
+    #define STORE_SETTLED(i) \
+    	if (steadyHold > 0) { \
+    		settledSamples[i] = min(nextSample / samplePeriod - 1, steps / samplePeriod); \
+    	}
+
+    // Declares the channel parameters maxG_K ... E_Leak of neuron i, read from
+    // the per-neuron channels buffer when given, otherwise the shared values
+    // passed as kernel arguments. A row is (maxG_K, maxG_Na, maxG_Leak, E_K,
+    // E_Na, E_Leak, 0, 0).
+    #define LOAD_CHANNELS(i) \
+    	const float8 channelRow = channelsPerNeuron ? channels[i] \
+    		: (float8)(sharedMaxG_K, sharedMaxG_Na, sharedMaxG_Leak, sharedE_K, sharedE_Na, sharedE_Leak, 0.0f, 0.0f); \
+    	const float maxG_K = channelRow.s0; \
+    	const float maxG_Na = channelRow.s1; \
+    	const float maxG_Leak = channelRow.s2; \
+    	const float E_K = channelRow.s3; \
+    	const float E_Na = channelRow.s4; \
+    	const float E_Leak = channelRow.s5
+
+    // Arguments shared by all the integration kernels, in the order set by
+    // OpenCLBackend.setArgs, which counts them in COMMON_ARGS. Kernels taking
+    // more arguments declare them after these.
+    #define HH_COMMON_ARGS \
+    	const float sharedMaxG_K, \
+    	const float sharedMaxG_Na, \
+    	const float sharedMaxG_Leak, \
+    	const float sharedE_K, \
+    	const float sharedE_Na, \
+    	const float sharedE_Leak, \
+    	const float dt, \
+    	const int steps, \
+    	const int samplePeriod, \
+    	global const float* I_ext, \
+    	global const float8* stimuli, \
+    	global const int* stimulusOffsets, \
+    	const float t0, \
+    	global const float8* channels, \
+    	const int channelsPerNeuron, \
+    	const float spikeThreshold, \
+    	const float refractory, \
+    	global float* lastSpikes, \
+    	global int* spikeNeurons, \
+    	global float* spikeTimes, \
+    	volatile global int* spikeCount, \
+    	const int maxSpikes, \
+    	const int resultFormats, \
+    	const float steadyV, \
+    	const float steadyX, \
+    	const int steadyHold, \
+    	global int* settledSamples, \
+    	global float* V_in, \
+    	global float* x_n_in, \
+    	global float* x_m_in, \
+    	global float* x_h_in, \
+    	global float* V_results, \
+    	global float* Xn_results, \
+    	global float* Xm_results, \
+    	global float* Xh_results, \
+    	int numElements
+
     // OpenCL Kernel Function for Hodgkin Huxley integration step
-    kernel void IntegrateHHStep(const float maxG_K,
-    							const float maxG_Na,
-    							const float maxG_Leak,
-    							const float E_K,
-    							const float E_Na,
-    							const float E_Leak,
-    							const float dt,
-    							const int steps,
-    							global float* I_ext,
-    							global float* V_in, 
-    							global float* x_n_in,
-    							global float* x_m_in,
-    							global float* x_h_in,
-    							global float* V_results,
-    							global float* Xn_results,
-    							global float* Xm_results,
-    							global float* Xh_results,
-    							int numElements) {
+    kernel void IntegrateHHStep(HH_COMMON_ARGS) {
         // get index into global data array
         int iGID = get_global_id(0);
 
@@ -24,9 +160,27 @@
         if (iGID >= numElements)  {
             return;
         }
+
+        // channel parameters of this neuron
+        LOAD_CHANNELS(iGID);
         
+        // stimulus segments of this neuron
+        int firstSegment = stimulusOffsets[iGID];
+        int lastSegment = stimulusOffsets[iGID + 1];
+
+        // time of the last spike, for the refractory period
+        float lastSpike = maxSpikes > 0 ? lastSpikes[iGID] : 0.0f;
+
+        // steady state detection
+        const int hold = firstSegment == lastSegment ? steadyHold : 0;
+        int steadySteps = 0;
+        int sampleIndex = iGID;
+        int nextSample = samplePeriod;
+
         // here we go, HH integration loop (Euler's method)
-    	for (float t = 0; t < steps; t+=1) {
+    	for (int t = 0; t < steps; t++) {
+    		float V_prev = V_in[iGID];
+    		float4 x_prev = (float4)(x_n_in[iGID], x_m_in[iGID], x_h_in[iGID], 0.0f);
            
 			// logic for step integration
         	// alpha functions
@@ -65,12 +219,584 @@
 								0.0f);
 	
 			// given all the currents, update voltage membrane
-			V_in[iGID] = V_in[iGID] + dt * (I_ext[iGID] - (I.x + I.y + I.z));
+			V_in[iGID] = V_in[iGID] + dt * (I_ext[iGID] + stimulusCurrent(stimuli, firstSegment, lastSegment, t0 + t * dt) - (I.x + I.y + I.z));
+			if (maxSpikes > 0) {
+				lastSpike = detectSpike(iGID, V_prev, V_in[iGID], t0 + t * dt, dt, lastSpike, spikeThreshold, refractory, spikeNeurons, spikeTimes, spikeCount, maxSpikes);
+			}
+			CHECK_STEADY(hold, V_in[iGID] - V_prev, x_n_in[iGID] - x_prev.x, x_m_in[iGID] - x_prev.y, x_h_in[iGID] - x_prev.z,
+						 V_in[iGID], x_n_in[iGID], x_m_in[iGID], x_h_in[iGID]);
 			
-			// store results for each step
-			V_results[iGID + (int)t*numElements] = V_in[iGID];
-			Xn_results[iGID + (int)t*numElements] = x_n_in[iGID];
-			Xm_results[iGID + (int)t*numElements] = x_m_in[iGID];
-			Xh_results[iGID + (int)t*numElements] = x_h_in[iGID];
+			// store results only for sampled steps
+			if ((t + 1) % samplePeriod == 0) {
+				int sample = (t + 1) / samplePeriod - 1;
+				STORE_SAMPLE(iGID + sample*numElements, V_in[iGID], x_n_in[iGID], x_m_in[iGID], x_h_in[iGID]);
+				sampleIndex += numElements;
+				nextSample += samplePeriod;
+			}
 		}
-    }
\ No newline at end of file
+
+		if (maxSpikes > 0) {
+			lastSpikes[iGID] = lastSpike;
+		}
+		STORE_SETTLED(iGID);
+    }
+
+    // Number of neurons integrated by each work item of IntegrateHHStepVector,
+    // set at build time with -DVECTOR_WIDTH=1, 2, 4 or 8
+    #ifndef VECTOR_WIDTH
+    #define VECTOR_WIDTH 4
+    #endif
+
+    #if VECTOR_WIDTH == 8
+    typedef float8 floatv;
+    #define VLOAD(p) vload8(0, p)
+    #define VSTORE(v, p) vstore8(v, 0, p)
+    #define VSTORE_HALF(v, p) vstore_half8(v, 0, p)
+    #define VSTORE_SCALED(v, p) vstore8(convert_ushort8_sat_rte(v), 0, p)
+    #elif VECTOR_WIDTH == 4
+    typedef float4 floatv;
+    #define VLOAD(p) vload4(0, p)
+    #define VSTORE(v, p) vstore4(v, 0, p)
+    #define VSTORE_HALF(v, p) vstore_half4(v, 0, p)
+    #define VSTORE_SCALED(v, p) vstore4(convert_ushort4_sat_rte(v), 0, p)
+    #elif VECTOR_WIDTH == 2
+    typedef float2 floatv;
+    #define VLOAD(p) vload2(0, p)
+    #define VSTORE(v, p) vstore2(v, 0, p)
+    #define VSTORE_HALF(v, p) vstore_half2(v, 0, p)
+    #define VSTORE_SCALED(v, p) vstore2(convert_ushort2_sat_rte(v), 0, p)
+    #else
+    typedef float floatv;
+    #define VLOAD(p) (*(p))
+    #define VSTORE(v, p) (*(p) = (v))
+    #define VSTORE_HALF(v, p) vstore_half(v, 0, p)
+    #define VSTORE_SCALED(v, p) (*(p) = convert_ushort_sat_rte(v))
+    #endif
+
+    // storeResult() for the VECTOR_WIDTH neurons starting at index
+    void storeResultV(const floatv value, const int index, global float* results, const int format, const float min, const float max) {
+    	if (format == FORMAT_HALF) {
+    		VSTORE_HALF(value, (global half*) results + index);
+    	} else if (format == FORMAT_SCALED16) {
+    		VSTORE_SCALED((value - min) * (65535.0f / (max - min)), (global ushort*) results + index);
+    	} else {
+    		VSTORE(value, results + index);
+    	}
+    }
+
+    // Tuned integration of one neuron, same model as IntegrateHHStep. The state
+    // stays in private memory for the whole loop and global memory is only
+    // written for sampled steps and at the end of the window.
+    // exp((10 - V) / 10), exp((25 - V) / 10), exp((30 - V) / 10) and exp(-V / 20)
+    // are all derived from exp(-V / 10), and the gating update is rewritten as
+    // x += dt * (alpha - (alpha + beta) * x), which is the same Euler step
+    // without the divisions by tau.
+    // V matches IntegrateHHStep within 1e-2 mV over the reference scenario
+    // (testTunedKernelMatchesReference), the deviation is about 3e-4 mV when
+    // exp is correctly rounded.
+    void integrateNeuronTuned(const int iGID,
+    							const float maxG_K,
+    							const float maxG_Na,
+    							const float maxG_Leak,
+    							const float E_K,
+    							const float E_Na,
+    							const float E_Leak,
+    							const float dt,
+    							const int steps,
+    							const int samplePeriod,
+    							global const float* I_ext,
+    							global const float8* stimuli,
+    							global const int* stimulusOffsets,
+    							const float t0,
+    							const float spikeThreshold,
+    							const float refractory,
+    							global float* lastSpikes,
+    							global int* spikeNeurons,
+    							global float* spikeTimes,
+    							volatile global int* spikeCount,
+    							const int maxSpikes,
+    							const int resultFormats,
+    							const float steadyV,
+    							const float steadyX,
+    							const int steadyHold,
+    							global int* settledSamples,
+    							global float* V_in, 
+    							global float* x_n_in,
+    							global float* x_m_in,
+    							global float* x_h_in,
+    							global float* V_results,
+    							global float* Xn_results,
+    							global float* Xm_results,
+    							global float* Xh_results,
+    							int numElements) {
+        // private copy of the state for the whole window
+        const float I_base = I_ext[iGID];
+        int firstSegment = stimulusOffsets[iGID];
+        int lastSegment = stimulusOffsets[iGID + 1];
+        float V = V_in[iGID];
+        float x_n = x_n_in[iGID];
+        float x_m = x_m_in[iGID];
+        float x_h = x_h_in[iGID];
+
+        float lastSpike = maxSpikes > 0 ? lastSpikes[iGID] : 0.0f;
+
+        const int hold = firstSegment == lastSegment ? steadyHold : 0;
+        int steadySteps = 0;
+        int sampleIndex = iGID;
+        int nextSample = samplePeriod;
+
+        // here we go, HH integration loop (Euler's method)
+    	for (int t = 1; t <= steps; t++) {
+    		float I = I_base + stimulusCurrent(stimuli, firstSegment, lastSegment, t0 + (t - 1) * dt);
+    		// shared exponential of V
+    		float e10 = exp(-V / 10);
+
+        	// alpha functions
+    		float alpha_n = (10 - V) / (100 * (2.7182818f * e10 - 1));
+    		float alpha_m = (25 - V) / (10 * (12.182494f * e10 - 1));
+    		float alpha_h = 0.07f * sqrt(e10);
+    		// beta functions
+    		float beta_n = 0.125f * exp(-V / 80);
+    		float beta_m = 4 * exp(-V / 18);
+    		float beta_h = 1 / (20.085537f * e10 + 1);
+
+    		// leaky integration for Xs with euler's method
+    		float dx_n = dt * (alpha_n - (alpha_n + beta_n) * x_n);
+    		float dx_m = dt * (alpha_m - (alpha_m + beta_m) * x_m);
+    		float dx_h = dt * (alpha_h - (alpha_h + beta_h) * x_h);
+    		x_n += dx_n;
+    		x_m += dx_m;
+    		x_h += dx_h;
+
+    		// conductances and currents with Ohm's law
+    		float x_n2 = x_n * x_n;
+    		float I_ion = maxG_K * x_n2 * x_n2 * (V - E_K)
+    					+ maxG_Na * x_m * x_m * x_m * x_h * (V - E_Na)
+    					+ maxG_Leak * (V - E_Leak);
+
+    		// given all the currents, update voltage membrane
+    		float V_prev = V;
+    		V += dt * (I - I_ion);
+    		if (maxSpikes > 0) {
+    			lastSpike = detectSpike(iGID, V_prev, V, t0 + (t - 1) * dt, dt, lastSpike, spikeThreshold, refractory, spikeNeurons, spikeTimes, spikeCount, maxSpikes);
+    		}
+    		CHECK_STEADY(hold, V - V_prev, dx_n, dx_m, dx_h, V, x_n, x_m, x_h);
+
+    		// store results only for sampled steps
+    		if (t == nextSample) {
+    			STORE_SAMPLE(sampleIndex, V, x_n, x_m, x_h);
+    			sampleIndex += numElements;
+    			nextSample += samplePeriod;
+    		}
+    	}
+
+    	// final state, the next window starts from here
+    	if (maxSpikes > 0) {
+    		lastSpikes[iGID] = lastSpike;
+    	}
+    	STORE_SETTLED(iGID);
+    	V_in[iGID] = V;
+    	x_n_in[iGID] = x_n;
+    	x_m_in[iGID] = x_m;
+    	x_h_in[iGID] = x_h;
+    }
+
+    // Tuned variant of IntegrateHHStep, same arguments, see integrateNeuronTuned
+    kernel void IntegrateHHStepTuned(HH_COMMON_ARGS) {
+        // get index into global data array
+        int iGID = get_global_id(0);
+
+        // bound check (equivalent to the limit on a 'for' loop for standard/serial C code
+        if (iGID >= numElements)  {
+            return;
+        }
+
+        // channel parameters of this neuron
+        LOAD_CHANNELS(iGID);
+
+        integrateNeuronTuned(iGID, maxG_K, maxG_Na, maxG_Leak, E_K, E_Na, E_Leak, dt, steps, samplePeriod,
+        					 I_ext, stimuli, stimulusOffsets, t0, spikeThreshold, refractory, lastSpikes, spikeNeurons, spikeTimes, spikeCount, maxSpikes, resultFormats, steadyV, steadyX, steadyHold, settledSamples, V_in, x_n_in, x_m_in, x_h_in, V_results, Xn_results, Xm_results, Xh_results, numElements);
+    }
+
+    // Vectorised variant of IntegrateHHStepTuned, same arguments and math. Each
+    // work item integrates VECTOR_WIDTH consecutive neurons packed in a vector,
+    // the last work item integrates the neurons left over one at a time, as
+    // does a work item with a stimulus on any of its neurons or any run with
+    // per-neuron channel parameters, spike or steady state detection.
+    kernel void IntegrateHHStepVector(HH_COMMON_ARGS) {
+        // index of the first neuron of this work item
+        int first = get_global_id(0) * VECTOR_WIDTH;
+
+        if (first >= numElements)  {
+            return;
+        }
+
+        // partial vector at the end of the population, neurons with a
+        // stimulus or their own channel parameters, or runs detecting spikes
+        // or steady states, integrated one at a time
+        if (first + VECTOR_WIDTH > numElements || channelsPerNeuron || maxSpikes > 0 || steadyHold > 0 || stimulusOffsets[first] != stimulusOffsets[first + VECTOR_WIDTH]) {
+        	for (int i = first; i < first + VECTOR_WIDTH && i < numElements; i++) {
+        		LOAD_CHANNELS(i);
+        		integrateNeuronTuned(i, maxG_K, maxG_Na, maxG_Leak, E_K, E_Na, E_Leak, dt, steps, samplePeriod,
+        							 I_ext, stimuli, stimulusOffsets, t0, spikeThreshold, refractory, lastSpikes, spikeNeurons, spikeTimes, spikeCount, maxSpikes, resultFormats, steadyV, steadyX, steadyHold, settledSamples, V_in, x_n_in, x_m_in, x_h_in, V_results, Xn_results, Xm_results, Xh_results, numElements);
+        	}
+        	return;
+        }
+
+        // shared channel parameters
+        LOAD_CHANNELS(first);
+
+        // private copy of the state for the whole window
+        const floatv I = VLOAD(I_ext + first);
+        floatv V = VLOAD(V_in + first);
+        floatv x_n = VLOAD(x_n_in + first);
+        floatv x_m = VLOAD(x_m_in + first);
+        floatv x_h = VLOAD(x_h_in + first);
+
+        int sampleIndex = first;
+        int nextSample = samplePeriod;
+
+    	for (int t = 1; t <= steps; t++) {
+    		// shared exponential of V
+    		floatv e10 = exp(-V / 10);
+
+        	// alpha functions
+    		floatv alpha_n = (10 - V) / (100 * (2.7182818f * e10 - 1));
+    		floatv alpha_m = (25 - V) / (10 * (12.182494f * e10 - 1));
+    		floatv alpha_h = 0.07f * sqrt(e10);
+    		// beta functions
+    		floatv beta_n = 0.125f * exp(-V / 80);
+    		floatv beta_m = 4 * exp(-V / 18);
+    		floatv beta_h = 1 / (20.085537f * e10 + 1);
+
+    		// leaky integration for Xs with euler's method
+    		x_n += dt * (alpha_n - (alpha_n + beta_n) * x_n);
+    		x_m += dt * (alpha_m - (alpha_m + beta_m) * x_m);
+    		x_h += dt * (alpha_h - (alpha_h + beta_h) * x_h);
+
+    		// conductances and currents with Ohm's law
+    		floatv x_n2 = x_n * x_n;
+    		floatv I_ion = maxG_K * x_n2 * x_n2 * (V - E_K)
+    					 + maxG_Na * x_m * x_m * x_m * x_h * (V - E_Na)
+    					 + maxG_Leak * (V - E_Leak);
+
+    		// given all the currents, update voltage membrane
+    		V += dt * (I - I_ion);
+
+    		// store results only for sampled steps
+    		if (t == nextSample) {
+    			storeResultV(V, sampleIndex, V_results, resultFormats & 3, SCALED_V_MIN, SCALED_V_MAX);
+    			storeResultV(x_n, sampleIndex, Xn_results, (resultFormats >> 2) & 3, 0.0f, 1.0f);
+    			storeResultV(x_m, sampleIndex, Xm_results, (resultFormats >> 4) & 3, 0.0f, 1.0f);
+    			storeResultV(x_h, sampleIndex, Xh_results, (resultFormats >> 6) & 3, 0.0f, 1.0f);
+    			sampleIndex += numElements;
+    			nextSample += samplePeriod;
+    		}
+    	}
+
+    	// final state, the next window starts from here
+    	VSTORE(V, V_in + first);
+    	VSTORE(x_n, x_n_in + first);
+    	VSTORE(x_m, x_m_in + first);
+    	VSTORE(x_h, x_h_in + first);
+    }
+
+    // Integration schemes allowing larger time steps than forward Euler, see
+    // Integrator. Rates and currents are the same functions as in
+    // integrateNeuronTuned.
+    #define SCHEME_RUSH_LARSEN 0
+    #define SCHEME_RUSH_LARSEN_RK2 1
+    #define SCHEME_RK4 2
+
+    // alpha and beta rate functions of V, as (alpha_n, alpha_m, alpha_h) and
+    // (beta_n, beta_m, beta_h)
+    void hhRates(const float V, float4* alpha, float4* beta) {
+    	float e10 = exp(-V / 10);
+    	*alpha = (float4)((10 - V) / (100 * (2.7182818f * e10 - 1)),
+    					  (25 - V) / (10 * (12.182494f * e10 - 1)),
+    					  0.07f * sqrt(e10),
+    					  0.0f);
+    	*beta = (float4)(0.125f * exp(-V / 80),
+    					 4 * exp(-V / 18),
+    					 1 / (20.085537f * e10 + 1),
+    					 0.0f);
+    }
+
+    // sum of the K, Na and leak currents
+    float hhIonicCurrent(const float V, const float x_n, const float x_m, const float x_h,
+    					 const float maxG_K, const float maxG_Na, const float maxG_Leak,
+    					 const float E_K, const float E_Na, const float E_Leak) {
+    	float x_n2 = x_n * x_n;
+    	return maxG_K * x_n2 * x_n2 * (V - E_K)
+    		 + maxG_Na * x_m * x_m * x_m * x_h * (V - E_Na)
+    		 + maxG_Leak * (V - E_Leak);
+    }
+
+    // V after an exact step of dt with the gates held constant, the membrane
+    // equation is then linear in V and relaxes to V_inf with rate g, or only
+    // integrates I when no conductance is open
+    float hhExponentialV(const float V, const float4 x, const float I, const float dt,
+    					 const float maxG_K, const float maxG_Na, const float maxG_Leak,
+    					 const float E_K, const float E_Na, const float E_Leak) {
+    	float x_n2 = x.x * x.x;
+    	float g_K = maxG_K * x_n2 * x_n2;
+    	float g_Na = maxG_Na * x.y * x.y * x.y * x.z;
+    	float g = g_K + g_Na + maxG_Leak;
+    	if (g == 0.0f) {
+    		return V + dt * I;
+    	}
+    	float V_inf = (I + g_K * E_K + g_Na * E_Na + maxG_Leak * E_Leak) / g;
+    	return V_inf + (V - V_inf) * exp(-dt * g);
+    }
+
+    // time derivatives of y = (V, x_n, x_m, x_h)
+    float4 hhDerivatives(const float4 y, const float I,
+    					 const float maxG_K, const float maxG_Na, const float maxG_Leak,
+    					 const float E_K, const float E_Na, const float E_Leak) {
+    	float4 alpha, beta;
+    	hhRates(y.x, &alpha, &beta);
+    	return (float4)(I - hhIonicCurrent(y.x, y.y, y.z, y.w, maxG_K, maxG_Na, maxG_Leak, E_K, E_Na, E_Leak),
+    					alpha.x - (alpha.x + beta.x) * y.y,
+    					alpha.y - (alpha.y + beta.y) * y.z,
+    					alpha.z - (alpha.z + beta.z) * y.w);
+    }
+
+    // gating variables after an exact step of dt with the rates held constant
+    float4 rushLarsen(const float4 x, const float4 alpha, const float4 beta, const float dt) {
+    	float4 rate = alpha + beta;
+    	float4 x_inf = alpha / rate;
+    	return x_inf + (x - x_inf) * exp(-dt * rate);
+    }
+
+    void integrateNeuronScheme(const int scheme,
+    							const int iGID,
+    							const float maxG_K,
+    							const float maxG_Na,
+    							const float maxG_Leak,
+    							const float E_K,
+    							const float E_Na,
+    							const float E_Leak,
+    							const float dt,
+    							const int steps,
+    							const int samplePeriod,
+    							global const float* I_ext,
+    							global const float8* stimuli,
+    							global const int* stimulusOffsets,
+    							const float t0,
+    							const float spikeThreshold,
+    							const float refractory,
+    							global float* lastSpikes,
+    							global int* spikeNeurons,
+    							global float* spikeTimes,
+    							volatile global int* spikeCount,
+    							const int maxSpikes,
+    							const int resultFormats,
+    							const float steadyV,
+    							const float steadyX,
+    							const int steadyHold,
+    							global int* settledSamples,
+    							global float* V_in, 
+    							global float* x_n_in,
+    							global float* x_m_in,
+    							global float* x_h_in,
+    							global float* V_results,
+    							global float* Xn_results,
+    							global float* Xm_results,
+    							global float* Xh_results,
+    							int numElements) {
+        // private copy of the state for the whole window
+        const float I_base = I_ext[iGID];
+        int firstSegment = stimulusOffsets[iGID];
+        int lastSegment = stimulusOffsets[iGID + 1];
+        float V = V_in[iGID];
+        float4 x = (float4)(x_n_in[iGID], x_m_in[iGID], x_h_in[iGID], 0.0f);
+
+        float lastSpike = maxSpikes > 0 ? lastSpikes[iGID] : 0.0f;
+
+        const int hold = firstSegment == lastSegment ? steadyHold : 0;
+        int steadySteps = 0;
+        int sampleIndex = iGID;
+        int nextSample = samplePeriod;
+
+    	for (int t = 1; t <= steps; t++) {
+    		float I = I_base + stimulusCurrent(stimuli, firstSegment, lastSegment, t0 + (t - 1) * dt);
+    		float V_prev = V;
+    		float4 x_prev = x;
+    		if (scheme == SCHEME_RK4) {
+    			float4 y = (float4)(V, x.x, x.y, x.z);
+    			float4 k1 = hhDerivatives(y, I, maxG_K, maxG_Na, maxG_Leak, E_K, E_Na, E_Leak);
+    			float4 k2 = hhDerivatives(y + 0.5f * dt * k1, I, maxG_K, maxG_Na, maxG_Leak, E_K, E_Na, E_Leak);
+    			float4 k3 = hhDerivatives(y + 0.5f * dt * k2, I, maxG_K, maxG_Na, maxG_Leak, E_K, E_Na, E_Leak);
+    			float4 k4 = hhDerivatives(y + dt * k3, I, maxG_K, maxG_Na, maxG_Leak, E_K, E_Na, E_Leak);
+    			y += dt / 6 * (k1 + 2 * k2 + 2 * k3 + k4);
+    			V = y.x;
+    			x = (float4)(y.y, y.z, y.w, 0.0f);
+    		} else {
+    			float4 alpha, beta;
+    			float4 x_rates = x;
+    			hhRates(V, &alpha, &beta);
+    			if (scheme == SCHEME_RUSH_LARSEN_RK2) {
+    				// half step to the midpoint, whose rates and conductances
+    				// are then used for the full step
+    				float4 x_mid = rushLarsen(x, alpha, beta, 0.5f * dt);
+    				float V_mid = hhExponentialV(V, x_mid, I, 0.5f * dt, maxG_K, maxG_Na, maxG_Leak, E_K, E_Na, E_Leak);
+    				hhRates(V_mid, &alpha, &beta);
+    				x_rates = x_mid;
+    			}
+    			// exact exponential steps of the gates with V frozen, then of V
+    			// with the gates frozen
+    			x = rushLarsen(x, alpha, beta, dt);
+    			if (scheme == SCHEME_RUSH_LARSEN) {
+    				x_rates = x;
+    			}
+    			V = hhExponentialV(V, x_rates, I, dt, maxG_K, maxG_Na, maxG_Leak, E_K, E_Na, E_Leak);
+    		}
+    		if (maxSpikes > 0) {
+    			lastSpike = detectSpike(iGID, V_prev, V, t0 + (t - 1) * dt, dt, lastSpike, spikeThreshold, refractory, spikeNeurons, spikeTimes, spikeCount, maxSpikes);
+    		}
+    		CHECK_STEADY(hold, V - V_prev, x.x - x_prev.x, x.y - x_prev.y, x.z - x_prev.z, V, x.x, x.y, x.z);
+
+    		// store results only for sampled steps
+    		if (t == nextSample) {
+    			STORE_SAMPLE(sampleIndex, V, x.x, x.y, x.z);
+    			sampleIndex += numElements;
+    			nextSample += samplePeriod;
+    		}
+    	}
+
+    	// final state, the next window starts from here
+    	if (maxSpikes > 0) {
+    		lastSpikes[iGID] = lastSpike;
+    	}
+    	STORE_SETTLED(iGID);
+    	V_in[iGID] = V;
+    	x_n_in[iGID] = x.x;
+    	x_m_in[iGID] = x.y;
+    	x_h_in[iGID] = x.z;
+    }
+
+    // Exponential steps of the gates and of V, same arguments as IntegrateHHStep
+    kernel void IntegrateHHStepRushLarsen(HH_COMMON_ARGS) {
+        int iGID = get_global_id(0);
+
+        if (iGID >= numElements)  {
+            return;
+        }
+
+        // channel parameters of this neuron
+        LOAD_CHANNELS(iGID);
+
+        integrateNeuronScheme(SCHEME_RUSH_LARSEN, iGID, maxG_K, maxG_Na, maxG_Leak, E_K, E_Na, E_Leak, dt, steps, samplePeriod,
+        					  I_ext, stimuli, stimulusOffsets, t0, spikeThreshold, refractory, lastSpikes, spikeNeurons, spikeTimes, spikeCount, maxSpikes, resultFormats, steadyV, steadyX, steadyHold, settledSamples, V_in, x_n_in, x_m_in, x_h_in, V_results, Xn_results, Xm_results, Xh_results, numElements);
+    }
+
+    // Second order Rush-Larsen (midpoint), same arguments as IntegrateHHStep
+    kernel void IntegrateHHStepRushLarsenRK2(HH_COMMON_ARGS) {
+        int iGID = get_global_id(0);
+
+        if (iGID >= numElements)  {
+            return;
+        }
+
+        // channel parameters of this neuron
+        LOAD_CHANNELS(iGID);
+
+        integrateNeuronScheme(SCHEME_RUSH_LARSEN_RK2, iGID, maxG_K, maxG_Na, maxG_Leak, E_K, E_Na, E_Leak, dt, steps, samplePeriod,
+        					  I_ext, stimuli, stimulusOffsets, t0, spikeThreshold, refractory, lastSpikes, spikeNeurons, spikeTimes, spikeCount, maxSpikes, resultFormats, steadyV, steadyX, steadyHold, settledSamples, V_in, x_n_in, x_m_in, x_h_in, V_results, Xn_results, Xm_results, Xh_results, numElements);
+    }
+
+    // Classic Runge-Kutta on V and the gates, same arguments as IntegrateHHStep
+    kernel void IntegrateHHStepRK4(HH_COMMON_ARGS) {
+        int iGID = get_global_id(0);
+
+        if (iGID >= numElements)  {
+            return;
+        }
+
+        // channel parameters of this neuron
+        LOAD_CHANNELS(iGID);
+
+        integrateNeuronScheme(SCHEME_RK4, iGID, maxG_K, maxG_Na, maxG_Leak, E_K, E_Na, E_Leak, dt, steps, samplePeriod,
+        					  I_ext, stimuli, stimulusOffsets, t0, spikeThreshold, refractory, lastSpikes, spikeNeurons, spikeTimes, spikeCount, maxSpikes, resultFormats, steadyV, steadyX, steadyHold, settledSamples, V_in, x_n_in, x_m_in, x_h_in, V_results, Xn_results, Xm_results, Xh_results, numElements);
+    }
+
+    // Variant of IntegrateHHStepTuned reading x0 and 1/tau of the gates from a
+    // table sampled every 1 / tableInvStep mV from tableVMin, see RateTable.
+    // Row i holds x0 (n, m, h, 0) then 1/tau (n, m, h, 0), linearly
+    // interpolated between rows. V outside the table falls back to hhRates.
+    kernel void IntegrateHHStepTable(HH_COMMON_ARGS,
+    							constant float4* rateTable,
+    							const float tableVMin,
+    							const float tableInvStep,
+    							const int tablePoints) {
+        int iGID = get_global_id(0);
+
+        if (iGID >= numElements)  {
+            return;
+        }
+
+        // channel parameters of this neuron
+        LOAD_CHANNELS(iGID);
+
+        // private copy of the state for the whole window
+        const float I_base = I_ext[iGID];
+        int firstSegment = stimulusOffsets[iGID];
+        int lastSegment = stimulusOffsets[iGID + 1];
+        float V = V_in[iGID];
+        float4 x = (float4)(x_n_in[iGID], x_m_in[iGID], x_h_in[iGID], 0.0f);
+
+        float lastSpike = maxSpikes > 0 ? lastSpikes[iGID] : 0.0f;
+
+        const int hold = firstSegment == lastSegment ? steadyHold : 0;
+        int steadySteps = 0;
+        int sampleIndex = iGID;
+        int nextSample = samplePeriod;
+
+    	for (int t = 1; t <= steps; t++) {
+    		float I = I_base + stimulusCurrent(stimuli, firstSegment, lastSegment, t0 + (t - 1) * dt);
+    		float4 x0, rate;
+    		float u = (V - tableVMin) * tableInvStep;
+    		if (u >= 0 && u < tablePoints - 1) {
+    			int i = (int) u;
+    			float f = u - i;
+    			x0 = mix(rateTable[2 * i], rateTable[2 * i + 2], f);
+    			rate = mix(rateTable[2 * i + 1], rateTable[2 * i + 3], f);
+    		} else {
+    			float4 alpha, beta;
+    			hhRates(V, &alpha, &beta);
+    			// unit rate in the unused lane keeps it at 0
+    			rate = alpha + beta;
+    			rate.w = 1.0f;
+    			x0 = alpha / rate;
+    		}
+
+    		// leaky integration for Xs with euler's method
+    		float4 dx = dt * rate * (x0 - x);
+    		x += dx;
+
+    		// given all the currents, update voltage membrane
+    		float V_prev = V;
+    		V += dt * (I - hhIonicCurrent(V, x.x, x.y, x.z, maxG_K, maxG_Na, maxG_Leak, E_K, E_Na, E_Leak));
+    		if (maxSpikes > 0) {
+    			lastSpike = detectSpike(iGID, V_prev, V, t0 + (t - 1) * dt, dt, lastSpike, spikeThreshold, refractory, spikeNeurons, spikeTimes, spikeCount, maxSpikes);
+    		}
+    		CHECK_STEADY(hold, V - V_prev, dx.x, dx.y, dx.z, V, x.x, x.y, x.z);
+
+    		// store results only for sampled steps
+    		if (t == nextSample) {
+    			STORE_SAMPLE(sampleIndex, V, x.x, x.y, x.z);
+    			sampleIndex += numElements;
+    			nextSample += samplePeriod;
+    		}
+    	}
+
+    	// final state, the next window starts from here
+    	if (maxSpikes > 0) {
+    		lastSpikes[iGID] = lastSpike;
+    	}
+    	STORE_SETTLED(iGID);
+    	V_in[iGID] = V;
+    	x_n_in[iGID] = x.x;
+    	x_m_in[iGID] = x.y;
+    	x_h_in[iGID] = x.z;
+    }
@@ -3,12 +3,22 @@ package org.geppetto.samplesolver.internal;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.ChartUtilities;
@@ -16,12 +26,37 @@ import org.jfree.chart.JFreeChart;
 import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.data.xy.XYSeries;
 import org.jfree.data.xy.XYSeriesCollection;
+import org.junit.Assume;
 import org.junit.Test;
 import org.geppetto.core.model.HHModel;
 import org.geppetto.core.model.IModel;
 import org.geppetto.core.simulation.ITimeConfiguration;
 import org.geppetto.core.simulation.TimeConfiguration;
+import org.geppetto.samplesolver.HHParameters;
+import org.geppetto.samplesolver.HHResults;
+import org.geppetto.samplesolver.HHResults.Variable;
+import org.geppetto.samplesolver.HHSimulation;
+import org.geppetto.samplesolver.Integrator;
+import org.geppetto.samplesolver.KernelVariant;
+import org.geppetto.samplesolver.ParameterSweep;
+import org.geppetto.samplesolver.PhaseTiming;
+import org.geppetto.samplesolver.RateTable;
 import org.geppetto.samplesolver.SampleSolverService;
+import org.geppetto.samplesolver.SolveFuture;
+import org.geppetto.samplesolver.SolveListener;
+import org.geppetto.samplesolver.SolverConfiguration;
+import org.geppetto.samplesolver.SolverMetrics;
+import org.geppetto.samplesolver.SolverMetrics.Phase;
+import org.geppetto.samplesolver.SolverBackend;
+import org.geppetto.samplesolver.SpikeDetection;
+import org.geppetto.samplesolver.Spikes;
+import org.geppetto.samplesolver.SteadyState;
+import org.geppetto.samplesolver.Stimulus;
+import org.geppetto.samplesolver.StorageFormat;
+import org.geppetto.samplesolver.TraceReader;
+
+import com.nativelibs4java.opencl.CLPlatform;
+import com.nativelibs4java.opencl.JavaCL;
 
 /**
  * JUnit test for the example solver implementation. Such a unit test tests
@@ -497,8 +532,294 @@ public class ExampleServiceImplTests {
 			assertTrue(resultsBuffer.get(0).size() == steps / SAMPLE_PERIOD);
 		}
 	}
-	
-	
+
+	/**
+	 * Tests that the OpenCL session can be shut down and is rebuilt transparently by the next call,
+	 * producing the same results as the session it replaces.
+	 */
+	@Test
+	public void testSolveAfterShutdown() {
+		// define some parameters for the test
+		int ELEM_COUNT = 30;
+		int steps = 1000;
+
+		// create the models to be simulated
+		List<IModel> models = new ArrayList<IModel>();
+		for(int j=0; j < ELEM_COUNT; j++)
+		{
+			models.add(new HHModel(Integer.toString(j), -10, 0, 0, 1, 0));
+		}
+
+		ITimeConfiguration timeConfig=new TimeConfiguration(new Float(0.01),steps,1);
+		List<List<IModel>> firstResults = alphaSolver.solve(models, timeConfig);
+		alphaSolver.shutdown();
+		List<List<IModel>> secondResults = alphaSolver.solve(models, timeConfig);
+		alphaSolver.shutdown();
+
+		assertTrue(secondResults.size() == ELEM_COUNT);
+		for (int c = 0; c < ELEM_COUNT; c++)
+		{
+			assertEquals(((HHModel)firstResults.get(c).get(steps-1)).getV(), ((HHModel)secondResults.get(c).get(steps-1)).getV(), 0f);
+		}
+	}
+
+	/**
+	 * Tests that time-major, model-major and legacy model access to the columnar results agree.
+	 */
+	@Test
+	public void testColumnarResults() {
+		// define some parameters for the test
+		int ELEM_COUNT = 30;
+		int steps = 1000;
+		int SAMPLE_PERIOD = 10;
+
+		// create the models to be simulated
+		List<IModel> models = new ArrayList<IModel>();
+		for(int j=0; j < ELEM_COUNT; j++)
+		{
+			models.add(new HHModel(Integer.toString(j), -10 + j, 0, 0, 1, 0));
+		}
+
+		ITimeConfiguration timeConfig=new TimeConfiguration(new Float(0.01),steps,SAMPLE_PERIOD);
+		HHResults results = alphaSolver.solveColumnar(models, timeConfig);
+
+		assertEquals(ELEM_COUNT, results.getModelCount());
+		assertEquals(steps / SAMPLE_PERIOD, results.getSampleCount());
+
+		float[] timeMajor = results.getTimeMajor(Variable.V);
+		float[] modelMajor = results.getModelMajor(Variable.V);
+		List<List<IModel>> legacy = results.asModels();
+		for (int c = 0; c < ELEM_COUNT; c++)
+		{
+			float[] trace = results.getTrace(Variable.V, c);
+			assertEquals(Integer.toString(c), legacy.get(c).get(0).getId());
+			for (int s = 0; s < results.getSampleCount(); s++)
+			{
+				float V = timeMajor[s * ELEM_COUNT + c];
+				assertEquals(V, modelMajor[c * results.getSampleCount() + s], 0f);
+				assertEquals(V, trace[s], 0f);
+				assertEquals(V, ((HHModel)legacy.get(c).get(s)).getV(), 0f);
+			}
+		}
+	}
+
+	/**
+	 * Tests that a simulation continued on the device over multiple windows matches a single run.
+	 */
+	@Test
+	public void testSimulationInMultipleWindows() throws IOException {
+		// define some parameters for the test
+		int ELEM_COUNT = 30;
+		int steps = 1000;
+		int SCALE_FACTOR = 10;
+
+		// create the models to be simulated
+		List<IModel> models = new ArrayList<IModel>();
+		for(int j=0; j < ELEM_COUNT; j++)
+		{
+			models.add(new HHModel(Integer.toString(j), -10, 0, 0, 1, 0));
+		}
+
+		HHResults singleGo = alphaSolver.solveColumnar(models, new TimeConfiguration(new Float(0.01),steps,1));
+
+		HHSimulation simulation = alphaSolver.startSimulation(models);
+		ITimeConfiguration timeConfig=new TimeConfiguration(new Float(0.01),steps/SCALE_FACTOR,1);
+		for(int c = 0; c < SCALE_FACTOR; c++)
+		{
+			HHResults window = simulation.advance(timeConfig);
+			for (int m = 0; m < ELEM_COUNT; m++)
+			{
+				for (int s = 0; s < window.getSampleCount(); s++)
+				{
+					assertEquals(singleGo.get(Variable.V, m, c * steps/SCALE_FACTOR + s), window.get(Variable.V, m, s), 0f);
+				}
+			}
+		}
+		simulation.close();
+	}
+
+	/**
+	 * Tests that the Java backend produces traces matching the OpenCL backend.
+	 * NOTE: skipped when no OpenCL device is available
+	 */
+	@Test
+	public void testBackendsMatch() {
+		Assume.assumeTrue(isOpenCLAvailable());
+
+		// define some parameters for the test
+		int ELEM_COUNT = 500;
+		int steps = 1000;
+
+		// create the models to be simulated
+		List<IModel> models = new ArrayList<IModel>();
+		for(int j=0; j < ELEM_COUNT; j++)
+		{
+			models.add(new HHModel(Integer.toString(j), -10 + j % 20, 0, 0, 1, j % 10));
+		}
+
+		ITimeConfiguration timeConfig=new TimeConfiguration(new Float(0.01),steps,10);
+
+		SampleSolverService openCLSolver = new SampleSolverService();
+		openCLSolver.setBackend(SolverBackend.OPENCL);
+		HHResults openCLResults = openCLSolver.solveColumnar(models, timeConfig);
+		openCLSolver.shutdown();
+		assertNotNull(openCLResults);
+
+		SampleSolverService javaSolver = new SampleSolverService();
+		javaSolver.setBackend(SolverBackend.JAVA);
+		HHResults javaResults = javaSolver.solveColumnar(models, timeConfig);
+		javaSolver.shutdown();
+
+		float[] openCLV = openCLResults.getTimeMajor(Variable.V);
+		float[] javaV = javaResults.getTimeMajor(Variable.V);
+		assertEquals(openCLV.length, javaV.length);
+		for (int i = 0; i < openCLV.length; i++)
+		{
+			assertEquals("index " + i, openCLV[i], javaV[i], 0.01f);
+		}
+	}
+
+	/**
+	 * Tests that the tuned kernel matches the reference kernel within 1e-2 mV over the reference scenario.
+	 * NOTE: skipped when no OpenCL device is available
+	 */
+	@Test
+	public void testTunedKernelMatchesReference() {
+		Assume.assumeTrue(isOpenCLAvailable());
+
+		// define some parameters for the test
+		int ELEM_COUNT = 30;
+		int steps = 13000;
+
+		// create the models to be simulated
+		List<IModel> models = new ArrayList<IModel>();
+		for(int j=0; j < ELEM_COUNT; j++)
+		{
+			models.add(new HHModel(Integer.toString(j), -10, 0, 0, 1, 0));
+		}
+
+		ITimeConfiguration timeConfig=new TimeConfiguration(new Float(0.01),steps,1);
+
+		SampleSolverService referenceSolver = new SampleSolverService();
+		referenceSolver.setBackend(SolverBackend.OPENCL);
+		HHResults referenceResults = referenceSolver.solveColumnar(models, timeConfig);
+		referenceSolver.shutdown();
+		assertNotNull(referenceResults);
+
+		SampleSolverService tunedSolver = new SampleSolverService();
+		tunedSolver.setBackend(SolverBackend.OPENCL);
+		tunedSolver.setKernelVariant(KernelVariant.TUNED);
+		HHResults tunedResults = tunedSolver.solveColumnar(models, timeConfig);
+		tunedSolver.shutdown();
+
+		float[] referenceV = referenceResults.getTimeMajor(Variable.V);
+		float[] tunedV = tunedResults.getTimeMajor(Variable.V);
+		for (int i = 0; i < referenceV.length; i++)
+		{
+			assertEquals("index " + i, referenceV[i], tunedV[i], 1e-2f);
+		}
+	}
+
+	/**
+	 * Tests that autotuning stores a launch profile and that the vectorised kernel it tunes matches the tuned kernel.
+	 * NOTE: skipped when no OpenCL device is available
+	 */
+	@Test
+	public void testAutotunedVectorKernel() throws IOException {
+		Assume.assumeTrue(isOpenCLAvailable());
+
+		// define some parameters for the test
+		int ELEM_COUNT = 301;
+		int steps = 1000;
+
+		// create the models to be simulated
+		List<IModel> models = new ArrayList<IModel>();
+		for(int j=0; j < ELEM_COUNT; j++)
+		{
+			models.add(new HHModel(Integer.toString(j), -10 + j % 20, 0, 0, 1, j % 10));
+		}
+
+		ITimeConfiguration timeConfig=new TimeConfiguration(new Float(0.01),steps,10);
+
+		SampleSolverService tunedSolver = new SampleSolverService();
+		tunedSolver.setBackend(SolverBackend.OPENCL);
+		tunedSolver.setKernelVariant(KernelVariant.TUNED);
+		HHResults tunedResults = tunedSolver.solveColumnar(models, timeConfig);
+		tunedSolver.shutdown();
+		assertNotNull(tunedResults);
+
+		File profiles = File.createTempFile("launch-profiles", ".properties");
+		profiles.delete();
+		SolverConfiguration configuration = new SolverConfiguration();
+		configuration.setBackend(SolverBackend.OPENCL);
+		configuration.setKernelVariant(KernelVariant.VECTORIZED);
+		configuration.setAutotune(true);
+		configuration.setProfilesFile(profiles);
+		SampleSolverService vectorSolver = new SampleSolverService();
+		vectorSolver.setConfiguration(configuration);
+		HHResults vectorResults = vectorSolver.solveColumnar(models, timeConfig);
+		vectorSolver.shutdown();
+
+		assertTrue(profiles.length() > 0);
+		profiles.delete();
+
+		float[] tunedV = tunedResults.getTimeMajor(Variable.V);
+		float[] vectorV = vectorResults.getTimeMajor(Variable.V);
+		for (int i = 0; i < tunedV.length; i++)
+		{
+			assertEquals("index " + i, tunedV[i], vectorV[i], 1e-3f);
+		}
+	}
+
+	/**
+	 * Tests that a population split across devices, using device fission when available, matches a single device run.
+	 * NOTE: skipped when no OpenCL device is available
+	 */
+	@Test
+	public void testMultiDeviceMatchesSingleDevice() {
+		Assume.assumeTrue(isOpenCLAvailable());
+
+		// define some parameters for the test
+		int ELEM_COUNT = 301;
+		int steps = 1000;
+
+		// create the models to be simulated
+		List<IModel> models = new ArrayList<IModel>();
+		for(int j=0; j < ELEM_COUNT; j++)
+		{
+			models.add(new HHModel(Integer.toString(j), -10 + j % 20, 0, 0, 1, j % 10));
+		}
+
+		ITimeConfiguration timeConfig=new TimeConfiguration(new Float(0.01),steps,10);
+
+		SampleSolverService singleSolver = new SampleSolverService();
+		singleSolver.setBackend(SolverBackend.OPENCL);
+		HHResults singleResults = singleSolver.solveColumnar(models, timeConfig);
+		singleSolver.shutdown();
+		assertNotNull(singleResults);
+
+		SampleSolverService multiSolver = new SampleSolverService();
+		multiSolver.setBackend(SolverBackend.OPENCL);
+		multiSolver.setMultiDevice(true, 2);
+		// second run is partitioned by measured throughput
+		for(int r = 0; r < 2; r++)
+		{
+			HHResults multiResults = multiSolver.solveColumnar(models, timeConfig);
+			assertEquals(ELEM_COUNT, multiResults.getModelCount());
+			for (int c = 0; c < ELEM_COUNT; c++)
+			{
+				assertEquals(Integer.toString(c), multiResults.getModelId(c));
+			}
+			float[] singleV = singleResults.getTimeMajor(Variable.V);
+			float[] multiV = multiResults.getTimeMajor(Variable.V);
+			for (int i = 0; i < singleV.length; i++)
+			{
+				assertEquals("index " + i, singleV[i], multiV[i], 1e-3f);
+			}
+		}
+		multiSolver.shutdown();
+	}
+
 	/**
 	 * Helper method for plotting
 	 * 
@@ -515,4 +836,1068 @@ public class ExampleServiceImplTests {
 			System.err.println("Problem occurred creating chart.");
 		}
     }
+
+	/**
+	 * Helper method listing the OpenCL devices, a node without OpenCL
+	 * library or device skips the OpenCL parts of the tests
+	 * 
+	 * @return true if an OpenCL device is available
+	 */
+	private static boolean isOpenCLAvailable()
+	{
+		try
+		{
+			for (CLPlatform platform : JavaCL.listPlatforms())
+			{
+				if (platform.listAllDevices(true).length > 0)
+				{
+					return true;
+				}
+			}
+		}
+		catch (Throwable e)
+		{
+			// no OpenCL library on this node
+		}
+		return false;
+	}
+
+	/**
+	 * Helper method for the backends a test runs on
+	 * 
+	 * @return the Java backend, then the OpenCL one when a device is available
+	 */
+	private static SolverBackend[] getTestedBackends()
+	{
+		if (isOpenCLAvailable())
+		{
+			return new SolverBackend[] { SolverBackend.JAVA, SolverBackend.OPENCL };
+		}
+		return new SolverBackend[] { SolverBackend.JAVA };
+	}
+
+	/**
+	 * Helper method creating models at rest with an external current
+	 * growing with their index, from silent to tonic spiking
+	 * 
+	 * @param prefix: prefix of the model ids, followed by the index
+	 * @param count: number of models
+	 */
+	private static List<IModel> createModels(String prefix, int count)
+	{
+		List<IModel> models = new ArrayList<IModel>();
+		for (int m = 0; m < count; m++)
+		{
+			models.add(new HHModel(prefix + m, 0, 0.3177f, 0.0529f, 0.5961f, m));
+		}
+		return models;
+	}
+
+	/**
+	 * Tests the integrators at a 5x larger time step against RK4 at a small time step over one spike.
+	 * The bound is 10mV around the spike upstroke, Euler at dt 0.01 is already about 27mV off and diverges at dt 0.05.
+	 * Also compares the OpenCL kernels with the Java backend when an OpenCL device is available.
+	 */
+	@Test
+	public void testIntegratorsAtLargerTimeStep() {
+		// define some parameters for the test
+		int ELEM_COUNT = 20;
+
+		// create the models to be simulated
+		List<IModel> models = new ArrayList<IModel>();
+		for(int j=0; j < ELEM_COUNT; j++)
+		{
+			models.add(new HHModel(Integer.toString(j), -10 + j % 20, 0, 0, 1, j % 10));
+		}
+
+		// 20ms sampled every 0.1ms
+		ITimeConfiguration referenceConfig=new TimeConfiguration(new Float(0.005),4000,20);
+		ITimeConfiguration largeStepConfig=new TimeConfiguration(new Float(0.05),400,2);
+
+		SampleSolverService solver = new SampleSolverService();
+		solver.setBackend(SolverBackend.JAVA);
+		solver.setIntegrator(Integrator.RK4);
+		float[] referenceV = solver.solveColumnar(models, referenceConfig).getTimeMajor(Variable.V);
+
+		Integrator[] integrators = { Integrator.RUSH_LARSEN, Integrator.RUSH_LARSEN_RK2, Integrator.RK4 };
+		for (int k = 0; k < integrators.length; k++)
+		{
+			solver.setBackend(SolverBackend.JAVA);
+			solver.setIntegrator(integrators[k]);
+			float[] javaV = solver.solveColumnar(models, largeStepConfig).getTimeMajor(Variable.V);
+			assertEquals(referenceV.length, javaV.length);
+			float maxError = 0;
+			for (int i = 0; i < referenceV.length; i++)
+			{
+				maxError = Math.max(maxError, Math.abs(referenceV[i] - javaV[i]));
+			}
+			assertTrue(integrators[k] + " max error " + maxError, maxError < 10f);
+
+			if(isOpenCLAvailable())
+			{
+				solver.setBackend(SolverBackend.OPENCL);
+				HHResults openCLResults = solver.solveColumnar(models, largeStepConfig);
+				assertNotNull(openCLResults);
+				float[] openCLV = openCLResults.getTimeMajor(Variable.V);
+				for (int i = 0; i < openCLV.length; i++)
+				{
+					assertEquals("index " + i, javaV[i], openCLV[i], 0.01f);
+				}
+			}
+		}
+		solver.shutdown();
+	}
+
+	/**
+	 * Tests that the exponential integrators only integrate the injected current when all conductances are zero,
+	 * instead of dividing by the zero conductance.
+	 */
+	@Test
+	public void testIntegratorsWithNoConductance() throws IOException {
+		List<IModel> models = new ArrayList<IModel>();
+		models.add(new HHModel("neuron", 0, 0.3177f, 0.0529f, 0.5961f, 10));
+		List<HHParameters> parameters = new ArrayList<HHParameters>();
+		parameters.add(new HHParameters(0, 0, 0, -12, 115, 10.6f));
+		ITimeConfiguration timeConfig=new TimeConfiguration(new Float(0.01),100,10);
+
+		SampleSolverService solver = new SampleSolverService();
+		Integrator[] integrators = { Integrator.RUSH_LARSEN, Integrator.RUSH_LARSEN_RK2 };
+		for (SolverBackend backend : getTestedBackends())
+		{
+			solver.setBackend(backend);
+			for (int k = 0; k < integrators.length; k++)
+			{
+				solver.setIntegrator(integrators[k]);
+				float[] v = solver.solveWithParameters(models, parameters, timeConfig).getTrace(Variable.V, 0);
+				for (int s = 1; s < v.length; s++)
+				{
+					// 10 steps of 0.01ms at 10uA/cm^2
+					assertEquals(backend + " " + integrators[k] + " sample " + s, 1f, v[s] - v[s - 1], 1e-3f);
+				}
+			}
+		}
+		solver.shutdown();
+	}
+
+	/**
+	 * Tests the interpolation error of the rate table and the TABLE variant against the analytic rates over the reference scenario.
+	 * The OpenCL kernel is compared with the Java backend when an OpenCL device is available.
+	 */
+	@Test
+	public void testRateTable() {
+		RateTable table = new RateTable(0.1f);
+		assertEquals(2001, table.getPoints());
+		assertTrue(table.getByteCount() <= 64 * 1024);
+		assertTrue(table.toString(), table.getMaxX0Error() < 1e-5f);
+		assertTrue(table.toString(), table.getMaxRateError() < 1e-5f);
+		// a coarser grid is less accurate
+		assertTrue(new RateTable(1f).getMaxX0Error() > table.getMaxX0Error());
+
+		// define some parameters for the test
+		int ELEM_COUNT = 20;
+
+		// create the models to be simulated
+		List<IModel> models = new ArrayList<IModel>();
+		for(int j=0; j < ELEM_COUNT; j++)
+		{
+			models.add(new HHModel(Integer.toString(j), -10 + j % 20, 0, 0, 1, j % 10));
+		}
+
+		ITimeConfiguration timeConfig=new TimeConfiguration(new Float(0.01),13000,10);
+
+		SampleSolverService solver = new SampleSolverService();
+		solver.setBackend(SolverBackend.JAVA);
+		float[] analyticV = solver.solveColumnar(models, timeConfig).getTimeMajor(Variable.V);
+		solver.setKernelVariant(KernelVariant.TABLE);
+		float[] tableV = solver.solveColumnar(models, timeConfig).getTimeMajor(Variable.V);
+		for (int i = 0; i < analyticV.length; i++)
+		{
+			assertEquals("index " + i, analyticV[i], tableV[i], 2f);
+		}
+
+		if(isOpenCLAvailable())
+		{
+			solver.setBackend(SolverBackend.OPENCL);
+			HHResults openCLResults = solver.solveColumnar(models, timeConfig);
+			assertNotNull(openCLResults);
+			float[] openCLV = openCLResults.getTimeMajor(Variable.V);
+			for (int i = 0; i < openCLV.length; i++)
+			{
+				assertEquals("index " + i, tableV[i], openCLV[i], 0.01f);
+			}
+		}
+		solver.shutdown();
+	}
+
+	/**
+	 * Tests that a current step injected by a stimulus in one run matches the same step done with setI() over three windows,
+	 * and that a pulse train fires once per pulse.
+	 * The OpenCL kernel is compared with the Java backend when an OpenCL device is available.
+	 */
+	@Test
+	public void testStimulusProtocol() throws IOException {
+		// define some parameters for the test
+		int ELEM_COUNT = 10;
+
+		// create the models to be simulated
+		List<IModel> models = new ArrayList<IModel>();
+		List<Stimulus> stimuli = new ArrayList<Stimulus>();
+		for(int j=0; j < ELEM_COUNT; j++)
+		{
+			models.add(new HHModel(Integer.toString(j), 0, 0.3177f, 0.0529f, 0.5961f, 0));
+			// step boundaries halfway between two steps
+			stimuli.add(new Stimulus().step(9.995f, 19.995f, j));
+		}
+
+		SampleSolverService solver = new SampleSolverService();
+		solver.setBackend(SolverBackend.JAVA);
+		HHResults protocolResults = solver.solveColumnar(models, stimuli, new TimeConfiguration(new Float(0.01),3000,10));
+		float[] protocolV = protocolResults.getTimeMajor(Variable.V);
+
+		HHSimulation simulation = solver.startSimulation(models);
+		float[] windowsV = new float[protocolV.length];
+		for(int w = 0; w < 3; w++)
+		{
+			for(int j=0; j < ELEM_COUNT; j++)
+			{
+				simulation.setI(j, w == 1 ? j : 0);
+			}
+			float[] windowV = simulation.advance(new TimeConfiguration(new Float(0.01),1000,10)).getTimeMajor(Variable.V);
+			System.arraycopy(windowV, 0, windowsV, w * windowV.length, windowV.length);
+		}
+		assertEquals(30, simulation.getTime(), 1e-3);
+		simulation.close();
+		for (int i = 0; i < protocolV.length; i++)
+		{
+			assertEquals("index " + i, windowsV[i], protocolV[i], 1e-4f);
+		}
+
+		// 5 pulses of 1ms every 10ms, strong enough to fire each time
+		List<Stimulus> pulses = new ArrayList<Stimulus>();
+		for(int j=0; j < ELEM_COUNT; j++)
+		{
+			pulses.add(new Stimulus().pulseTrain(5, 55, 50, 10, 1));
+		}
+		ITimeConfiguration pulseConfig = new TimeConfiguration(new Float(0.01),6000,10);
+		HHResults pulseResults = solver.solveColumnar(models, pulses, pulseConfig);
+		float[] trace = pulseResults.getTrace(Variable.V, 0);
+		int spikes = 0;
+		for (int s = 1; s < trace.length; s++)
+		{
+			if (trace[s - 1] < 50 && trace[s] >= 50)
+			{
+				spikes++;
+			}
+		}
+		assertEquals(5, spikes);
+
+		if(isOpenCLAvailable())
+		{
+			solver.setBackend(SolverBackend.OPENCL);
+			HHResults openCLResults = solver.solveColumnar(models, pulses, pulseConfig);
+			assertNotNull(openCLResults);
+			float[] javaV = pulseResults.getTimeMajor(Variable.V);
+			float[] openCLV = openCLResults.getTimeMajor(Variable.V);
+			for (int i = 0; i < openCLV.length; i++)
+			{
+				assertEquals("index " + i, javaV[i], openCLV[i], 0.01f);
+			}
+		}
+		solver.shutdown();
+	}
+
+	/**
+	 * Tests that each point of a parameter sweep solved in one launch matches a run of that point alone,
+	 * and that the default point matches a run with the shared parameters.
+	 * The OpenCL kernel is compared with the Java backend when an OpenCL device is available.
+	 */
+	@Test
+	public void testParameterSweep() throws IOException {
+		HHModel model = new HHModel("neuron", 0, 0.3177f, 0.0529f, 0.5961f, 10);
+		ParameterSweep sweep = new ParameterSweep().maxG_K(ParameterSweep.range(24, 36, 4)).maxG_Na(0, 60, 120);
+		assertEquals(12, sweep.size());
+		ITimeConfiguration timeConfig=new TimeConfiguration(new Float(0.01),2000,10);
+
+		SampleSolverService solver = new SampleSolverService();
+		solver.setBackend(SolverBackend.JAVA);
+		HHResults sweepResults = solver.solveSweep(model, sweep, timeConfig);
+		assertEquals(12, sweepResults.getModelCount());
+		assertEquals("neuron[5]", sweepResults.getModelId(5));
+
+		List<IModel> models = new ArrayList<IModel>();
+		models.add(model);
+		for (int i = 0; i < sweep.size(); i++)
+		{
+			List<HHParameters> parameters = new ArrayList<HHParameters>();
+			parameters.add(sweep.get(i));
+			float[] single = solver.solveWithParameters(models, parameters, timeConfig).getTrace(Variable.V, 0);
+			float[] point = sweepResults.getTrace(Variable.V, i);
+			for (int s = 0; s < single.length; s++)
+			{
+				assertEquals("point " + i, single[s], point[s], 1e-5f);
+			}
+		}
+
+		// no sodium current, no spike
+		for (float v : sweepResults.getTrace(Variable.V, 0))
+		{
+			assertTrue(v < 50);
+		}
+
+		// last point is the default parameter set
+		assertEquals(36, sweep.get(11).getMaxG_K(), 0);
+		assertEquals(120, sweep.get(11).getMaxG_Na(), 0);
+		float[] shared = solver.solveColumnar(models, timeConfig).getTrace(Variable.V, 0);
+		float[] defaultPoint = sweepResults.getTrace(Variable.V, 11);
+		for (int s = 0; s < shared.length; s++)
+		{
+			assertEquals(shared[s], defaultPoint[s], 1e-5f);
+		}
+
+		if(isOpenCLAvailable())
+		{
+			solver.setBackend(SolverBackend.OPENCL);
+			HHResults openCLResults = solver.solveSweep(model, sweep, timeConfig);
+			assertNotNull(openCLResults);
+			float[] javaV = sweepResults.getTimeMajor(Variable.V);
+			float[] openCLV = openCLResults.getTimeMajor(Variable.V);
+			for (int i = 0; i < openCLV.length; i++)
+			{
+				assertEquals("index " + i, javaV[i], openCLV[i], 0.01f);
+			}
+		}
+		solver.shutdown();
+	}
+
+	/**
+	 * Test that concurrent requests merged in one batch each get the results
+	 * of a solve of their own models
+	 */
+	@Test
+	public void testBatchedRequests() throws InterruptedException {
+		final int requests = 4;
+		final int modelsPerRequest = 30;
+		final ITimeConfiguration timeConfig=new TimeConfiguration(new Float(0.01),1000,10);
+		final List<List<IModel>> inputs = new ArrayList<List<IModel>>();
+		for (int r = 0; r < requests; r++)
+		{
+			List<IModel> models = new ArrayList<IModel>();
+			for (int m = 0; m < modelsPerRequest; m++)
+			{
+				models.add(new HHModel(r + "-" + m, 0, 0.3177f, 0.0529f, 0.5961f, r * 5 + m % 10));
+			}
+			inputs.add(models);
+		}
+
+		for (SolverBackend backend : getTestedBackends())
+		{
+			checkBatchedRequests(backend, inputs, timeConfig);
+		}
+	}
+
+	private void checkBatchedRequests(SolverBackend backend, final List<List<IModel>> inputs, final ITimeConfiguration timeConfig) throws InterruptedException {
+		int requests = inputs.size();
+		int modelsPerRequest = inputs.get(0).size();
+		final SampleSolverService solver = new SampleSolverService();
+		solver.setBackend(backend);
+		HHResults[] expected = new HHResults[requests];
+		for (int r = 0; r < requests; r++)
+		{
+			expected[r] = solver.solveColumnar(inputs.get(r), timeConfig);
+		}
+
+		solver.setBatching(1000, requests * modelsPerRequest);
+		final HHResults[] batched = new HHResults[requests];
+		Thread[] threads = new Thread[requests];
+		for (int r = 0; r < requests; r++)
+		{
+			final int request = r;
+			threads[r] = new Thread() {
+				public void run() {
+					batched[request] = solver.solveColumnar(inputs.get(request), timeConfig);
+				}
+			};
+			threads[r].start();
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		solver.shutdown();
+
+		float tolerance = backend == SolverBackend.JAVA ? 0 : 0.01f;
+		for (int r = 0; r < requests; r++)
+		{
+			assertEquals(modelsPerRequest, batched[r].getModelCount());
+			assertEquals(r + "-0", batched[r].getModelId(0));
+			for (Variable variable : Variable.values())
+			{
+				float[] expectedValues = expected[r].getTimeMajor(variable);
+				float[] batchedValues = batched[r].getTimeMajor(variable);
+				for (int i = 0; i < expectedValues.length; i++)
+				{
+					assertEquals(backend + " request " + r + " index " + i, expectedValues[i], batchedValues[i], tolerance);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test that concurrent callers, each with its own models, get their own
+	 * results while the backend is replaced, and that concurrent calls on
+	 * OpenCL run on several lanes
+	 */
+	@Test
+	public void testConcurrentSolvesAreIsolated() throws InterruptedException {
+		for (SolverBackend backend : getTestedBackends())
+		{
+			checkConcurrentSolvesAreIsolated(backend);
+		}
+	}
+
+	private void checkConcurrentSolvesAreIsolated(SolverBackend backend) throws InterruptedException {
+		final int threads = 8;
+		final int iterations = 5;
+		final ITimeConfiguration timeConfig=new TimeConfiguration(new Float(0.01),500,10);
+		final SampleSolverService solver = new SampleSolverService();
+		solver.setBackend(backend);
+
+		// every caller has its own ids, currents and population size
+		final List<List<IModel>> inputs = new ArrayList<List<IModel>>();
+		final List<HHResults> expected = new ArrayList<HHResults>();
+		for (int t = 0; t < threads; t++)
+		{
+			List<IModel> models = new ArrayList<IModel>();
+			for (int m = 0; m < 10 + t; m++)
+			{
+				models.add(new HHModel("caller" + t + "-" + m, 0, 0.3177f, 0.0529f, 0.5961f, t + m * 0.5f));
+			}
+			inputs.add(models);
+			expected.add(solver.solveColumnar(models, timeConfig));
+		}
+
+		final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+		Thread[] callers = new Thread[threads];
+		for (int t = 0; t < threads; t++)
+		{
+			final int caller = t;
+			callers[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < iterations; i++)
+					{
+						HHResults results = solver.solveColumnar(inputs.get(caller), timeConfig);
+						if (results == null || results.getModelCount() != inputs.get(caller).size())
+						{
+							failures.add("caller " + caller + " got " + (results == null ? "no" : results.getModelCount()) + " results");
+							continue;
+						}
+						for (int m = 0; m < results.getModelCount(); m++)
+						{
+							if (!results.getModelId(m).equals("caller" + caller + "-" + m))
+							{
+								failures.add("caller " + caller + " got model " + results.getModelId(m));
+							}
+						}
+						float[] expectedV = expected.get(caller).getTimeMajor(Variable.V);
+						float[] v = results.getTimeMajor(Variable.V);
+						for (int k = 0; k < v.length; k++)
+						{
+							if (v[k] != expectedV[k])
+							{
+								failures.add("caller " + caller + " index " + k + ": " + v[k] + " instead of " + expectedV[k]);
+								break;
+							}
+						}
+					}
+				}
+			};
+			callers[t].start();
+		}
+
+		// backend replaced while the callers are running
+		for (int i = 0; i < 3; i++)
+		{
+			Thread.sleep(5);
+			solver.shutdown();
+		}
+		for (Thread thread : callers)
+		{
+			thread.join();
+		}
+		solver.shutdown();
+		assertTrue(backend + " " + failures, failures.isEmpty());
+		if (backend == SolverBackend.OPENCL)
+		{
+			assertTrue(solver.getMetrics().getMaxLanesInUse() > 1);
+		}
+	}
+
+	/**
+	 * Test that an asynchronous solve notifies each window and completes with
+	 * the results of a solve in one go, and that cancelling it from the
+	 * first window starts no other window
+	 */
+	@Test
+	public void testAsyncSolve() throws IOException, InterruptedException, ExecutionException {
+		List<IModel> models = createModels("async", 20);
+		ITimeConfiguration timeConfig=new TimeConfiguration(new Float(0.01),2000,10);
+
+		SampleSolverService javaSolver = new SampleSolverService();
+		javaSolver.setBackend(SolverBackend.JAVA);
+		HHResults expected = javaSolver.solveColumnar(models, timeConfig);
+		javaSolver.shutdown();
+
+		for (SolverBackend backend : getTestedBackends())
+		{
+			SampleSolverService solver = new SampleSolverService();
+			solver.setBackend(backend);
+			float tolerance = backend == SolverBackend.JAVA ? 0 : 0.01f;
+
+			final List<Integer> progress = Collections.synchronizedList(new ArrayList<Integer>());
+			SolveFuture future = solver.solveAsync(models, timeConfig, 500, new SolveListener() {
+				public void windowCompleted(int window, int windows, HHResults results) {
+					assertEquals(4, windows);
+					assertEquals(50, results.getSampleCount());
+					progress.add(window);
+				}
+			});
+			HHResults results = future.get();
+			assertTrue(future.isDone());
+			assertEquals(4, future.getCompletedWindows());
+			assertEquals("[0, 1, 2, 3]", progress.toString());
+			assertEquals(expected.getSampleCount(), results.getSampleCount());
+			for (Variable variable : Variable.values())
+			{
+				float[] expectedValues = expected.getTimeMajor(variable);
+				float[] values = results.getTimeMajor(variable);
+				for (int i = 0; i < values.length; i++)
+				{
+					assertEquals(backend + " " + variable + " index " + i, expectedValues[i], values[i], tolerance);
+				}
+			}
+
+			// cancelled from the first window, no other window is started
+			final SolveFuture[] cancelled = new SolveFuture[1];
+			synchronized (cancelled)
+			{
+				cancelled[0] = solver.solveAsync(models, timeConfig, 500, new SolveListener() {
+					public void windowCompleted(int window, int windows, HHResults results) {
+						synchronized (cancelled)
+						{
+							cancelled[0].cancel(false);
+						}
+					}
+				});
+			}
+			try
+			{
+				cancelled[0].get();
+				fail("cancelled solve returned results");
+			}
+			catch (CancellationException e)
+			{
+				assertTrue(cancelled[0].isCancelled());
+			}
+			// returns once no window or listener can run any more
+			solver.shutdown();
+			assertEquals(1, cancelled[0].getCompletedWindows());
+		}
+	}
+
+	/**
+	 * Test that a streamed solve delivers its windows in order, the last one
+	 * shorter, and that together they match a solve in one go
+	 */
+	@Test
+	public void testStreamingWindows() throws IOException {
+		List<IModel> models = createModels("stream", 20);
+		ITimeConfiguration timeConfig=new TimeConfiguration(new Float(0.01),2300,10);
+
+		SampleSolverService solver = new SampleSolverService();
+		solver.setBackend(SolverBackend.JAVA);
+		final HHResults expected = solver.solveColumnar(models, timeConfig);
+
+		for (SolverBackend backend : getTestedBackends())
+		{
+			solver.setBackend(backend);
+			final float tolerance = backend == SolverBackend.JAVA ? 0 : 0.01f;
+			final int[] delivered = new int[2];
+			solver.solveStreaming(models, timeConfig, 500, new SolveListener() {
+				public void windowCompleted(int window, int windows, HHResults results) {
+					assertEquals(delivered[0]++, window);
+					assertEquals(5, windows);
+					assertEquals(window < 4 ? 50 : 30, results.getSampleCount());
+					for (int m = 0; m < results.getModelCount(); m++)
+					{
+						for (int s = 0; s < results.getSampleCount(); s++)
+						{
+							assertEquals(expected.get(Variable.V, m, delivered[1] + s), results.get(Variable.V, m, s), tolerance);
+						}
+					}
+					delivered[1] += results.getSampleCount();
+				}
+			});
+			assertEquals(5, delivered[0]);
+			assertEquals(expected.getSampleCount(), delivered[1]);
+		}
+		solver.shutdown();
+	}
+
+	/**
+	 * Test that the spikes detected during the run match the threshold
+	 * crossings of the sampled trace, with and without samples
+	 */
+	@Test
+	public void testSpikeDetection() throws IOException {
+		List<IModel> models = createModels("spike", 20);
+		float dt = 0.01f;
+		SpikeDetection detection = new SpikeDetection(50, 2);
+
+		SampleSolverService solver = new SampleSolverService();
+		solver.setBackend(SolverBackend.JAVA);
+		HHResults results = solver.solveSpikes(models, null, new TimeConfiguration(dt, 10000, 1), detection);
+		Spikes spikes = results.getSpikes();
+		assertEquals(0, spikes.getDropped());
+		int tonic = 0;
+		for (int m = 0; m < models.size(); m++)
+		{
+			// sample s is V at the end of step s
+			float[] trace = results.getTrace(Variable.V, m);
+			float[] times = spikes.getTimes(m);
+			int spike = 0;
+			for (int s = 0; s < trace.length; s++)
+			{
+				float previous = s == 0 ? 0 : trace[s - 1];
+				if (previous < 50 && trace[s] >= 50)
+				{
+					assertTrue(times[spike] >= s * dt - 1e-3f && times[spike] <= (s + 1) * dt + 1e-3f);
+					spike++;
+				}
+			}
+			assertEquals(spike, times.length);
+			if (spike > 2)
+			{
+				tonic++;
+			}
+		}
+		assertTrue(tonic > 0);
+
+		// a long refractory period drops the spikes following too closely
+		Spikes refractory = solver.solveSpikes(models, null, new TimeConfiguration(dt, 10000, 1), new SpikeDetection(50, 30)).getSpikes();
+		assertTrue(refractory.getCount() < spikes.getCount());
+		for (int m = 0; m < models.size(); m++)
+		{
+			float[] times = refractory.getTimes(m);
+			for (int i = 1; i < times.length; i++)
+			{
+				assertTrue(times[i] - times[i - 1] >= 30);
+			}
+		}
+
+		// spikes only, no sample is stored
+		HHResults spikesOnly = solver.solveSpikes(models, null, new TimeConfiguration(dt, 10000, 20000), detection);
+		assertEquals(0, spikesOnly.getSampleCount());
+		assertEquals(spikes.getCount(), spikesOnly.getSpikes().getCount());
+		for (int i = 0; i < spikes.getCount(); i++)
+		{
+			assertEquals(spikes.getNeuron(i), spikesOnly.getSpikes().getNeuron(i));
+			assertEquals(spikes.getTime(i), spikesOnly.getSpikes().getTime(i), 0);
+		}
+
+		if (isOpenCLAvailable())
+		{
+			solver.setBackend(SolverBackend.OPENCL);
+			HHResults device = solver.solveSpikes(models, null, new TimeConfiguration(dt, 10000, 20000), detection);
+			assertNotNull(device);
+			for (int m = 0; m < models.size(); m++)
+			{
+				float[] expected = spikes.getTimes(m);
+				float[] times = device.getSpikes().getTimes(m);
+				assertEquals(expected.length, times.length);
+				for (int i = 0; i < times.length; i++)
+				{
+					assertEquals(expected[i], times[i], 0.01f);
+				}
+			}
+		}
+		solver.shutdown();
+	}
+
+	/**
+	 * Test that results stored in 16-bit formats stay within the accuracy
+	 * stated for each format
+	 */
+	@Test
+	public void testStorageFormats() {
+		List<IModel> models = createModels("format", 20);
+		ITimeConfiguration timeConfig=new TimeConfiguration(new Float(0.01),10000,5);
+
+		SampleSolverService solver = new SampleSolverService();
+		solver.setBackend(SolverBackend.JAVA);
+		HHResults expected = solver.solveColumnar(models, timeConfig);
+
+		for (SolverBackend backend : getTestedBackends())
+		{
+			for (StorageFormat format : new StorageFormat[] { StorageFormat.HALF, StorageFormat.SCALED16 })
+			{
+				solver.setBackend(backend);
+				for (Variable variable : Variable.values())
+				{
+					solver.setStorageFormat(variable, format);
+				}
+				HHResults results = solver.solveColumnar(models, timeConfig);
+				assertNotNull(results);
+				for (Variable variable : Variable.values())
+				{
+					assertEquals(format, results.getStorageFormat(variable));
+					// the OpenCL kernel only matches the Java backend within 1e-2 mV
+					float tolerance = format.getMaxError(variable) + (backend == SolverBackend.JAVA ? 0 : 0.01f);
+					float[] decoded = results.getTimeMajor(variable);
+					float[] reference = expected.getTimeMajor(variable);
+					assertEquals(reference.length, decoded.length);
+					for (int i = 0; i < decoded.length; i++)
+					{
+						assertEquals(reference[i], decoded[i], tolerance);
+					}
+					assertEquals(decoded[3], results.get(variable, 3, 0), 0);
+				}
+
+				// slices keep the format of the whole results
+				HHResults slice = results.slice(5, 10);
+				assertEquals(format, slice.getStorageFormat(Variable.V));
+				assertEquals(results.get(Variable.V, 7, 100), slice.get(Variable.V, 2, 100), 0);
+			}
+			for (Variable variable : Variable.values())
+			{
+				solver.setStorageFormat(variable, StorageFormat.FLOAT);
+			}
+		}
+		solver.shutdown();
+	}
+
+	/**
+	 * Test that zero-copy results match read back ones and are not
+	 * overwritten by the following runs
+	 * NOTE: skipped when no OpenCL device is available
+	 */
+	@Test
+	public void testZeroCopyResults() {
+		Assume.assumeTrue(isOpenCLAvailable());
+
+		List<IModel> models = createModels("zero", 20);
+		List<IModel> others = new ArrayList<IModel>();
+		for (int m = 0; m < 20; m++)
+		{
+			others.add(new HHModel("other" + m, -10, 0, 0, 1, 20 - m));
+		}
+		ITimeConfiguration timeConfig=new TimeConfiguration(new Float(0.01),2000,10);
+
+		SampleSolverService solver = new SampleSolverService();
+		solver.setBackend(SolverBackend.OPENCL);
+		HHResults expected = solver.solveColumnar(models, timeConfig);
+		assertNotNull(expected);
+
+		solver.setZeroCopy(true);
+		HHResults results = solver.solveColumnar(models, timeConfig);
+		HHResults following = solver.solveColumnar(others, timeConfig);
+		assertNotNull(following);
+		for (Variable variable : Variable.values())
+		{
+			for (int m = 0; m < models.size(); m++)
+			{
+				for (int s = 0; s < expected.getSampleCount(); s++)
+				{
+					assertEquals(expected.get(variable, m, s), results.get(variable, m, s), 0);
+				}
+			}
+		}
+		solver.shutdown();
+	}
+
+	/**
+	 * Test that a trace file written window by window holds the results of
+	 * a whole run, in any storage format
+	 */
+	@Test
+	public void testTraceFile() throws IOException {
+		List<IModel> models = createModels("trace", 20);
+		ITimeConfiguration timeConfig=new TimeConfiguration(new Float(0.01),2000,10);
+
+		SampleSolverService solver = new SampleSolverService();
+		solver.setBackend(SolverBackend.JAVA);
+		solver.setStorageFormat(Variable.XN, StorageFormat.SCALED16);
+		HHResults expected = solver.solveColumnar(models, timeConfig);
+
+		File file = File.createTempFile("trace", ".hh");
+		file.deleteOnExit();
+		solver.solveToTrace(models, timeConfig, 500, file);
+		solver.shutdown();
+
+		TraceReader reader = new TraceReader(file);
+		try
+		{
+			assertEquals(20, reader.getModelCount());
+			assertEquals("trace7", reader.getModelId(7));
+			assertEquals(7, reader.indexOf("trace7"));
+			assertEquals(200, reader.getSampleCount());
+			assertEquals(0.01f, reader.getTimeStepLength(), 0);
+			assertEquals(10, reader.getSamplePeriod());
+			assertEquals(StorageFormat.FLOAT, reader.getStorageFormat(Variable.V));
+			assertEquals(StorageFormat.SCALED16, reader.getStorageFormat(Variable.XN));
+
+			for (Variable variable : Variable.values())
+			{
+				for (int m = 0; m < 20; m++)
+				{
+					float[] trace = reader.getTrace(variable, m);
+					assertEquals(200, trace.length);
+					for (int s = 0; s < trace.length; s++)
+					{
+						assertEquals(expected.get(variable, m, s), trace[s], 0);
+					}
+				}
+			}
+			assertEquals(expected.get(Variable.XN, 13, 150), reader.get(Variable.XN, 13, 150), 0);
+			float[] range = reader.getTrace(Variable.V, 4, 100, 50);
+			assertEquals(expected.get(Variable.V, 4, 120), range[20], 0);
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Test that kernels loaded from the binary cache, or rebuilt after a
+	 * corrupt binary, give the results of a build from source
+	 * NOTE: skipped when no OpenCL device is available
+	 */
+	@Test
+	public void testKernelBinaryCache() throws IOException {
+		Assume.assumeTrue(isOpenCLAvailable());
+
+		List<IModel> models = createModels("cache", 20);
+		ITimeConfiguration timeConfig=new TimeConfiguration(new Float(0.01),1000,10);
+
+		File cache = File.createTempFile("kernel", "cache");
+		cache.delete();
+		SolverConfiguration configuration = new SolverConfiguration();
+		configuration.setBackend(SolverBackend.OPENCL);
+		configuration.setKernelCacheDirectory(cache);
+
+		// miss, hit, then a corrupt binary
+		HHResults[] results = new HHResults[3];
+		for (int r = 0; r < results.length; r++)
+		{
+			SampleSolverService solver = new SampleSolverService();
+			solver.setConfiguration(configuration);
+			results[r] = solver.solveColumnar(models, timeConfig);
+			solver.shutdown();
+			assertNotNull(results[r]);
+			File[] binaries = cache.listFiles();
+			assertEquals(1, binaries.length);
+			if (r == 1)
+			{
+				FileOutputStream os = new FileOutputStream(binaries[0]);
+				os.write(new byte[] { 1, 2, 3 });
+				os.close();
+			}
+		}
+		for (int r = 1; r < results.length; r++)
+		{
+			float[] expected = results[0].getTimeMajor(Variable.V);
+			float[] actual = results[r].getTimeMajor(Variable.V);
+			for (int i = 0; i < expected.length; i++)
+			{
+				assertEquals(expected[i], actual[i], 0);
+			}
+		}
+		for (File binary : cache.listFiles())
+		{
+			binary.delete();
+		}
+		cache.delete();
+	}
+
+	/**
+	 * Test that the phases of a solve are timed and exposed through JMX
+	 */
+	@Test
+	public void testSolverMetrics() throws Exception {
+		List<IModel> models = createModels("metrics", 20);
+		ITimeConfiguration timeConfig=new TimeConfiguration(new Float(0.01),1000,10);
+
+		SampleSolverService solver = new SampleSolverService();
+		solver.setBackend(SolverBackend.JAVA);
+		assertNotNull(solver.solve(models, timeConfig));
+		assertNotNull(solver.solve(models, timeConfig));
+
+		SolverMetrics metrics = solver.getMetrics();
+		assertEquals(1, metrics.getTiming(Phase.CONTEXT).getCount());
+		assertEquals(2, metrics.getTiming(Phase.KERNEL).getCount());
+		assertEquals(2, metrics.getTiming(Phase.CONVERSION).getCount());
+		assertEquals(2 * 20 * 1000, metrics.getNeuronSteps());
+		assertTrue(metrics.getNeuronStepsPerSecond() > 0);
+		PhaseTiming kernel = metrics.getTiming(Phase.KERNEL);
+		assertTrue(kernel.getMedianMillis() <= kernel.getMaxMillis());
+		assertEquals(kernel.getTotalMillis() / 2, kernel.getMeanMillis(), 1e-9);
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		Set<ObjectName> names = server.queryNames(new ObjectName("org.geppetto.samplesolver:type=SolverMetrics,*"), null);
+		ObjectName solverName = null;
+		for (ObjectName name : names)
+		{
+			if (name.getKeyProperty("phase") == null && server.getAttribute(name, "NeuronSteps").equals(metrics.getNeuronSteps()))
+			{
+				solverName = name;
+			}
+		}
+		assertNotNull(solverName);
+		ObjectName kernelName = new ObjectName(solverName + ",phase=kernel");
+		assertEquals(2L, server.getAttribute(kernelName, "Count"));
+
+		server.invoke(solverName, "reset", null, null);
+		assertEquals(0, metrics.getNeuronSteps());
+		assertEquals(0, kernel.getCount());
+
+		solver.shutdown();
+		assertFalse(server.isRegistered(solverName));
+		assertFalse(server.isRegistered(kernelName));
+	}
+
+	/**
+	 * Test that neurons settling at rest stop integrating, with traces that
+	 * stay constant and close to the full integration, while spiking neurons
+	 * are integrated to the end
+	 */
+	@Test
+	public void testSteadyState() {
+		List<IModel> models = new ArrayList<IModel>();
+		for (int m = 0; m < 20; m++)
+		{
+			// at rest without current, tonic spiking with 10 uA
+			models.add(new HHModel("steady" + m, m % 7 - 10, 0.3177f, 0.0529f, 0.5961f, m % 2 == 0 ? 0 : 10));
+		}
+		ITimeConfiguration timeConfig=new TimeConfiguration(new Float(0.01),20000,10);
+
+		SampleSolverService solver = new SampleSolverService();
+		solver.setBackend(SolverBackend.JAVA);
+		HHResults expected = solver.solveColumnar(models, timeConfig);
+
+		solver.setSteadyState(new SteadyState());
+		for (SolverBackend backend : getTestedBackends())
+		{
+			solver.setBackend(backend);
+			HHResults results = solver.solveColumnar(models, timeConfig);
+			assertNotNull(results);
+			// the OpenCL kernel only matches the Java backend within 1e-2 mV
+			float tolerance = backend == SolverBackend.JAVA ? 0 : 0.01f;
+			for (int m = 0; m < 20; m++)
+			{
+				int settled = results.getSettledSample(m);
+				if (m % 2 == 0)
+				{
+					assertTrue(settled < 2000);
+				}
+				else
+				{
+					assertEquals(2000, settled);
+				}
+				for (int s = 0; s < 2000; s++)
+				{
+					// exact until the neuron settled, then within the tolerances
+					float error = s < settled ? tolerance : tolerance + 0.01f;
+					assertEquals(expected.get(Variable.V, m, s), results.get(Variable.V, m, s), error);
+					assertEquals(expected.get(Variable.XH, m, s), results.get(Variable.XH, m, s), error / 10);
+				}
+			}
+
+			// whole columns are filled in from the settled samples
+			float[] column = results.getTimeMajor(Variable.V);
+			assertEquals(results.get(Variable.V, 4, 1999), column[1999 * 20 + 4], 0);
+			assertEquals(results.get(Variable.V, 4, results.getSettledSample(4)), column[1999 * 20 + 4], 0);
+			HHResults slice = results.slice(4, 8);
+			assertEquals(results.getSettledSample(6), slice.getSettledSample(2));
+		}
+		solver.shutdown();
+	}
+
+	/**
+	 * Test that a simulation restored from a checkpoint, in another service,
+	 * continues exactly as the simulation that was checkpointed
+	 */
+	@Test
+	public void testCheckpointRestore() throws IOException {
+		List<IModel> models = createModels("checkpoint", 20);
+		ITimeConfiguration timeConfig=new TimeConfiguration(new Float(0.01),1000,10);
+
+		SampleSolverService solver = new SampleSolverService();
+		solver.setBackend(SolverBackend.JAVA);
+		HHSimulation simulation = solver.startSimulation(models);
+		simulation.setSpikeDetection(new SpikeDetection(50, 2));
+		simulation.setStimulus(3, new Stimulus().pulseTrain(12, 20, 50, 5, 1));
+		simulation.setParameters(5, new HHParameters(30, 120, 0.3f, -12, 115, 10.6f));
+		simulation.setI(7, 25);
+		assertNotNull(simulation.advance(timeConfig));
+
+		File file = File.createTempFile("checkpoint", ".hhcs");
+		file.deleteOnExit();
+		FileOutputStream os = new FileOutputStream(file);
+		simulation.checkpoint(os.getChannel());
+		os.close();
+		double checkpointTime = simulation.getTime();
+		HHResults expected = simulation.advance(timeConfig);
+		double expectedTime = simulation.getTime();
+		simulation.close();
+		solver.shutdown();
+
+		SampleSolverService restoreSolver = new SampleSolverService();
+		restoreSolver.setBackend(SolverBackend.JAVA);
+		FileInputStream is = new FileInputStream(file);
+		HHSimulation restored = restoreSolver.restoreSimulation(is.getChannel());
+		is.close();
+		assertEquals(20, restored.getModelCount());
+		assertEquals(checkpointTime, restored.getTime(), 0);
+		assertEquals(25, restored.getI(7), 0);
+		assertEquals(30, restored.getParameters(5).getMaxG_K(), 0);
+		assertNull(restored.getParameters(4));
+		assertNotNull(restored.getStimulus(3));
+		assertEquals(2, restored.getSpikeDetection().getRefractory(), 0);
+
+		HHResults actual = restored.advance(timeConfig);
+		assertEquals(expectedTime, restored.getTime(), 0);
+		restored.close();
+
+		os = new FileOutputStream(file);
+		os.write(new byte[] { 1, 2, 3 });
+		os.close();
+		is = new FileInputStream(file);
+		try
+		{
+			restoreSolver.restoreSimulation(is.getChannel());
+			fail("Invalid snapshot restored");
+		}
+		catch (IOException e)
+		{
+			// expected
+		}
+		is.close();
+		restoreSolver.shutdown();
+		for (Variable variable : Variable.values())
+		{
+			float[] expectedValues = expected.getTimeMajor(variable);
+			float[] actualValues = actual.getTimeMajor(variable);
+			for (int i = 0; i < expectedValues.length; i++)
+			{
+				assertEquals("index " + i, expectedValues[i], actualValues[i], 0);
+			}
+		}
+		assertEquals(expected.getSpikes().getCount(), actual.getSpikes().getCount());
+		assertTrue(actual.getSpikes().getCount() > 0);
+		for (int spike = 0; spike < expected.getSpikes().getCount(); spike++)
+		{
+			assertEquals(expected.getSpikes().getNeuron(spike), actual.getSpikes().getNeuron(spike));
+			assertEquals(expected.getSpikes().getTime(spike), actual.getSpikes().getTime(spike), 0);
+		}
+	}
 }